@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionBackfillWork;
+
+/**
+ * Starts (or resumes) the rebuild of the stored renditions of the documents
+ * returned by <code>query</code>, in the background. See
+ * {@link StoredPictureRenditionBackfillWork}.
+ * <p>
+ * Only an administrator can run it.
+ *
+ * @since 5.9.5
+ */
+@Operation(id = BackfillStoredPictureRenditionsOp.ID, category = Constants.CAT_SERVICES, label = "Backfill Stored Picture Renditions", description = "Rebuilds, in the background, the stored renditions of the documents returned by the NXQL <code>query</code>. The documents are processed by batches of <code>batchSize</code> (one transaction per document), with <code>parallelism</code> threads and at most <code>maxPerSecond</code> documents per second (0 for no limit). Up-to-date renditions are skipped unless <code>force</code> is checked. The backfill is resumed after a restart. Starting again the same backfill (same <code>backfillId</code>, default is based on the query) resumes it. The <code>varBackfillId</code> Context variable, if set, is filled with the id of the backfill.")
+public class BackfillStoredPictureRenditionsOp {
+
+    public static final String ID = "Picture.BackfillStoredRenditions";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected OperationContext ctx;
+
+    @Param(name = "query")
+    protected String query;
+
+    @Param(name = "batchSize", required = false)
+    protected int batchSize = 50;
+
+    @Param(name = "parallelism", required = false)
+    protected int parallelism = 1;
+
+    @Param(name = "maxPerSecond", required = false)
+    protected int maxPerSecond = 0;
+
+    @Param(name = "force", required = false)
+    protected boolean force = false;
+
+    @Param(name = "backfillId", required = false)
+    protected String backfillId;
+
+    @Param(name = "varBackfillId", required = false)
+    protected String varBackfillId;
+
+    @OperationMethod
+    public void run() {
+
+        // The work runs unrestricted: Don't let anyone start it
+        if (!((NuxeoPrincipal) session.getPrincipal()).isAdministrator()) {
+            throw new DocumentSecurityException(
+                    "Only an administrator can backfill the stored renditions");
+        }
+
+        String id = backfillId == null || backfillId.isEmpty() ? StoredPictureRenditionBackfillWork.getDefaultBackfillId(query)
+                : backfillId;
+        StoredPictureRenditionBackfillWork.schedule(new StoredPictureRenditionBackfillWork(
+                session.getRepositoryName(), id, query, batchSize,
+                parallelism, maxPerSecond, force));
+
+        if (varBackfillId != null && !varBackfillId.isEmpty()) {
+            ctx.put(varBackfillId, id);
+        }
+    }
+}
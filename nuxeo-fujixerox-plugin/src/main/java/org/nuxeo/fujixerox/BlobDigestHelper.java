@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Digest utilities, used as keys for the caches of the plug-in.
+ * <p>
+ * When the blob is stored in the repository, nuxeo already has its digest
+ * (this is how the binary manager names the file), so we just use it and
+ * don't read the binary. Else, we calculate the MD5 of the content.
+ *
+ * @since 5.9.5
+ */
+public class BlobDigestHelper {
+
+    protected static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    protected static MessageDigest getMessageDigest(String inAlgorithm) {
+        try {
+            return MessageDigest.getInstance(inAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    protected static String toHex(byte[] inBytes) {
+        char[] chars = new char[inBytes.length * 2];
+        for (int i = 0; i < inBytes.length; i++) {
+            chars[i * 2] = HEX[(inBytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[inBytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /*
+     * Returns null if inBlob is null
+     */
+    public static String getDigest(Blob inBlob) throws IOException {
+
+        if (inBlob == null) {
+            return null;
+        }
+
+        String digest = inBlob.getDigest();
+        if (digest != null && !digest.isEmpty()) {
+            return digest;
+        }
+
+        MessageDigest md = getMessageDigest("MD5");
+        try (InputStream in = inBlob.getStream()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /*
+     * A short, stable, fingerprint of a list of values (used to detect a
+     * change in command lines, parameters, ...)
+     */
+    public static String fingerprint(String... inValues) {
+
+        MessageDigest md = getMessageDigest("SHA-1");
+        for (String oneValue : inValues) {
+            if (oneValue != null) {
+                md.update(oneValue.getBytes(StandardCharsets.UTF_8));
+            }
+            // Separator, so ("ab", "c") and ("a", "bc") are different
+            md.update((byte) 0);
+        }
+        return toHex(md.digest());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import java.io.File;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.picture.api.BlobHelper;
+import org.nuxeo.ecm.platform.picture.api.ImageInfo;
+import org.nuxeo.ecm.platform.picture.api.ImagingService;
+import org.nuxeo.fujixerox.validation.ImageHeaderInfo;
+import org.nuxeo.fujixerox.validation.ImageHeaderReader;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * What we learned about a binary, so the stages handling the same upload
+ * (validation, picture views, stored renditions) don't resolve and inspect
+ * it again: Its local file, its header (see {@link ImageHeaderReader}) and
+ * its size. Each value is calculated on the first call only.
+ * <p>
+ * The probes of the blobs which have a digest are shared, see
+ * {@link BlobProbeRegistry}.
+ *
+ * @since 5.9.5
+ */
+public class BlobProbe {
+
+    static private Log log = LogFactory.getLog(BlobProbe.class);
+
+    protected final Blob blob;
+
+    protected final String digest;
+
+    protected final long created = System.currentTimeMillis();
+
+    protected File file;
+
+    protected boolean fileResolved = false;
+
+    protected ImageHeaderInfo header;
+
+    protected boolean headerRead = false;
+
+    protected long width = -1;
+
+    protected long height = -1;
+
+    public BlobProbe(Blob inBlob, String inDigest) {
+        blob = inBlob;
+        digest = inDigest;
+    }
+
+    public Blob getBlob() {
+        return blob;
+    }
+
+    /*
+     * null if the blob has no digest (the probe is then not shared)
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /*
+     * The file holding the binary, or null if the blob is not backed by a
+     * file (the caller must then copy it)
+     */
+    public synchronized File getFile() {
+
+        // A FileBlob may reference a temporary file deleted since
+        if (fileResolved && file != null && !file.exists()) {
+            fileResolved = false;
+        }
+        if (!fileResolved) {
+            try {
+                file = BlobHelper.getFileFromBlob(blob);
+            } catch (Exception e) {
+                file = null;
+            }
+            fileResolved = true;
+        }
+        return file;
+    }
+
+    /*
+     * null if the header is not enough (see ImageHeaderReader)
+     */
+    public synchronized ImageHeaderInfo getHeader() {
+        if (!headerRead) {
+            header = ImageHeaderReader.read(blob);
+            headerRead = true;
+            BlobProbeRegistry.headerReads.incrementAndGet();
+        }
+        return header;
+    }
+
+    /*
+     * Width and height: From the header if possible, else from
+     * ImagingService (which runs ImageMagick). 0 if unknown.
+     */
+    protected synchronized void readSize() {
+
+        if (width >= 0) {
+            return;
+        }
+        ImageHeaderInfo info = getHeader();
+        if (info != null && info.getWidth() > 0 && info.getHeight() > 0) {
+            width = info.getWidth();
+            height = info.getHeight();
+            return;
+        }
+
+        width = 0;
+        height = 0;
+        try {
+            BlobProbeRegistry.imageInfoCalls.incrementAndGet();
+            ImageInfo imageInfo = Framework.getService(ImagingService.class).getImageInfo(
+                    blob);
+            if (imageInfo != null) {
+                width = imageInfo.getWidth();
+                height = imageInfo.getHeight();
+            }
+        } catch (Exception e) {
+            // The size is optional
+            if (log.isDebugEnabled()) {
+                log.debug("Cannot get the size of " + blob.getFilename(), e);
+            }
+        }
+    }
+
+    public long getWidth() {
+        readSize();
+        return width;
+    }
+
+    public long getHeight() {
+        readSize();
+        return height;
+    }
+}
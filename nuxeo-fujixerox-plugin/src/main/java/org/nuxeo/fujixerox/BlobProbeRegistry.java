@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The {@link BlobProbe}s of the node, keyed by the digest of the blob.
+ * <p>
+ * For one upload, the validation (in the transaction of the upload) and the
+ * stored renditions (in an asynchronous, post-commit, listener) don't share
+ * the same event context or transaction, so the probes are kept for a short
+ * time (the default is 5 minutes) instead of being attached to one event.
+ * A blob without digest (not yet stored) gets its own probe: We never
+ * calculate a digest just for a probe, it would read the whole binary.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li><code>fujixerox.probe.ttlSeconds</code>: default is 300, 0 disables
+ * the sharing of the probes</li>
+ * <li><code>fujixerox.probe.maxEntries</code>: default is 1000 (least
+ * recently used entries are evicted first)</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class BlobProbeRegistry {
+
+    public static final String TTL_SECONDS_PROPERTY = "fujixerox.probe.ttlSeconds";
+
+    public static final String MAX_ENTRIES_PROPERTY = "fujixerox.probe.maxEntries";
+
+    protected static BlobProbeRegistry instance;
+
+    // Global counters, updated by the probes
+    protected static final AtomicLong headerReads = new AtomicLong();
+
+    protected static final AtomicLong imageInfoCalls = new AtomicLong();
+
+    protected final long ttl;
+
+    protected final int maxEntries;
+
+    protected final LinkedHashMap<String, BlobProbe> probes;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    public static synchronized BlobProbeRegistry getInstance() {
+        if (instance == null) {
+            long ttlSeconds = Long.parseLong(Framework.getProperty(
+                    TTL_SECONDS_PROPERTY, "300"));
+            int maxEntries = Integer.parseInt(Framework.getProperty(
+                    MAX_ENTRIES_PROPERTY, "1000"));
+            instance = new BlobProbeRegistry(ttlSeconds * 1000, maxEntries);
+        }
+        return instance;
+    }
+
+    /*
+     * Shortcut for getInstance().get(inBlob)
+     */
+    public static BlobProbe getProbe(Blob inBlob) {
+        return getInstance().get(inBlob);
+    }
+
+    public BlobProbeRegistry(long inTtl, int inMaxEntries) {
+
+        ttl = inTtl;
+        maxEntries = inMaxEntries;
+        // Access-order => the first entry is the least recently used one
+        probes = new LinkedHashMap<String, BlobProbe>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, BlobProbe> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public BlobProbe get(Blob inBlob) {
+
+        String digest = inBlob.getDigest();
+        if (digest == null || digest.isEmpty() || ttl <= 0) {
+            return new BlobProbe(inBlob, null);
+        }
+
+        synchronized (this) {
+            BlobProbe probe = probes.get(digest);
+            if (probe != null
+                    && System.currentTimeMillis() - probe.getCreated() <= ttl) {
+                hits.incrementAndGet();
+                return probe;
+            }
+            misses.incrementAndGet();
+            probe = new BlobProbe(inBlob, digest);
+            probes.put(digest, probe);
+            return probe;
+        }
+    }
+
+    public synchronized void clear() {
+        probes.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getSize() {
+        return probes.size();
+    }
+
+    /*
+     * Number of headers read by all the probes
+     */
+    public static long getHeaderReads() {
+        return headerReads.get();
+    }
+
+    /*
+     * Number of calls to ImagingService.getImageInfo() (each one runs
+     * ImageMagick) made by all the probes
+     */
+    public static long getImageInfoCalls() {
+        return imageInfoCalls.get();
+    }
+}
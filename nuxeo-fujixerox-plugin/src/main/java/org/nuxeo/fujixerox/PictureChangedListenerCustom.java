@@ -20,16 +20,24 @@ import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
 import static org.nuxeo.ecm.platform.picture.api.ImagingDocumentConstants.PICTURE_FACET;
 import static org.nuxeo.ecm.platform.picture.api.ImagingDocumentConstants.UPDATE_PICTURE_VIEW_EVENT;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreEventConstants;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.model.Property;
 import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventContext;
 import org.nuxeo.ecm.core.event.EventService;
 import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
 import org.nuxeo.ecm.platform.picture.listener.PictureChangedListener;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionLanes;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionPersister;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -53,11 +61,29 @@ import org.nuxeo.runtime.api.Framework;
  * renditions in this custom schema, in an asynchronous/postcommit
  * "document created/modifed" event, so there will be no more dependencies on
  * picture:views.
+ *
+ * When a client sets again the same binary (synchronization tools,
+ * re-uploads, ...), file:content is dirty but the views are still valid: We
+ * compare the digests of the previous and new binaries and skip the
+ * regeneration (and so, the stored renditions) when they are equal. See the
+ * fujixerox.pictureviews.skipUnchangedBinary configuration property
+ * (default is true) and getSuppressedCount().
  */
 public class PictureChangedListenerCustom extends PictureChangedListener {
 
     private static Log log = LogFactory.getLog(PictureChangedListenerCustom.class);
 
+    public static final String SKIP_UNCHANGED_PROPERTY = "fujixerox.pictureviews.skipUnchangedBinary";
+
+    protected static final AtomicLong suppressed = new AtomicLong();
+
+    /*
+     * Number of regenerations skipped because the binary did not change
+     */
+    public static long getSuppressedCount() {
+        return suppressed.get();
+    }
+
     @Override
     public void handleEvent(Event event) throws ClientException {
         EventContext ctx = event.getContext();
@@ -67,16 +93,33 @@ public class PictureChangedListenerCustom extends PictureChangedListener {
         DocumentEventContext docCtx = (DocumentEventContext) ctx;
         DocumentModel doc = docCtx.getSourceDocument();
 
+        // Only the stored renditions changed
+        if (StoredPictureRenditionPersister.isRenditionsOnlySave(doc)) {
+            return;
+        }
+
         if (!doc.isImmutable()) {
             // super.handleEvent(event);
             if (doc.hasFacet(PICTURE_FACET) && !doc.isProxy()) {
                 Property fileProp = doc.getProperty("file:content");
                 if (DOCUMENT_CREATED.equals(event.getName())
                         || fileProp.isDirty()) {
+                    if (!DOCUMENT_CREATED.equals(event.getName())
+                            && isSameBinary(docCtx, doc)) {
+                        suppressed.incrementAndGet();
+                        if (log.isDebugEnabled()) {
+                            log.debug("Same binary for " + doc.getId()
+                                    + ", the picture views are not built again");
+                        }
+                        return;
+                    }
                     // Here is the difference with the original
                     // PictureChangedListener: We always
                     // calculate the views, so pictureViewsGenerationDone
                     // event is fired by nuxeo.
+                    // Interactive upload or bulk import? Decided now, while
+                    // we have the principal and the context
+                    StoredPictureRenditionLanes.classify(docCtx, doc);
                     preFillPictureViews(docCtx.getCoreSession(), doc);
                     // mark the document as needing picture views generation
                     Event trigger = docCtx.newEvent(UPDATE_PICTURE_VIEW_EVENT);
@@ -86,4 +129,51 @@ public class PictureChangedListenerCustom extends PictureChangedListener {
             }
         }
     }
+
+    /*
+     * The lengths are compared first: A digest of the new binary is
+     * calculated (which reads it) only if they are equal. The views must
+     * exist, else they are built again (previous generation failed, ...)
+     */
+    protected boolean isSameBinary(DocumentEventContext inCtx,
+            DocumentModel inDoc) {
+
+        if (!Boolean.parseBoolean(Framework.getProperty(
+                SKIP_UNCHANGED_PROPERTY, "true"))) {
+            return false;
+        }
+
+        DocumentModel previous = (DocumentModel) inCtx.getProperty(CoreEventConstants.PREVIOUS_DOCUMENT_MODEL);
+        if (previous == null) {
+            return false;
+        }
+        Blob before = (Blob) previous.getPropertyValue("file:content");
+        Blob after = (Blob) inDoc.getPropertyValue("file:content");
+        if (before == null || after == null) {
+            return false;
+        }
+        String previousDigest = before.getDigest();
+        if (previousDigest == null || previousDigest.isEmpty()) {
+            return false;
+        }
+        long beforeLength = before.getLength();
+        long afterLength = after.getLength();
+        if (beforeLength >= 0 && afterLength >= 0
+                && beforeLength != afterLength) {
+            return false;
+        }
+
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        if (mvp == null || mvp.getViews().length == 0) {
+            return false;
+        }
+
+        try {
+            return previousDigest.equals(BlobDigestHelper.getDigest(after));
+        } catch (IOException e) {
+            log.warn("Cannot calculate the digest of the binary of "
+                    + inDoc.getId(), e);
+            return false;
+        }
+    }
 }
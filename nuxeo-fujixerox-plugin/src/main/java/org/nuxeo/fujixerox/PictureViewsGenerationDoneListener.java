@@ -17,21 +17,16 @@
 
 package org.nuxeo.fujixerox;
 
-import java.io.IOException;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventBundle;
-import org.nuxeo.ecm.core.event.EventContext;
 import org.nuxeo.ecm.core.event.PostCommitEventListener;
-import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
-import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
-import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
 import org.nuxeo.ecm.platform.picture.PictureViewsGenerationWork;
-import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionBuilder;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionCoalescer;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionLanes;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionWork;
 
 /*
  * We listen to the "pictureViewsGenerationDone" event, which is an asynchronous
@@ -50,6 +45,16 @@ import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionBuilder;
  * We are in a postCommit event => we must implements PostCommitEventListener,
  * not EventListener
  *
+ * Rapid successive edits send several events for the same document: Only the
+ * latest one triggers a rebuild (see StoredPictureRenditionCoalescer)
+ *
+ * The renditions are not built here but in StoredPictureRenditionWork, in
+ * the storedPictureRenditions queue, so a burst of imports does not hold all
+ * the threads of the asynchronous listeners. The bulk imports have their own
+ * queue, storedPictureRenditionsBulk (see StoredPictureRenditionLanes). If you need to set a flag or
+ * send a notification once the renditions are built, see
+ * StoredPictureRenditionWork.build()
+ *
  */
 public class PictureViewsGenerationDoneListener implements
         PostCommitEventListener {
@@ -60,24 +65,10 @@ public class PictureViewsGenerationDoneListener implements
 
     @Override
     public void handleEvent(EventBundle bundle) throws ClientException {
-        for (Event oneEvent : bundle) {
-            // Usual sanity check
-            if (!PICTURE_VIEWS_GENERATION_DONE_EVENTNAME.equals(oneEvent.getName())) {
-                log.warn("Receiving the <"
-                        + oneEvent.getName()
-                        + "> event, while the XML definition declares we listen only to "
-                        + PICTURE_VIEWS_GENERATION_DONE_EVENTNAME
-                        + " => ignoring this event");
-                continue;
-            }
-            EventContext ctx = oneEvent.getContext();
-            if (!(ctx instanceof DocumentEventContext)) {
-                log.warn("The event context should be a DocumentEventContext => ignoring the event");
-                continue;
-            }
-
-            DocumentEventContext docCtx = (DocumentEventContext) oneEvent.getContext();
-            DocumentModel doc = docCtx.getSourceDocument();
+        // Only the last event of each document (see
+        // StoredPictureRenditionCoalescer)
+        for (DocumentModel doc : StoredPictureRenditionCoalescer.coalesce(
+                bundle, PICTURE_VIEWS_GENERATION_DONE_EVENTNAME)) {
 
             if (doc.isImmutable()) {
                 // log.warn("The doc ID " + doc.getId() +
@@ -92,32 +83,12 @@ public class PictureViewsGenerationDoneListener implements
                         + ") has no 'picture' schema => ignoring the event");
             }
 
-            StoredPictureRenditionBuilder rh = new StoredPictureRenditionBuilder(
-                    doc);
-            try {
-
-                rh.buildAvailableRenditions();
-
-                // ======================================================================
-                // If the pattern is to set a flag on a field of the document,
-                // this is where it must be done
-                // doc.setPropertyValue("schemaprefix:fieldname", true);
-                // ======================================================================
-
-                // The doc will be saved only if no error occurred (else, in
-                // case of error, we'll be in the catch() part)
-                doc = doc.getCoreSession().saveDocument(doc);
-
-                // ======================================================================
-                // If the pattern is to send a push notification to a webservice
-                // and/or to send an email, this is where it must be done
-                // ======================================================================
-
-            } catch (CommandNotAvailable | IOException | CommandException e) {
-                throw new ClientException(
-                        "Failed to pre-build the renditions for document "
-                                + doc.getId(), e);
-            }
+            // The renditions are built in their own queue (see
+            // StoredPictureRenditionWork). A document already in the queue
+            // is not queued again. The lane was decided when the binary was
+            // modified (see StoredPictureRenditionLanes)
+            StoredPictureRenditionWork.schedule(doc,
+                    StoredPictureRenditionLanes.takeLane(doc));
         }
     }
 }
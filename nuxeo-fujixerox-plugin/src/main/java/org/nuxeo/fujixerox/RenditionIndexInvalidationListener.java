@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.PostCommitEventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionIndex;
+
+/**
+ * Removes a document from the index of the stored renditions (see
+ * {@link StoredPictureRenditionIndex}) when it is modified or removed.
+ * <p>
+ * Unlike the other listeners of the plug-in, it also handles the saves of the
+ * stored renditions only: This is precisely when the renditions changed while
+ * the modification date did not.
+ * <p>
+ * Post-commit (and synchronous): Invalidated before the commit, the entry
+ * could be filled again by a concurrent reader with the renditions not
+ * committed yet. The index does not rely on it anyway, its entries are
+ * checked against the renditions of the document.
+ */
+public class RenditionIndexInvalidationListener implements
+        PostCommitEventListener {
+
+    @Override
+    public void handleEvent(EventBundle bundle) throws ClientException {
+
+        StoredPictureRenditionIndex index = StoredPictureRenditionIndex.getInstance();
+        for (Event event : bundle) {
+            if (event.getContext() instanceof DocumentEventContext) {
+                DocumentModel doc = ((DocumentEventContext) event.getContext()).getSourceDocument();
+                if (doc != null && doc.getId() != null
+                        && doc.hasSchema("picture")) {
+                    index.invalidate(doc.getRepositoryName(), doc.getId());
+                }
+            }
+        }
+    }
+}
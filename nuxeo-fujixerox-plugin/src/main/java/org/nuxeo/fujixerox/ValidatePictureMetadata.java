@@ -1,75 +1,120 @@
 package org.nuxeo.fujixerox;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 import org.im4java.core.InfoException;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.imagemetadata.ImageMetadataReader;
-import org.nuxeo.imagemetadata.XYResolutionDPI;
-import org.nuxeo.imagemetadata.ImageMetadataConstants.KEYS;
+import org.nuxeo.fujixerox.validation.ImageHeaderInfo;
+import org.nuxeo.fujixerox.validation.PictureMetadata;
+import org.nuxeo.fujixerox.validation.PictureValidationComponent;
+import org.nuxeo.fujixerox.validation.PictureValidationService;
+import org.nuxeo.fujixerox.validation.ValidationPlan;
+import org.nuxeo.fujixerox.validation.ValidationResult;
+import org.nuxeo.fujixerox.validation.ValidationResultCache;
+import org.nuxeo.runtime.api.Framework;
 
 public class ValidatePictureMetadata {
 
+    public static final String HEADER_READER_PROPERTY = "fujixerox.validation.headerReader.enabled";
+
+    public static final String RULES_VERSION_PROPERTY = "fujixerox.validation.rulesVersion";
+
+    /*
+     * When enabled (default), the metadata are read from the header of the
+     * image, in pure Java (see ImageHeaderReader). ImageMetadataReader (an
+     * external process reading the whole file) is used only when the header
+     * is not enough.
+     */
+    public static boolean isHeaderReaderEnabled() {
+        return Boolean.parseBoolean(Framework.getProperty(
+                HEADER_READER_PROPERTY, "true"));
+    }
+
+    /*
+     * Must change when the behavior of a rule changes without a change in
+     * its contribution (new version of its class, ...): The results in the
+     * ValidationResultCache are then ignored. Default is "1"
+     */
+    public static String getRulesVersion() {
+        return Framework.getProperty(RULES_VERSION_PROPERTY, "1");
+    }
+
+    /*
+     * The version used by ValidationResultCache: The version set in the
+     * configuration, and the fingerprint of the rules
+     */
+    public static String getRulesVersion(ValidationPlan inPlan) {
+        return getRulesVersion() + "/" + inPlan.getFingerprint();
+    }
+
+    /*
+     * The rules contributed to the PictureValidationService (the default
+     * rules if the service is not deployed)
+     */
+    public static ValidationPlan getPlan() {
+        PictureValidationService service = PictureValidationComponent.getInstance();
+        return service == null ? ValidationPlan.getDefault()
+                : service.getPlan();
+    }
+
     /*
-     * This is where you can add your business rules for validation. here, we
-     * just check resolution and colorspace.
+     * Returns the error message, empty if the picture is valid (see
+     * check())
      */
     public static String validate(Blob inBlob) {
+        return check(inBlob).getMessage();
+    }
 
-        String errorMsg = "";
+    /*
+     * The results are cached (see ValidationResultCache), the key being the
+     * digest of the blob. We use the digest only if nuxeo already has it
+     * (stored blob), or if we must run the external process: Calculating a
+     * digest reads the whole binary, which is much longer than reading its
+     * header.
+     */
+    public static ValidationResult check(Blob inBlob) {
 
-        try {
-            // Read the Metadata
-            ImageMetadataReader imdr;
-            imdr = new ImageMetadataReader(inBlob);
-            HashMap<String, String> result = null;
-            // ==================================================
-            // . . .Here, you could adapt and add more business rules about
-            // metadata
-            // validation. . .
-            // ==================================================
-            String[] keysStr = { KEYS.COLORSPACE, KEYS.RESOLUTION, KEYS.UNITS };
-            result = imdr.getMetadata(keysStr);
-            // Resolution needs extra work
-            XYResolutionDPI dpi = new XYResolutionDPI(
-                    result.get(KEYS.RESOLUTION), result.get(KEYS.UNITS));
-
-            // ==================================================
-            // Check values
-            // ==================================================
-            // Trying to add refinement and details to the error message :-)
-            ArrayList<String> errors = new ArrayList<String>();
-            if (dpi.getX() == 0) {
-                errors.add("X-Resolution");
-            }
-            if (dpi.getY() == 0) {
-                errors.add("Y-Resolution");
-            }
-            if (result.get(KEYS.COLORSPACE).isEmpty()) {
-                errors.add("Colorspace");
+        ValidationPlan plan = getPlan();
+        ValidationResultCache cache = ValidationResultCache.getInstance();
+        String rulesVersion = getRulesVersion(plan);
+        String digest = inBlob.getDigest();
+        if (digest != null && digest.isEmpty()) {
+            digest = null;
+        }
+        if (cache != null) {
+            ValidationResult cached = cache.get(digest, rulesVersion);
+            if (cached != null) {
+                return cached;
             }
-            // ==================================================
-            // . . . add your other rules here . . .
-            // ==================================================
-
-            int count = errors.size();
-            if (count > 0) {
-                if (count > 1) {
-                    errorMsg = "This image has " + count
-                            + " missing values in its metadata: ";
-                } else {
-                    errorMsg = "This image has a missing value in its metadata: ";
+        }
+
+        ValidationResult result;
+        try {
+            // Fast path: Just read the header (once per binary, see
+            // BlobProbe)
+            ImageHeaderInfo header = isHeaderReaderEnabled() ? BlobProbeRegistry.getProbe(
+                    inBlob).getHeader() : null;
+            boolean headerIsEnough = header != null
+                    && PictureMetadata.HEADER_KEYS.containsAll(plan.getRequiredKeys());
+            if (!headerIsEnough && digest == null && cache != null) {
+                digest = BlobDigestHelper.getDigest(inBlob);
+                ValidationResult cached = cache.get(digest, rulesVersion);
+                if (cached != null) {
+                    return cached;
                 }
-                // Sorry for this quick "ArrayString to String" ;->
-                errorMsg += errors.toString().replace("[", "").replace("]", "");
+            }
+
+            // The metadata needed by all the rules are extracted once
+            result = plan.validate(inBlob, header);
+            if (cache != null) {
+                cache.put(digest, rulesVersion, result);
             }
 
         } catch (IOException | InfoException e) {
-            errorMsg = e.getMessage();
+            // Not cached: the error may not be related to the binary
+            result = ValidationResult.failed(e.getMessage());
         }
 
-        return errorMsg;
+        return result;
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.RecoverableClientException;
+import org.nuxeo.ecm.core.api.impl.blob.BlobList;
+import org.nuxeo.fujixerox.validation.BatchValidator;
+
+/**
+ * Same as {@link ValidatePictureMetadataOp}, for a list of blobs validated
+ * concurrently (see {@link BatchValidator}). The result is a map of (file
+ * name => error message, empty if the blob is valid).
+ * <p>
+ * As for {@link ValidatePictureMetadataOp}, the operation does not check the
+ * input blobs are images.
+ *
+ * @since 5.9.5
+ */
+@Operation(id = ValidatePictureMetadataBatchOp.ID, category = Constants.CAT_BLOB, label = "Validate Picture Metadata (Batch)", description = "Validates the <code>x/y resolution</code> and <code>colorspace</code> of all the input blobs, concurrently. The (optionnal) <code>varResult</code> Context variable name will be filled with a map of file name => error message (empty if no error). If <code>failFast</code> is checked, the validation stops on the first invalid blob and the map contains only the blobs validated so far (default is <code>false</code>). If the <code>throwException</code> box is checked, an exception is raised if at least one blob does not pass the validation (default is <code>true</code>).")
+public class ValidatePictureMetadataBatchOp {
+
+    public static final String ID = "BlobList.ValidatePictureMetadata";
+
+    @Context
+    protected OperationContext ctx;
+
+    @Param(name = "varResult", required = false)
+    protected String varResult;
+
+    @Param(name = "failFast", required = false)
+    protected boolean failFast = false;
+
+    @Param(name = "throwException", required = false, values = { "true" })
+    protected boolean throwException = true;
+
+    @OperationMethod
+    public BlobList run(BlobList inBlobs) throws RecoverableClientException {
+
+        Map<String, String> results = BatchValidator.validateAll(inBlobs,
+                failFast);
+
+        if (varResult != null && !varResult.isEmpty()) {
+            ctx.put(varResult, results);
+        }
+
+        if (throwException) {
+            StringBuilder errorMsg = new StringBuilder();
+            int count = 0;
+            for (Map.Entry<String, String> oneResult : results.entrySet()) {
+                if (!oneResult.getValue().isEmpty()) {
+                    count += 1;
+                    errorMsg.append(count > 1 ? "\n" : "").append(
+                            oneResult.getKey()).append(": ").append(
+                            oneResult.getValue());
+                }
+            }
+            if (count > 0) {
+                String msg = count + " invalid image(s)\n" + errorMsg;
+                throw new RecoverableClientException(msg, msg, null);
+            }
+        }
+
+        return inBlobs;
+    }
+}
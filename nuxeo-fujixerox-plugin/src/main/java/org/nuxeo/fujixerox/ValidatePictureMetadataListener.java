@@ -26,10 +26,16 @@ import org.nuxeo.ecm.core.api.model.Property;
 import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventListener;
 import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionPersister;
 
 /**
  * This listener is called for "About t Create" and "Before modification". Nuxeo
  * Studio project is not involved here
+ * <p>
+ * In the "async" mode (<code>fujixerox.validation.mode</code>), the document
+ * is not validated here: It is saved in the "pending" state, and validated
+ * after the commit by {@link ValidatePictureMetadataWork} (scheduled on
+ * "Document Created" and "Document Modified").
  */
 public class ValidatePictureMetadataListener implements EventListener {
 
@@ -42,10 +48,22 @@ public class ValidatePictureMetadataListener implements EventListener {
         if (event.getContext() instanceof DocumentEventContext) {
             DocumentEventContext context = (DocumentEventContext) event.getContext();
             DocumentModel doc = context.getSourceDocument();
+            // Only the stored renditions changed
+            if (StoredPictureRenditionPersister.isRenditionsOnlySave(doc)) {
+                return;
+            }
             if (!doc.isImmutable() && doc.getType().equals("Picture")) {
 
                 // log.warn(event.getName());
 
+                if (DocumentEventTypes.DOCUMENT_CREATED.equals(event.getName())
+                        || DocumentEventTypes.DOCUMENT_UPDATED.equals(event.getName())) {
+                    if (ValidatePictureMetadataWork.isPending(doc)) {
+                        ValidatePictureMetadataWork.schedule(doc);
+                    }
+                    return;
+                }
+
                 // We check the binary only if
                 // -> We are in the "before creation" event
                 // -> or in "before modification" *and* the blob is dirty
@@ -54,7 +72,11 @@ public class ValidatePictureMetadataListener implements EventListener {
                         || (DocumentEventTypes.BEFORE_DOC_UPDATE.equals(event.getName()) && blobProp.isDirty())) {
 
                     Blob theBlob = (Blob) blobProp.getValue();
-                    if (theBlob != null) {
+                    if (theBlob != null
+                            && ValidatePictureMetadataWork.isAsync()) {
+                        // Validated after the commit
+                        ValidatePictureMetadataWork.markPending(doc);
+                    } else if (theBlob != null) {
                         String errorMsg = "";
                         errorMsg = ValidatePictureMetadata.validate(theBlob);
                         if (!errorMsg.isEmpty()) {
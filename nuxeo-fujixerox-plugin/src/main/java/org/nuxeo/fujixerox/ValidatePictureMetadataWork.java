@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox;
+
+import java.util.Calendar;
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionPersister;
+import org.nuxeo.fujixerox.validation.ValidationResult;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Deferred validation of the metadata of a picture (see
+ * {@link ValidatePictureMetadataListener}).
+ * <p>
+ * In the <code>async</code> mode (<code>fujixerox.validation.mode</code>),
+ * the document is saved right away, in the <code>pending</code> state
+ * (<code>fxv:status</code>, in the <code>FxPictureValidation</code> facet),
+ * and this work validates it once the transaction is committed. So the
+ * extraction of the metadata does not hold the database connection and
+ * locks of the transaction which creates or modifies the picture. Then:
+ * <ul>
+ * <li>A valid picture moves to the <code>valid</code> state</li>
+ * <li>An invalid picture moves to the <code>quarantined</code> state, with
+ * the error in <code>fxv:message</code>, or is deleted if
+ * <code>fujixerox.validation.async.onFailure</code> is <code>delete</code>
+ * </li>
+ * </ul>
+ * The status is saved with {@link StoredPictureRenditionPersister}: It is not
+ * a modification of the picture (no new version, <code>dc:modified</code>
+ * unchanged, ...).
+ * <p>
+ * The works run in the <code>fujixeroxValidation</code> queue.
+ *
+ * @since 5.9.5
+ */
+public class ValidatePictureMetadataWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    static private Log log = LogFactory.getLog(ValidatePictureMetadataWork.class);
+
+    public static final String MODE_PROPERTY = "fujixerox.validation.mode";
+
+    public static final String ON_FAILURE_PROPERTY = "fujixerox.validation.async.onFailure";
+
+    public static final String MODE_SYNC = "sync";
+
+    public static final String MODE_ASYNC = "async";
+
+    public static final String ON_FAILURE_QUARANTINE = "quarantine";
+
+    public static final String ON_FAILURE_DELETE = "delete";
+
+    public static final String CATEGORY = "fujixeroxValidation";
+
+    public static final String FACET = "FxPictureValidation";
+
+    public static final String STATUS_XPATH = "fxv:status";
+
+    public static final String MESSAGE_XPATH = "fxv:message";
+
+    public static final String VALIDATED_XPATH = "fxv:validated";
+
+    public static final String STATUS_PENDING = "pending";
+
+    public static final String STATUS_VALID = "valid";
+
+    public static final String STATUS_QUARANTINED = "quarantined";
+
+    public ValidatePictureMetadataWork(String inRepositoryName, String inDocId) {
+        super("fujixerox-validation-" + inRepositoryName + "-" + inDocId);
+        setDocument(inRepositoryName, inDocId);
+    }
+
+    public static boolean isAsync() {
+        return MODE_ASYNC.equalsIgnoreCase(Framework.getProperty(
+                MODE_PROPERTY, MODE_SYNC).trim());
+    }
+
+    public static boolean deleteOnFailure() {
+        return ON_FAILURE_DELETE.equals(Framework.getProperty(
+                ON_FAILURE_PROPERTY, ON_FAILURE_QUARANTINE).trim().toLowerCase(
+                Locale.ENGLISH));
+    }
+
+    /*
+     * Called before the document is saved (the facet is added if needed)
+     */
+    public static void markPending(DocumentModel inDoc) {
+
+        if (!inDoc.hasFacet(FACET)) {
+            inDoc.addFacet(FACET);
+        }
+        inDoc.setPropertyValue(STATUS_XPATH, STATUS_PENDING);
+        inDoc.setPropertyValue(MESSAGE_XPATH, null);
+        inDoc.setPropertyValue(VALIDATED_XPATH, null);
+    }
+
+    public static boolean isPending(DocumentModel inDoc) {
+        return inDoc.hasFacet(FACET)
+                && STATUS_PENDING.equals(inDoc.getPropertyValue(STATUS_XPATH));
+    }
+
+    /*
+     * The work starts once the current transaction is committed (the
+     * document must be visible to the session of the work)
+     */
+    public static void schedule(DocumentModel inDoc) {
+        Framework.getLocalService(WorkManager.class).schedule(
+                new ValidatePictureMetadataWork(inDoc.getRepositoryName(),
+                        inDoc.getId()), Scheduling.IF_NOT_SCHEDULED, true);
+    }
+
+    @Override
+    public String getTitle() {
+        return "Validation of the picture metadata: " + docId;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public void work() throws Exception {
+
+        setStatus("Validating");
+        new UnrestrictedSessionRunner(repositoryName) {
+            @Override
+            public void run() throws ClientException {
+                IdRef ref = new IdRef(docId);
+                if (!session.exists(ref)) {
+                    return;
+                }
+                DocumentModel doc = session.getDocument(ref);
+                // Already validated (scheduled twice), or no more in the
+                // async mode
+                if (!isPending(doc)) {
+                    return;
+                }
+                validate(doc);
+            }
+        }.runUnrestricted();
+        setStatus("Done");
+    }
+
+    protected void validate(DocumentModel inDoc) {
+
+        Blob blob = (Blob) inDoc.getPropertyValue("file:content");
+        ValidationResult result = blob == null ? new ValidationResult()
+                : ValidatePictureMetadata.check(blob);
+
+        if (result.isValid()) {
+            inDoc.setPropertyValue(STATUS_XPATH, STATUS_VALID);
+            inDoc.setPropertyValue(MESSAGE_XPATH, null);
+        } else if (deleteOnFailure()) {
+            log.warn("Deleting the picture " + inDoc.getId() + " ("
+                    + inDoc.getPathAsString() + "): " + result.getMessage());
+            inDoc.getCoreSession().removeDocument(inDoc.getRef());
+            return;
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("Picture " + inDoc.getId() + " quarantined: "
+                        + result.getMessage());
+            }
+            inDoc.setPropertyValue(STATUS_XPATH, STATUS_QUARANTINED);
+            inDoc.setPropertyValue(MESSAGE_XPATH, result.getMessage());
+        }
+        inDoc.setPropertyValue(VALIDATED_XPATH, Calendar.getInstance());
+        // Only the validation status changed: Not a modification of the
+        // picture for the user, and nothing for our listeners to do again
+        StoredPictureRenditionPersister.save(inDoc);
+    }
+}
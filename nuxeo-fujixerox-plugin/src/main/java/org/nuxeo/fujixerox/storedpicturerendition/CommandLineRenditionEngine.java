@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The default engine: runs the command line contribution of the same name as
+ * the rendition (see command-line-contrib.xml). It handles every rendition.
+ *
+ * @since 5.9.5
+ */
+public class CommandLineRenditionEngine implements
+        StoredPictureRenditionEngine {
+
+    public static final String NAME = "commandline";
+
+    protected volatile CommandLineExecutorService cles;
+
+    protected CommandLineExecutorService getCommandLineExecutorService() {
+        if (cles == null) {
+            cles = Framework.getService(CommandLineExecutorService.class);
+        }
+        return cles;
+    }
+
+    @Override
+    public boolean canRender(StoredPictureRenditionJob inJob) {
+        return true;
+    }
+
+    @Override
+    public Blob render(StoredPictureRenditionJob inJob)
+            throws CommandNotAvailable, CommandException {
+
+        String renditionName = inJob.getRenditionName();
+
+        // At most n ImageMagick processes at the same time on the node (see
+        // StoredPictureRenditionCommandLimiter)
+        ExecResult result;
+        try (StoredPictureRenditionCommandLimiter.Permit permit = StoredPictureRenditionCommandLimiter.getInstance().acquire(
+                renditionName)) {
+            result = getCommandLineExecutorService().execCommand(
+                    renditionName, inJob.getParams());
+        }
+
+        // Give up the whole loop in case of problem? => Business rule
+        // to be adapted
+        if (result.getError() != null) {
+            throw new CommandException("Failed to execute the command <"
+                    + renditionName + ">", result.getError());
+        }
+
+        if (!result.isSuccessful()) {
+            throw new CommandException("Failed to execute the command <"
+                    + renditionName + ">. Final command [ "
+                    + result.getCommandLine() + " ] returned with error "
+                    + result.getReturnCode());
+        }
+
+        return inJob.createResultBlob();
+    }
+}
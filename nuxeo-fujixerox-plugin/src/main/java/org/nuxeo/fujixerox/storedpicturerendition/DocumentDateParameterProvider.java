@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Formats a date field of the document. Options:
+ * <ul>
+ * <li><code>xpath</code>: The date field. Default is <code>dc:created</code></li>
+ * <li><code>format</code>: A <code>SimpleDateFormat</code> pattern. Default is
+ * <code>yyyy-MM-dd</code>. Text can be added in quotes, for example
+ * <code>'Created 'yyyy-MM-dd</code></li>
+ * <li><code>prefix</code>: Added before the date. Default is empty (notice
+ * the XML values are trimmed, so a trailing space is lost: Use the quoted
+ * text of the format instead)</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class DocumentDateParameterProvider implements
+        RenditionParameterProvider {
+
+    protected String xpath = "dc:created";
+
+    protected String prefix = "";
+
+    protected String format = "yyyy-MM-dd";
+
+    // SimpleDateFormat is not thread-safe: One instance per thread, instead of
+    // one instance per call
+    protected ThreadLocal<SimpleDateFormat> dateFormat;
+
+    @Override
+    public void init(Map<String, String> inOptions) {
+
+        if (inOptions.containsKey("xpath")) {
+            xpath = inOptions.get("xpath");
+        }
+        if (inOptions.containsKey("prefix")) {
+            prefix = inOptions.get("prefix");
+        }
+        if (inOptions.containsKey("format")) {
+            format = inOptions.get("format");
+        }
+        // Fail now if the pattern is invalid
+        new SimpleDateFormat(format);
+
+        dateFormat = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat(format);
+            }
+        };
+    }
+
+    @Override
+    public String getValue(DocumentModel inDoc) {
+
+        Calendar date = (Calendar) inDoc.getPropertyValue(xpath);
+        if (date == null) {
+            throw new ClientException("No value in <" + xpath
+                    + "> for document " + inDoc.getId());
+        }
+        return prefix + dateFormat.get().format(date.getTime());
+    }
+}
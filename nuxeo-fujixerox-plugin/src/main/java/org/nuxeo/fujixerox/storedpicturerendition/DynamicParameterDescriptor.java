@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A parameter whose value is calculated from the document by a
+ * {@link RenditionParameterProvider}.
+ *
+ * @since 5.9.5
+ */
+@XObject("dynamicParameter")
+public class DynamicParameterDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@class")
+    protected Class<? extends RenditionParameterProvider> providerClass;
+
+    @XNodeMap(value = "option", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> options = new HashMap<String, String>();
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends RenditionParameterProvider> getProviderClass() {
+        return providerClass;
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Pure-Java engine (ImageIO/Java2D), for the simple renditions: No process
+ * is forked, no temp. file is written except the result.
+ * <p>
+ * It handles only the renditions whose command line is:
+ *
+ * <pre>
+ * convert "#{sourceFilePath}[0]" [-resize WxH] "#{targetFilePath}"
+ * </pre>
+ *
+ * when the target is a JPEG or a PNG. As with ImageMagick, the image is
+ * resized to fit in WxH, keeping its aspect ratio. Everything else (other
+ * operations, PDF output, source formats ImageIO can't decode, CMYK JPEGs,
+ * ...) falls back to the command line.
+ * <p>
+ * The source is decoded with subsampling, to about twice the size of the
+ * rendition, so a large picture is never fully loaded in memory. If the
+ * decoded image would still be bigger than
+ * <code>fujixerox.storedrenditions.java.maxPixels</code> (default is
+ * 25,000,000), the command line is used.
+ *
+ * @since 5.9.5
+ */
+public class JavaImageRenditionEngine implements StoredPictureRenditionEngine {
+
+    static private Log log = LogFactory.getLog(JavaImageRenditionEngine.class);
+
+    public static final String NAME = "java";
+
+    // Same default as ImageMagick
+    public static final float JPEG_QUALITY = 0.92f;
+
+    public static final String MAX_PIXELS_PROPERTY = "fujixerox.storedrenditions.java.maxPixels";
+
+    public static final long DEFAULT_MAX_PIXELS = 25000000;
+
+    protected static final Pattern RESIZE_PATTERN = Pattern.compile("^-resize\\s+(\\d+)x(\\d+)$");
+
+    // -1 => read from the configuration, when first needed
+    protected volatile long maxPixels = -1;
+
+    public JavaImageRenditionEngine() {
+    }
+
+    /*
+     * 0 => no limit
+     */
+    public JavaImageRenditionEngine(long inMaxPixels) {
+        maxPixels = inMaxPixels;
+    }
+
+    protected long getMaxPixels() {
+        if (maxPixels < 0) {
+            maxPixels = Long.parseLong(Framework.getProperty(
+                    MAX_PIXELS_PROPERTY, "" + DEFAULT_MAX_PIXELS));
+        }
+        return maxPixels;
+    }
+
+    /*
+     * Keep at least twice the size of the rendition, so the down-scaling
+     * (see resize()) still has enough pixels to give a good quality
+     */
+    protected int getSubsampling(int inWidth, int inHeight, int inMaxWidth,
+            int inMaxHeight) {
+
+        double factor = Math.max((double) inWidth / inMaxWidth,
+                (double) inHeight / inMaxHeight);
+        return Math.max(1, (int) Math.floor(factor / 2));
+    }
+
+    protected String getFormat(StoredPictureRenditionJob inJob) {
+
+        String name = inJob.getTargetFile().getName().toLowerCase(Locale.ENGLISH);
+        if (name.endsWith(".jpeg") || name.endsWith(".jpg")) {
+            return "jpeg";
+        }
+        if (name.endsWith(".png")) {
+            return "png";
+        }
+        return null;
+    }
+
+    @Override
+    public boolean canRender(StoredPictureRenditionJob inJob) {
+
+        if (getFormat(inJob) == null) {
+            return false;
+        }
+        String operations = inJob.getOperations();
+        return operations != null
+                && (operations.isEmpty() || RESIZE_PATTERN.matcher(operations).matches());
+    }
+
+    @Override
+    public Blob render(StoredPictureRenditionJob inJob) throws IOException {
+
+        File source = new File(inJob.getParams().getParameters().get(
+                "sourceFilePath"));
+        Matcher m = RESIZE_PATTERN.matcher(inJob.getOperations());
+        boolean resize = m.matches();
+
+        BufferedImage image;
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            Iterator<ImageReader> readers = in == null ? null
+                    : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                // No reader for this format
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                // The first image, same as [0]
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = resize ? getSubsampling(width, height,
+                        Integer.parseInt(m.group(1)),
+                        Integer.parseInt(m.group(2))) : 1;
+                long pixels = (long) ((width + subsampling - 1) / subsampling)
+                        * ((height + subsampling - 1) / subsampling);
+                if (getMaxPixels() > 0 && pixels > getMaxPixels()) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(source + " is too large (" + width + "x"
+                                + height + ") for the java engine");
+                    }
+                    return null;
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            // For example "Unsupported Image Type" for CMYK JPEGs
+            if (log.isDebugEnabled()) {
+                log.debug("Cannot decode " + source + ": " + e.getMessage());
+            }
+            return null;
+        }
+
+        if (resize) {
+            image = resize(image, Integer.parseInt(m.group(1)),
+                    Integer.parseInt(m.group(2)));
+        }
+
+        String format = getFormat(inJob);
+        if ("jpeg".equals(format)) {
+            writeJpeg(toRGB(image), inJob.getTargetFile());
+        } else if (!ImageIO.write(image, format, inJob.getTargetFile())) {
+            return null;
+        }
+
+        return inJob.createResultBlob();
+    }
+
+    /*
+     * Fit in inMaxWidth x inMaxHeight, keeping the aspect ratio (this is what
+     * ImageMagick does with -resize WxH)
+     */
+    protected BufferedImage resize(BufferedImage inImage, int inMaxWidth,
+            int inMaxHeight) {
+
+        int width = inImage.getWidth();
+        int height = inImage.getHeight();
+        double ratio = Math.min((double) inMaxWidth / width,
+                (double) inMaxHeight / height);
+        int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+
+        // Down-scaling in several steps (halving the size at each step) gives
+        // a much better quality than one single bilinear step
+        BufferedImage result = inImage;
+        int w = width;
+        int h = height;
+        do {
+            w = Math.max(targetWidth, w > targetWidth * 2 ? w / 2
+                    : targetWidth);
+            h = Math.max(targetHeight, h > targetHeight * 2 ? h / 2
+                    : targetHeight);
+            result = scale(result, w, h);
+        } while (w != targetWidth || h != targetHeight);
+
+        return result;
+    }
+
+    protected BufferedImage scale(BufferedImage inImage, int inWidth,
+            int inHeight) {
+
+        int type = inImage.getTransparency() == BufferedImage.OPAQUE ? BufferedImage.TYPE_INT_RGB
+                : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage scaled = new BufferedImage(inWidth, inHeight, type);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                    RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(inImage, 0, 0, inWidth, inHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /*
+     * JPEG has no alpha channel
+     */
+    protected BufferedImage toRGB(BufferedImage inImage) {
+
+        if (inImage.getType() == BufferedImage.TYPE_INT_RGB) {
+            return inImage;
+        }
+        BufferedImage rgb = new BufferedImage(inImage.getWidth(),
+                inImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            g.drawImage(inImage, 0, 0, Color.WHITE, null);
+        } finally {
+            g.dispose();
+        }
+        return rgb;
+    }
+
+    protected void writeJpeg(BufferedImage inImage, File inTarget)
+            throws IOException {
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer available");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(inTarget)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(inImage, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
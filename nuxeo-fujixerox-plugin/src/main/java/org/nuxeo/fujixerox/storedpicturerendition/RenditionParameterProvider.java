@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Calculates the value of a command line parameter which depends on the
+ * document (see the <code>dynamicParameter</code> element of the
+ * <code>renditionPlans</code> extension point).
+ * <p>
+ * One instance is created per rendition plan, when the plans are compiled,
+ * and is then called concurrently: Implementations must be thread-safe.
+ *
+ * @since 5.9.5
+ */
+public interface RenditionParameterProvider {
+
+    /*
+     * Called once, with the options of the XML contribution
+     */
+    void init(Map<String, String> inOptions);
+
+    String getValue(DocumentModel inDoc);
+}
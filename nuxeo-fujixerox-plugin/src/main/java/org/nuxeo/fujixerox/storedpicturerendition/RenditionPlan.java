@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
+
+/**
+ * Immutable, compiled, version of a {@link RenditionPlanDescriptor}, merged
+ * with its rendition definition and its command line. Plans are compiled once
+ * by {@link StoredPictureRenditionComponent}, so building a rendition does not
+ * need any lookup.
+ *
+ * @since 5.9.5
+ */
+public final class RenditionPlan {
+
+    public static final String POLICY_EAGER = "eager";
+
+    public static final String POLICY_LAZY = "lazy";
+
+    protected static final Pattern OPERATIONS_PATTERN = Pattern.compile("^\\s*\"#\\{sourceFilePath\\}\\[0\\]\"(.*)\"#\\{targetFilePath\\}\"\\s*$");
+
+    protected final String name;
+
+    protected final String extension;
+
+    protected final String contentType;
+
+    protected final String engineName;
+
+    protected final String version;
+
+    protected final String policy;
+
+    protected final String commandLine;
+
+    protected final String operations;
+
+    protected final Map<String, String> staticParameters;
+
+    protected final Map<String, RenditionParameterProvider> dynamicParameters;
+
+    public RenditionPlan(String inName, String inExtension,
+            String inContentType, String inEngineName, String inVersion,
+            String inPolicy, CommandLineDescriptor inCommand,
+            Map<String, String> inStaticParameters,
+            Map<String, RenditionParameterProvider> inDynamicParameters) {
+
+        name = inName;
+        extension = inExtension;
+        contentType = inContentType;
+        engineName = inEngineName;
+        version = inVersion;
+        policy = inPolicy;
+        staticParameters = Collections.unmodifiableMap(new LinkedHashMap<String, String>(
+                inStaticParameters));
+        dynamicParameters = Collections.unmodifiableMap(new LinkedHashMap<String, RenditionParameterProvider>(
+                inDynamicParameters));
+
+        if (inCommand == null) {
+            commandLine = "";
+            operations = null;
+        } else {
+            commandLine = inCommand.getCommand() + " "
+                    + inCommand.getParametersString();
+            Matcher m = OPERATIONS_PATTERN.matcher(inCommand.getParametersString());
+            operations = "convert".equals(inCommand.getCommand())
+                    && m.matches() ? m.group(1).trim() : null;
+        }
+    }
+
+    /*
+     * The name of the rendition, of the command line and of the view in
+     * picture:views
+     */
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * With the leading dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getEngineName() {
+        return engineName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    /*
+     * A lazy rendition is not built with the others, but on the first request
+     * (see StoredPictureRenditionProvider)
+     */
+    public boolean isLazy() {
+        return POLICY_LAZY.equals(policy);
+    }
+
+    /*
+     * The command and its parameter string, as declared
+     */
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    /*
+     * The ImageMagick operations, if the command line has the usual form:
+     *     convert "#{sourceFilePath}[0]" ...operations... "#{targetFilePath}"
+     * null if the command line has another form.
+     */
+    public String getOperations() {
+        return operations;
+    }
+
+    public Map<String, String> getStaticParameters() {
+        return staticParameters;
+    }
+
+    /*
+     * The parameters of the command line, except sourceFilePath and
+     * targetFilePath
+     */
+    public CmdParameters createParameters(DocumentModel inDoc) {
+
+        CmdParameters params = new CmdParameters();
+        for (Map.Entry<String, String> oneParam : staticParameters.entrySet()) {
+            params.addNamedParameter(oneParam.getKey(), oneParam.getValue());
+        }
+        for (Map.Entry<String, RenditionParameterProvider> oneParam : dynamicParameters.entrySet()) {
+            params.addNamedParameter(oneParam.getKey(),
+                    oneParam.getValue().getValue(inDoc));
+        }
+        return params;
+    }
+}
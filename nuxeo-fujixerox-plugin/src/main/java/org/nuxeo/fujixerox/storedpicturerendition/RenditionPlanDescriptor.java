@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * How to build a stored rendition: The extension of the output (this is how
+ * ImageMagick knows the output format), the static parameters of the command
+ * line and the parameters calculated from the document.
+ * <p>
+ * The name must be the name of the rendition definition, which is also the
+ * name of the command line (see rendition-contrib.xml and
+ * command-line-contrib.xml)
+ *
+ * @since 5.9.5
+ */
+@XObject("renditionPlan")
+public class RenditionPlanDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNode("@extension")
+    protected String extension;
+
+    // Default is the engine set in the configuration (see
+    // StoredPictureRenditionEngineRegistry)
+    @XNode("@engine")
+    protected String engine;
+
+    // Default is the version set in the configuration, or "1"
+    @XNode("@version")
+    protected String version;
+
+    // "eager" (built when the picture is created or modified) or "lazy"
+    // (built on the first request). Default is the policy set in the
+    // configuration, or "eager"
+    @XNode("@policy")
+    protected String policy;
+
+    @XNodeMap(value = "parameters/parameter", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> parameters = new HashMap<String, String>();
+
+    @XNodeList(value = "dynamicParameter", type = ArrayList.class, componentType = DynamicParameterDescriptor.class)
+    protected List<DynamicParameterDescriptor> dynamicParameters = new ArrayList<DynamicParameterDescriptor>();
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public List<DynamicParameterDescriptor> getDynamicParameters() {
+        return dynamicParameters;
+    }
+}
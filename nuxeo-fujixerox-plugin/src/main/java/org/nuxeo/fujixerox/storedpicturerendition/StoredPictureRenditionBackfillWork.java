@@ -0,0 +1,595 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.fujixerox.BlobDigestHelper;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Rebuilds the stored renditions of all the documents returned by a NXQL
+ * query, typically after a rendition definition was added or changed. Only
+ * the renditions (see {@link StoredPictureRenditionBuilder}) are rebuilt:
+ * The picture views and the validation are not run again.
+ * <p>
+ * The documents are processed by batches, in the order of their id (so the
+ * query is paginated on the id, not on an offset):
+ * <ul>
+ * <li>Each batch is split between <code>parallelism</code> threads. Each
+ * document is processed in its own short transaction, so a large batch never
+ * hits the transaction timeout, and a failure only rolls back its own
+ * document</li>
+ * <li>At most <code>maxPerSecond</code> documents are processed per second (0
+ * for no limit)</li>
+ * <li>Once a batch is done, the id of its last document is saved in a
+ * checkpoint file (in the data directory of the server). If the batch was
+ * interrupted, the checkpoint only moves past the documents processed without
+ * a gap, so nothing is skipped when the backfill resumes. If the server is
+ * stopped, the backfill resumes from there when the server starts (see
+ * {@link #resumePending()}), or when the same backfill is started again</li>
+ * </ul>
+ * A document which fails is logged and skipped, it does not stop the
+ * backfill.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionBackfillWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionBackfillWork.class);
+
+    public static final String CATEGORY = "storedPictureRenditionBackfill";
+
+    public static final String AUTO_RESUME_PROPERTY = "fujixerox.storedrenditions.backfill.autoResume";
+
+    protected static final String CHECKPOINT_DIR = "fujixerox-backfill";
+
+    protected static final Pattern SELECT_PATTERN = Pattern.compile(
+            "^\\s*SELECT\\s+.*?\\s+FROM\\s+", Pattern.CASE_INSENSITIVE
+                    | Pattern.DOTALL);
+
+    protected static final Pattern WHERE_PATTERN = Pattern.compile(
+            "\\s+WHERE\\s+", Pattern.CASE_INSENSITIVE);
+
+    protected static final Pattern ORDER_BY_PATTERN = Pattern.compile(
+            "\\s+ORDER\\s+BY\\s+.*$", Pattern.CASE_INSENSITIVE
+                    | Pattern.DOTALL);
+
+    protected final String backfillId;
+
+    protected final String query;
+
+    protected final int batchSize;
+
+    protected final int parallelism;
+
+    protected final int maxPerSecond;
+
+    protected final boolean force;
+
+    protected String lastId;
+
+    protected long processed;
+
+    protected long errors;
+
+    public StoredPictureRenditionBackfillWork(String inRepositoryName,
+            String inBackfillId, String inQuery, int inBatchSize,
+            int inParallelism, int inMaxPerSecond, boolean inForce) {
+
+        super("fujixerox-backfill-" + inBackfillId);
+        repositoryName = inRepositoryName;
+        backfillId = inBackfillId;
+        query = inQuery;
+        batchSize = Math.max(1, inBatchSize);
+        parallelism = Math.max(1, inParallelism);
+        maxPerSecond = Math.max(0, inMaxPerSecond);
+        force = inForce;
+    }
+
+    /*
+     * The default id of a backfill: Same query => same backfill, so starting
+     * it again resumes it.
+     */
+    public static String getDefaultBackfillId(String inQuery) {
+        return BlobDigestHelper.fingerprint(inQuery).substring(0, 16);
+    }
+
+    public static void schedule(StoredPictureRenditionBackfillWork inWork) {
+        Framework.getLocalService(WorkManager.class).schedule(inWork,
+                Scheduling.IF_NOT_SCHEDULED);
+    }
+
+    /*
+     * Schedules the backfills stopped before their end (server shutdown). Called
+     * when the application is started.
+     */
+    public static void resumePending() {
+
+        if (!Boolean.parseBoolean(Framework.getProperty(AUTO_RESUME_PROPERTY,
+                "true"))) {
+            return;
+        }
+        File[] files = getCheckpointDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File oneFile : files) {
+            if (!oneFile.getName().endsWith(".properties")) {
+                continue;
+            }
+            try {
+                Properties p = readProperties(oneFile);
+                StoredPictureRenditionBackfillWork work = new StoredPictureRenditionBackfillWork(
+                        p.getProperty("repository"),
+                        p.getProperty("backfillId"), p.getProperty("query"),
+                        Integer.parseInt(p.getProperty("batchSize")),
+                        Integer.parseInt(p.getProperty("parallelism")),
+                        Integer.parseInt(p.getProperty("maxPerSecond")),
+                        Boolean.parseBoolean(p.getProperty("force")));
+                log.info("Resuming the backfill of the stored renditions <"
+                        + work.backfillId + "> after "
+                        + p.getProperty("lastId"));
+                schedule(work);
+            } catch (IOException | RuntimeException e) {
+                log.error("Cannot resume the backfill " + oneFile, e);
+            }
+        }
+    }
+
+    @Override
+    public String getTitle() {
+        return "Backfill of the stored renditions: " + query;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    // We handle the transactions ourselves, one per document
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    @Override
+    public void work() throws Exception {
+
+        loadCheckpoint();
+        setStatus("Running");
+
+        Throttle throttle = new Throttle(maxPerSecond);
+        ExecutorService pool = parallelism > 1 ? Executors.newFixedThreadPool(
+                parallelism, new StoredPictureRenditionExecutor.NamedThreadFactory(
+                        "fujixerox-backfill")) : null;
+        try {
+            List<String> ids;
+            while (!(ids = nextBatch()).isEmpty()) {
+
+                if (isSuspending()) {
+                    // The checkpoint is already saved
+                    suspended();
+                    return;
+                }
+
+                int done = processBatch(ids, pool, throttle);
+
+                if (done > 0) {
+                    lastId = ids.get(done - 1);
+                }
+                saveCheckpoint();
+                setStatus(processed + " documents, " + errors + " errors");
+
+                if (done < ids.size()) {
+                    // Interrupted (server shutdown) or suspended: We resume
+                    // after the last checkpoint
+                    if (isSuspending()) {
+                        suspended();
+                    }
+                    return;
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+
+        deleteCheckpoint();
+        setStatus("Done");
+        log.info("Backfill of the stored renditions <" + backfillId
+                + "> done: " + processed + " documents, " + errors
+                + " errors");
+    }
+
+    /*
+     * Returns the number of documents processed (committed or failed) from
+     * the beginning of inIds, without a gap: The documents after are
+     * processed again when the backfill resumes.
+     */
+    protected int processBatch(List<String> inIds, ExecutorService inPool,
+            final Throttle inThrottle) throws Exception {
+
+        final boolean[] done = new boolean[inIds.size()];
+        if (inPool == null) {
+            processChunk(inIds, 0, done, inThrottle);
+        } else {
+            int chunkSize = (inIds.size() + parallelism - 1) / parallelism;
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < inIds.size(); i += chunkSize) {
+                final List<String> chunk = inIds.subList(i,
+                        Math.min(i + chunkSize, inIds.size()));
+                final int offset = i;
+                futures.add(inPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        processChunk(chunk, offset, done, inThrottle);
+                    }
+                }));
+            }
+            for (Future<?> oneFuture : futures) {
+                oneFuture.get();
+            }
+        }
+
+        int count = 0;
+        while (count < done.length && done[count]) {
+            count++;
+        }
+        return count;
+    }
+
+    /*
+     * inDone[inOffset + i] is set once the document inIds[i] is processed.
+     * Each chunk writes its own part of inDone, and the caller reads it once
+     * the chunks are over.
+     */
+    protected void processChunk(List<String> inIds, int inOffset,
+            boolean[] inDone, Throttle inThrottle) {
+
+        for (int i = 0; i < inIds.size(); i++) {
+            if (Thread.currentThread().isInterrupted() || isSuspending()) {
+                break;
+            }
+            inThrottle.acquire();
+            boolean committed = processDocument(inIds.get(i));
+            synchronized (this) {
+                if (committed) {
+                    processed++;
+                } else {
+                    errors++;
+                }
+            }
+            inDone[inOffset + i] = true;
+        }
+    }
+
+    /*
+     * One short transaction per document. Returns true if the renditions were
+     * rebuilt and committed. An error (or a transaction marked rollback-only
+     * by someone else) is logged, and only this document is rolled back.
+     *
+     * The lease of the document (see StoredPictureRenditionLeases) is taken
+     * before the transaction and released once it is committed. When another
+     * node is building the document, it is handed over to
+     * StoredPictureRenditionWork, which waits for the lease.
+     */
+    protected boolean processDocument(final String inId) {
+
+        String lease = StoredPictureRenditionLeases.acquire(repositoryName,
+                inId);
+        if (lease == null) {
+            log.info("The stored renditions of " + inId
+                    + " are being built by another node => scheduled");
+            StoredPictureRenditionWork.schedule(repositoryName, inId,
+                    StoredPictureRenditionLanes.BULK);
+            return true;
+        }
+
+        try {
+            return processDocumentInTransaction(inId);
+        } finally {
+            StoredPictureRenditionLeases.release(repositoryName, inId, lease);
+        }
+    }
+
+    protected boolean processDocumentInTransaction(final String inId) {
+
+        boolean committed = false;
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    try {
+                        rebuild(session.getDocument(new IdRef(inId)));
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new ClientException(e);
+                    }
+                }
+            }.runUnrestricted();
+            committed = !TransactionHelper.isTransactionMarkedRollback();
+            if (!committed) {
+                log.warn("Transaction rolled back, the stored renditions of "
+                        + inId + " were not rebuilt");
+            }
+        } catch (RuntimeException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            log.warn("Cannot rebuild the stored renditions of " + inId, e);
+        } finally {
+            if (txStarted) {
+                try {
+                    TransactionHelper.commitOrRollbackTransaction();
+                } catch (RuntimeException e) {
+                    committed = false;
+                    log.warn("Cannot commit the stored renditions of " + inId,
+                            e);
+                }
+            }
+        }
+        return committed;
+    }
+
+    protected void rebuild(DocumentModel inDoc) throws Exception {
+
+        if (inDoc.isImmutable() || !inDoc.hasSchema("picture")) {
+            return;
+        }
+        try (StoredPictureRenditionBuilder builder = new StoredPictureRenditionBuilder(
+                inDoc)) {
+            builder.buildAvailableRenditions(force);
+            if (inDoc.isDirty()) {
+                StoredPictureRenditionPersister.save(inDoc);
+            }
+        }
+    }
+
+    /*
+     * The ids of the next batch, after lastId
+     */
+    protected List<String> nextBatch() {
+
+        final List<String> ids = new ArrayList<String>();
+        final String pageQuery = buildPageQuery(query, lastId);
+        runInTransaction(new UnrestrictedSessionRunner(repositoryName) {
+            @Override
+            public void run() throws ClientException {
+                IterableQueryResult result = session.queryAndFetch(
+                        pageQuery, NXQL.NXQL);
+                try {
+                    for (Map<String, Serializable> oneRow : result) {
+                        ids.add((String) oneRow.get(NXQL.ECM_UUID));
+                        if (ids.size() >= batchSize) {
+                            break;
+                        }
+                    }
+                } finally {
+                    result.close();
+                }
+            }
+        });
+        return ids;
+    }
+
+    /*
+     * SELECT * FROM Picture WHERE xxx ORDER BY yyy
+     * =>
+     * SELECT ecm:uuid FROM Picture WHERE (xxx) AND ecm:uuid > 'lastId'
+     * ORDER BY ecm:uuid
+     */
+    protected static String buildPageQuery(String inQuery, String inLastId) {
+
+        String q = ORDER_BY_PATTERN.matcher(inQuery.trim()).replaceFirst("");
+        Matcher select = SELECT_PATTERN.matcher(q);
+        if (!select.find()) {
+            throw new ClientException("Not a NXQL SELECT query: " + inQuery);
+        }
+        String from = q.substring(select.end());
+
+        String types, where;
+        Matcher m = WHERE_PATTERN.matcher(from);
+        if (m.find()) {
+            types = from.substring(0, m.start());
+            where = "(" + from.substring(m.end()) + ")";
+        } else {
+            types = from;
+            where = null;
+        }
+        if (inLastId != null) {
+            String afterLast = NXQL.ECM_UUID + " > "
+                    + NXQL.escapeString(inLastId);
+            where = where == null ? afterLast : where + " AND " + afterLast;
+        }
+
+        return "SELECT " + NXQL.ECM_UUID + " FROM " + types
+                + (where == null ? "" : " WHERE " + where) + " ORDER BY "
+                + NXQL.ECM_UUID;
+    }
+
+    protected void runInTransaction(UnrestrictedSessionRunner inRunner) {
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            inRunner.runUnrestricted();
+        } catch (RuntimeException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    protected static File getCheckpointDir() {
+        Environment env = Environment.getDefault();
+        File parent = env == null || env.getData() == null ? new File(
+                System.getProperty("java.io.tmpdir")) : env.getData();
+        return new File(parent, CHECKPOINT_DIR);
+    }
+
+    protected File getCheckpointFile() {
+        return new File(getCheckpointDir(), backfillId + ".properties");
+    }
+
+    protected static Properties readProperties(File inFile)
+            throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(inFile)) {
+            p.load(in);
+        }
+        return p;
+    }
+
+    /*
+     * Resume only if the checkpoint is for the same query
+     */
+    protected void loadCheckpoint() throws IOException {
+
+        File f = getCheckpointFile();
+        if (!f.exists()) {
+            return;
+        }
+        Properties p = readProperties(f);
+        if (!query.equals(p.getProperty("query"))) {
+            log.warn("Checkpoint " + f + " is for another query, ignored");
+            return;
+        }
+        lastId = p.getProperty("lastId");
+        processed = Long.parseLong(p.getProperty("processed", "0"));
+        errors = Long.parseLong(p.getProperty("errors", "0"));
+        log.info("Backfill <" + backfillId + "> resumed after " + lastId
+                + " (" + processed + " documents already processed)");
+    }
+
+    protected void saveCheckpoint() throws IOException {
+
+        Properties p = new Properties();
+        p.setProperty("backfillId", backfillId);
+        p.setProperty("repository", repositoryName);
+        p.setProperty("query", query);
+        p.setProperty("batchSize", Integer.toString(batchSize));
+        p.setProperty("parallelism", Integer.toString(parallelism));
+        p.setProperty("maxPerSecond", Integer.toString(maxPerSecond));
+        p.setProperty("force", Boolean.toString(force));
+        if (lastId != null) {
+            p.setProperty("lastId", lastId);
+        }
+        p.setProperty("processed", Long.toString(processed));
+        p.setProperty("errors", Long.toString(errors));
+
+        // Write, then rename, so a crash never leaves a partial checkpoint
+        File f = getCheckpointFile();
+        f.getParentFile().mkdirs();
+        File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "Backfill of the stored renditions");
+        }
+        Files.move(tmp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected void deleteCheckpoint() {
+        getCheckpointFile().delete();
+    }
+
+    public String getBackfillId() {
+        return backfillId;
+    }
+
+    public synchronized long getProcessed() {
+        return processed;
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * At most n calls to acquire() per second, shared by the threads of the
+     * backfill.
+     */
+    protected static class Throttle {
+
+        protected final long intervalNanos;
+
+        protected long next = System.nanoTime();
+
+        protected Throttle(int inMaxPerSecond) {
+            intervalNanos = inMaxPerSecond > 0 ? 1000000000L / inMaxPerSecond
+                    : 0;
+        }
+
+        protected void acquire() {
+            if (intervalNanos == 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (next < now) {
+                    next = now;
+                }
+                wait = next - now;
+                next += intervalNanos;
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ClientException("Interrupted", e);
+                }
+            }
+        }
+    }
+}
@@ -16,35 +16,28 @@
  */
 package org.nuxeo.fujixerox.storedpicturerendition;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
-import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
-import org.nuxeo.ecm.platform.commandline.executor.api.CommandAvailability;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
-import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
-import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
-import org.nuxeo.ecm.platform.picture.api.BlobHelper;
-import org.nuxeo.ecm.platform.picture.api.ImageInfo;
-import org.nuxeo.ecm.platform.picture.api.ImagingService;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
 import org.nuxeo.ecm.platform.picture.api.PictureViewImpl;
 import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
-import org.nuxeo.ecm.platform.rendition.service.RenditionDefinition;
-import org.nuxeo.ecm.platform.rendition.service.RenditionService;
-import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.fujixerox.BlobDigestHelper;
+import org.nuxeo.fujixerox.BlobProbe;
+import org.nuxeo.fujixerox.BlobProbeRegistry;
 
 /**
  * This class builds one rendition for each XML rendition definition which
@@ -79,183 +72,231 @@ import org.nuxeo.runtime.api.Framework;
  * <li>"OriginalJpeg"</li>
  * </ul>
  * <p>
+ * The renditions can also be stored in a dedicated schema, loaded only when
+ * a rendition is requested (see {@link StoredPictureRenditionStorage}).
+ * <p>
+ * The temporary files are created in a
+ * {@link StoredPictureRenditionScratchSpace}. <b>The builder must be closed
+ * once the document has been saved</b> (the blobs reference these files until
+ * they are stored in the repository)
  *
  * @since 5.9.5
  */
-public class StoredPictureRenditionBuilder {
+public class StoredPictureRenditionBuilder implements Closeable {
 
     static private Log log = LogFactory.getLog(StoredPictureRenditionBuilder.class);
 
     static public String TEMP_FILE_PREFIX = "RendHdler-";
 
-    protected DateFormat yyyyMMdd = new SimpleDateFormat("yyyy-MM-dd");
+    protected DocumentModel doc;
+
+    protected Blob mainBlob;
 
-    // We cache the availability here
-    static protected HashMap<String, Boolean> availableCommandLines = new HashMap<String, Boolean>();
+    protected String sourceDigest;
 
-    protected DocumentModel doc;
+    protected StoredPictureRenditionScratchSpace.Build scratch;
 
     public StoredPictureRenditionBuilder(DocumentModel inDoc) {
 
         doc = inDoc;
     }
 
-    protected boolean isCommanLineAvailable(String inName) {
+    protected Blob getMainBlob() {
+        if (mainBlob == null) {
+            mainBlob = doc.getAdapter(BlobHolder.class).getBlob();
+        }
+        return mainBlob;
+    }
 
-        Boolean isAvailable = availableCommandLines.get(inName);
+    /*
+     * Opened on the first call, for all the renditions which may be built by
+     * this builder: The estimate of the disk usage is one copy of the source
+     * plus, for each rendition, the size of the source.
+     */
+    protected StoredPictureRenditionScratchSpace.Build getScratch(
+            int inRenditionCount) {
+        if (scratch == null) {
+            long sourceSize = Math.max(0, getMainBlob().getLength());
+            scratch = StoredPictureRenditionScratchSpace.getInstance().open(
+                    sourceSize * (inRenditionCount + 1));
+        }
+        return scratch;
+    }
 
-        if (isAvailable == null) {
-            CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
+    /*
+     * Deletes the temporary files. Must be called once the document has been
+     * saved (or if the build failed)
+     */
+    @Override
+    public void close() {
+        if (scratch != null) {
+            scratch.close();
+            scratch = null;
+        }
+    }
 
-            CommandAvailability ca = cles.getCommandAvailability(inName);
+    protected String getSourceDigest() throws IOException {
+        if (sourceDigest == null) {
+            sourceDigest = BlobDigestHelper.getDigest(getMainBlob());
+        }
+        return sourceDigest;
+    }
 
-            isAvailable = ca.isAvailable();
-            availableCommandLines.put(inName, isAvailable);
+    /*
+     * Everything the result of a rendition depends on: The source binary, the
+     * command line and its parameters, and the version of the definition.
+     * This fingerprint is stored with the rendition (in the "tag" field of the
+     * view)
+     */
+    protected String getRenditionFingerprint(StoredPictureRenditionJob inJob)
+            throws IOException {
 
-        }
+        return BlobDigestHelper.fingerprint(getSourceDigest(),
+                inJob.getRenditionName(), inJob.getParametersFingerprint(),
+                inJob.getPlan().getVersion());
+    }
+
+    protected boolean isUpToDate(StoredPictureRenditionJob inJob) {
 
-        return isAvailable.booleanValue();
+        PictureView view = StoredPictureRenditionStorage.getRendition(doc,
+                inJob.getRenditionName());
+        return view != null && view.getBlob() != null
+                && inJob.getFingerprint().equals(view.getTag());
+    }
+
+    /*
+     * The availability is kept (and refreshed) by
+     * StoredPictureRenditionComponent
+     */
+    protected boolean isCommanLineAvailable(String inName) {
+        return StoredPictureRenditionComponent.getInstance().isCommandLineAvailable(
+                inName);
     }
 
     /*
      * Utility getting the filePath of the blob if possible, to avoid creating a
      * temp. document in all cases. In our context, we should be pretty
      * confident we have a StorageBlob, but let's be prepared for wider context.
+     * The file is resolved once per binary (see BlobProbe).
      */
     protected String getFilePath(Blob inBlob) throws IOException {
         // We try to directly get the full path of the binary, if possible
-        String filePath = "";
-
-        try {
-            File f = BlobHelper.getFileFromBlob(inBlob);
-            filePath = f.getAbsolutePath();
-        } catch (Exception e) {
-            filePath = "";
-        }
-
-        if (filePath.isEmpty()) {
-            File tempFile = File.createTempFile(TEMP_FILE_PREFIX, "");
-            inBlob.transferTo(tempFile);
-            filePath = tempFile.getAbsolutePath();
-            tempFile.deleteOnExit();
-            Framework.trackFile(tempFile, this);
+        File f = BlobProbeRegistry.getProbe(inBlob).getFile();
+        if (f != null) {
+            return f.getAbsolutePath();
         }
 
-        return filePath;
+        File tempFile = getScratch(0).createFile(TEMP_FILE_PREFIX, "");
+        inBlob.transferTo(tempFile);
+        return tempFile.getAbsolutePath();
     }
 
     public void buildAvailableRenditions() throws CommandNotAvailable,
             IOException, CommandException {
+        buildAvailableRenditions(false);
+    }
+
+    /*
+     * Unless inForce is true, a rendition is rebuilt only if it is missing or
+     * stale: Each stored rendition has a fingerprint (see
+     * getRenditionFingerprint()) and if the fingerprint of the rendition we
+     * are about to build is the same, there is nothing to do.
+     */
+    public void buildAvailableRenditions(boolean inForce)
+            throws CommandNotAvailable, IOException, CommandException {
 
         // Build renditions declared by our PictureRenditionProvider (see
-        // rendition-contrib.xml)
-        // IMPORTANT: We must set the targetFilePath with a correct extension,
-        // so ImageMagick can convert to jpeg, pdf, ...
-        RenditionService renditionService = Framework.getService(RenditionService.class);
-        List<RenditionDefinition> defs = renditionService.getDeclaredRenditionDefinitionsForProviderType(StoredPictureRenditionProvider.class.getSimpleName());
-        for (RenditionDefinition oneDef : defs) {
-            // IMPORTANT TO REMEMBER: The name of the rendition is the same as
-            // the name of the command line contribution
-            String renditionName = oneDef.getName();
-
-            if (isCommanLineAvailable(renditionName)) {
-
-                // We need to set the parameters as expected by the command line
-                // In all cases, we need to setup the sourceFilePath and the
-                // targetFilePathNoExtension parameters
-                Blob mainBlob = doc.getAdapter(BlobHolder.class).getBlob();
-                String sourceFilePath = getFilePath(mainBlob);
-
-                CmdParameters params = new CmdParameters();
-                params.addNamedParameter("sourceFilePath", sourceFilePath);
-
-                // Now some more specific parameters
-                File tempDestFile;
-                String destFileExtension;
-                switch (renditionName) {
-
-                case "jpeg200x200":
-                    destFileExtension = ".jpeg";
-                    break;
-
-                case "jpegWatermarked":
-                    destFileExtension = ".jpeg";
-                    // This is an example. The values could have been hard-coded
-                    // in the command line. The command line definition is:
-                    // "#{sourceFilePath}" -gravity SouthWest -fill #{textColor}
-                    // -stroke #{strokeColor} -strokewidth #{strokeWidth}
-                    // -pointsize #{textSize} -annotate
-                    // #{textRotation}x#{textRotation}+#{xOffset}+#{yOffset}
-                    // #{textValue} "#{targetFilePath}.jpeg"
-                    params.addNamedParameter("gravity", "SouthWest");
-                    params.addNamedParameter("textColor", "red");
-                    params.addNamedParameter("strokeColor", "black");
-                    params.addNamedParameter("strokeWidth", "1");
-                    params.addNamedParameter("textSize", "24");
-                    params.addNamedParameter("textRotation", "0");
-                    params.addNamedParameter("xOffset", "0");
-                    params.addNamedParameter("yOffset", "0");
-                    Calendar creationDate = (Calendar) doc.getPropertyValue("dc:created");
-                    params.addNamedParameter(
-                            "textValue",
-                            "Created "
-                                    + new SimpleDateFormat("yyyy-MM-dd").format(creationDate.getTime()));
-                    break;
-
-                case "imageAsPDF":
-                    destFileExtension = ".pdf";
-                    break;
-
-                // . . . . . . . . . . . . . .
-                // . . . other renditions . . .
-                // . . . . . . . . . . . . . .
-
-                default:
-                    throw new ClientException("Rendition <" + renditionName
-                            + "> not handled in the code.");
-                }
+        // rendition-contrib.xml). They have been compiled into plans, with
+        // their parameters, when the server started.
+        // The lazy renditions are built on the first request only (see
+        // StoredPictureRenditionProvider)
+        // Renditions stored before the storage was changed are moved first,
+        // so they are not built again (see StoredPictureRenditionStorage)
+        StoredPictureRenditionStorage.migrate(doc);
+        List<RenditionPlan> plans = new ArrayList<RenditionPlan>();
+        for (RenditionPlan onePlan : StoredPictureRenditionComponent.getInstance().getRenditionPlans()) {
+            if (onePlan.isLazy()) {
+                removeIfStale(onePlan, inForce);
+            } else {
+                plans.add(onePlan);
+            }
+        }
+        buildRenditions(plans, inForce);
+    }
 
-                tempDestFile = File.createTempFile(TEMP_FILE_PREFIX,
-                        destFileExtension);
-                tempDestFile.deleteOnExit();
-                Framework.trackFile(tempDestFile, this);
-                params.addNamedParameter("targetFilePath",
-                        tempDestFile.getAbsolutePath());
-
-                // Run
-                CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
-                ExecResult result = cles.execCommand(renditionName, params);
-
-                // Give up the whole loop in case of problem? => Business rule
-                // to be adapted
-                if (result.getError() != null) {
-                    throw new ClientException("Failed to execute the command <"
-                            + renditionName + ">", result.getError());
-                }
+    /*
+     * A lazy rendition built for a previous binary (or a previous definition)
+     * must not be returned anymore: We remove it, and it will be built again
+     * on the next request.
+     */
+    protected void removeIfStale(RenditionPlan inPlan, boolean inForce)
+            throws IOException {
 
-                if (!result.isSuccessful()) {
-                    throw new ClientException("Failed to execute the command <"
-                            + renditionName + ">. Final command [ "
-                            + result.getCommandLine()
-                            + " ] returned with error "
-                            + result.getReturnCode());
-                }
+        if (StoredPictureRenditionStorage.getRendition(doc, inPlan.getName()) == null) {
+            return;
+        }
+
+        // No target file: The job is used only for its fingerprint
+        StoredPictureRenditionJob job = new StoredPictureRenditionJob(inPlan,
+                inPlan.createParameters(doc), null, null);
+        job.setFingerprint(getRenditionFingerprint(job));
+        if (inForce || !isUpToDate(job)) {
+            StoredPictureRenditionStorage.removeRendition(doc,
+                    inPlan.getName());
+            if (log.isDebugEnabled()) {
+                log.debug("Lazy rendition <" + inPlan.getName()
+                        + "> removed from document " + doc.getId());
+            }
+        }
+    }
 
-                // Setup the blob before adding it to the views. It needs a
-                // correct mime-type and a correct file name. the filename
-                // should be the original filename, not
-                // the name from tempDestFile
-                FileBlob resultBlob = new FileBlob(tempDestFile);
-                resultBlob.setMimeType(oneDef.getContentType());
-                resultBlob.setFilename(mainBlob.getFilename()
-                        + destFileExtension);
+    /*
+     * Builds (if it is missing or stale) and stores one rendition, whatever
+     * its policy. Returns the stored blob, or null if the rendition could not
+     * be built (command line not available).
+     */
+    public Blob buildRendition(RenditionPlan inPlan) throws CommandNotAvailable,
+            IOException, CommandException {
 
-                addBlobToViews(resultBlob, renditionName);
+        buildRenditions(Collections.singletonList(inPlan), false);
 
-                // ***Do not cleanup*** tempDestFile. The FileBlob still
-                // references this File and is requested by the caller, when it
-                // save() the document. Do not:
-                // tempDestFile.delete();
+        PictureView view = StoredPictureRenditionStorage.getRendition(doc,
+                inPlan.getName());
+        return view == null ? null : view.getBlob();
+    }
+
+    protected void buildRenditions(List<RenditionPlan> inPlans, boolean inForce)
+            throws CommandNotAvailable, IOException, CommandException {
+
+        if (inPlans.isEmpty()) {
+            return;
+        }
+        StoredPictureRenditionService service = StoredPictureRenditionComponent.getInstance();
+
+        // First, setup the parameters of all the command lines. This is done
+        // in the current thread because we need the document. The parameters
+        // are all we need to know if a rendition is up to date
+        List<StoredPictureRenditionJob> stale = new ArrayList<StoredPictureRenditionJob>();
+        for (RenditionPlan onePlan : inPlans) {
+            // IMPORTANT TO REMEMBER: The name of the rendition is the same as
+            // the name of the command line contribution
+            String renditionName = onePlan.getName();
+
+            if (service.isCommandLineAvailable(renditionName)) {
+
+                // No target file yet: See below
+                StoredPictureRenditionJob job = new StoredPictureRenditionJob(
+                        onePlan, onePlan.createParameters(doc), null, null);
+                job.setFingerprint(getRenditionFingerprint(job));
+                if (!inForce && isUpToDate(job)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Rendition <" + renditionName
+                                + "> is up to date for document "
+                                + doc.getId());
+                    }
+                    continue;
+                }
+                stale.add(job);
 
             } else {
                 // Lets report the problem, and do not throwing an error? +> to
@@ -266,6 +307,45 @@ public class StoredPictureRenditionBuilder {
             }
         }
 
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        // Now we know what must be built: The disk space is reserved and the
+        // temporary files are created for these renditions only
+        getScratch(stale.size());
+        List<StoredPictureRenditionJob> jobs = new ArrayList<StoredPictureRenditionJob>();
+        for (StoredPictureRenditionJob oneStale : stale) {
+            StoredPictureRenditionJob job = prepareJob(oneStale.getPlan(),
+                    oneStale.getParams(), getMainBlob());
+            job.setFingerprint(oneStale.getFingerprint());
+            jobs.add(job);
+        }
+
+        // The source is the same for every rendition. We get its path only
+        // now, because it may need a copy of the binary
+        String sourceFilePath = getFilePath(getMainBlob());
+        for (StoredPictureRenditionJob oneJob : jobs) {
+            oneJob.getParams().addNamedParameter("sourceFilePath",
+                    sourceFilePath);
+        }
+
+        // Run the command lines (one after the other, in parallel or
+        // combined). We get either all the results or an exception.
+        List<Blob> results = runJobs(jobs);
+
+        // Now we can update the document, in the calling thread
+        for (int i = 0; i < jobs.size(); i++) {
+            StoredPictureRenditionJob oneJob = jobs.get(i);
+            addBlobToViews(results.get(i), oneJob.getRenditionName(),
+                    oneJob.getFingerprint());
+
+            // ***Do not cleanup*** the temp. destination file. The FileBlob
+            // still references this File and is requested by the caller,
+            // when it save() the document. The caller then close() the
+            // builder.
+        }
+
 /**********************************************************************
         This approach just can't work. In the best case it will create a
         useless load in the database, but mainly it makes it required to
@@ -292,12 +372,128 @@ public class StoredPictureRenditionBuilder {
 
     }
 
+    /*
+     * When the cache is enabled (see StoredPictureRenditionCache), the
+     * renditions already built for the same binary (and the same command line
+     * and parameters) are not built again. The results are returned in the
+     * same order as the jobs.
+     */
+    protected List<Blob> runJobs(List<StoredPictureRenditionJob> inJobs)
+            throws CommandNotAvailable, IOException, CommandException {
+
+        StoredPictureRenditionCache cache = StoredPictureRenditionCache.getInstance();
+        if (cache == null || inJobs.isEmpty()) {
+            return executeJobs(inJobs);
+        }
+
+        String sourceDigest = getSourceDigest();
+        HashMap<StoredPictureRenditionJob, Blob> blobs = new HashMap<StoredPictureRenditionJob, Blob>();
+        List<StoredPictureRenditionJob> toBuild = new ArrayList<StoredPictureRenditionJob>();
+        for (StoredPictureRenditionJob oneJob : inJobs) {
+            oneJob.setCacheKey(StoredPictureRenditionCache.buildKey(
+                    sourceDigest, oneJob));
+            if (cache.get(oneJob.getCacheKey(), oneJob.getTargetFile())) {
+                blobs.put(oneJob, oneJob.createResultBlob());
+            } else {
+                toBuild.add(oneJob);
+            }
+        }
+
+        List<Blob> built = executeJobs(toBuild);
+        for (int i = 0; i < toBuild.size(); i++) {
+            StoredPictureRenditionJob oneJob = toBuild.get(i);
+            cache.put(oneJob.getCacheKey(), oneJob.getTargetFile());
+            blobs.put(oneJob, built.get(i));
+        }
+
+        List<Blob> results = new ArrayList<Blob>();
+        for (StoredPictureRenditionJob oneJob : inJobs) {
+            results.add(blobs.get(oneJob));
+        }
+        return results;
+    }
+
+    /*
+     * When the combined pipeline is enabled (see
+     * StoredPictureRenditionPipeline), the renditions which can be combined
+     * are built with one single ImageMagick call, the others are built as
+     * usual. The results are returned in the same order as the jobs.
+     */
+    protected List<Blob> executeJobs(List<StoredPictureRenditionJob> inJobs)
+            throws CommandNotAvailable, IOException, CommandException {
+
+        if (!StoredPictureRenditionPipeline.isEnabled()
+                || !isCommanLineAvailable(StoredPictureRenditionPipeline.PIPELINE_COMMAND)) {
+            return StoredPictureRenditionExecutor.runAll(inJobs);
+        }
+
+        StoredPictureRenditionPipeline pipeline = new StoredPictureRenditionPipeline();
+        List<StoredPictureRenditionJob> combined = new ArrayList<StoredPictureRenditionJob>();
+        List<StoredPictureRenditionJob> others = new ArrayList<StoredPictureRenditionJob>();
+        for (StoredPictureRenditionJob oneJob : inJobs) {
+            if (pipeline.accepts(oneJob)) {
+                combined.add(oneJob);
+            } else {
+                others.add(oneJob);
+            }
+        }
+        // Nothing to gain with only one rendition
+        if (combined.size() < 2) {
+            return StoredPictureRenditionExecutor.runAll(inJobs);
+        }
+
+        HashMap<StoredPictureRenditionJob, Blob> blobs = new HashMap<StoredPictureRenditionJob, Blob>();
+        List<Blob> combinedResults = pipeline.run(combined);
+        for (int i = 0; i < combined.size(); i++) {
+            blobs.put(combined.get(i), combinedResults.get(i));
+        }
+        List<Blob> otherResults = StoredPictureRenditionExecutor.runAll(others);
+        for (int i = 0; i < others.size(); i++) {
+            blobs.put(others.get(i), otherResults.get(i));
+        }
+
+        List<Blob> results = new ArrayList<Blob>();
+        for (StoredPictureRenditionJob oneJob : inJobs) {
+            results.add(blobs.get(oneJob));
+        }
+        return results;
+    }
+
+    /*
+     * Completes the parameters of the command line (see
+     * RenditionPlan#createParameters()) with the temporary target file, as
+     * expected by the command line contribution of the same name. Called
+     * only for the renditions which must be built. The command itself is not
+     * run here.
+     */
+    protected StoredPictureRenditionJob prepareJob(RenditionPlan inPlan,
+            CmdParameters inParams, Blob inMainBlob) throws IOException {
+
+        // In all cases, we need to setup the sourceFilePath and the
+        // targetFilePath parameters. sourceFilePath is set by the caller,
+        // once it knows the rendition must be built
+        // IMPORTANT: We must set the targetFilePath with a correct extension,
+        // so ImageMagick can convert to jpeg, pdf, ...
+        File tempDestFile = getScratch(1).createFile(TEMP_FILE_PREFIX,
+                inPlan.getExtension());
+        inParams.addNamedParameter("targetFilePath",
+                tempDestFile.getAbsolutePath());
+
+        return new StoredPictureRenditionJob(inPlan, inParams, tempDestFile,
+                inMainBlob.getFilename() + inPlan.getExtension());
+    }
+
     /*
      * Save the blob generated by the command line as a new entry in the
      * picture:views field. Thankfully, nuxeo already provides utility classes
      * for this purpose (PictureView and MultiviewPicture)
      */
     protected void addBlobToViews(Blob inBlob, String inRenditionName) {
+        addBlobToViews(inBlob, inRenditionName, null);
+    }
+
+    protected void addBlobToViews(Blob inBlob, String inRenditionName,
+            String inFingerprint) {
 
         PictureViewImpl view = new PictureViewImpl();
         // Name is the name of the rendition
@@ -312,23 +508,19 @@ public class StoredPictureRenditionBuilder {
         view.setFilename(inBlob.getFilename());
 
         // Optional, but could be used for reporting, query, ...
-        // For example, let's use the rendition name
         view.setDescription("Pre-built Rendition for " + inRenditionName);
-        view.setTag(inRenditionName);
-
-        // Last info. This requires extra work from ImageMagick and is
-        // optional
-        ImagingService imagingService = Framework.getService(ImagingService.class);
-        try {
-            ImageInfo info = imagingService.getImageInfo(inBlob);
-            view.setWidth(info.getWidth());
-            view.setHeight(info.getHeight());
-        } catch(Exception e) {
-            // We just ignore the error
-        }
-
-        // We are all set, let's save the rendition
-        MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
-        mvp.addView(view);
+        // The tag holds the fingerprint of the rendition, used to know if it
+        // must be rebuilt (see buildAvailableRenditions(boolean))
+        view.setTag(inFingerprint == null ? inRenditionName : inFingerprint);
+
+        // Last info, optional. Read from the header of the output when
+        // possible, ImageMagick is run only for the other formats (PDF, ...)
+        BlobProbe probe = BlobProbeRegistry.getProbe(inBlob);
+        view.setWidth((int) probe.getWidth());
+        view.setHeight((int) probe.getHeight());
+
+        // We are all set, let's save the rendition (in picture:views, or in
+        // its own schema, see StoredPictureRenditionStorage)
+        StoredPictureRenditionStorage.putRendition(doc, view);
     }
 }
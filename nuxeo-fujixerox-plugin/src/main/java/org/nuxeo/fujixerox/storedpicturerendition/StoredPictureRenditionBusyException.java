@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import org.nuxeo.ecm.platform.rendition.RenditionException;
+
+/**
+ * Thrown when a lazy rendition can't be built now because another node holds
+ * the lease of the document (see {@link StoredPictureRenditionLeases}). The
+ * request can be retried later.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionBusyException extends RenditionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StoredPictureRenditionBusyException(String inMessage) {
+        super(inMessage);
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.fujixerox.BlobDigestHelper;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Content-addressed cache of the stored renditions.
+ * <p>
+ * The same binary is often uploaded several times (duplicates, copies,
+ * restored versions, ...). The result of a rendition depends only on the
+ * source binary, the command line and its parameters, so we keep the output
+ * files in a local directory, the key being:
+ * <ul>
+ * <li>The digest of the source blob</li>
+ * <li>The name of the rendition</li>
+ * <li>A fingerprint of the command line and of its parameters (except the
+ * source and target paths, which are temporary files)</li>
+ * </ul>
+ * The cache is bounded in total size (the least recently used entries are
+ * evicted first) and in age (an entry older than the max. age is never
+ * returned).
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li><code>fujixerox.storedrenditions.cache.enabled</code>: default is
+ * <code>false</code></li>
+ * <li><code>fujixerox.storedrenditions.cache.dir</code>: default is
+ * <code>fujixerox-rendition-cache</code> in the data directory of the
+ * server</li>
+ * <li><code>fujixerox.storedrenditions.cache.maxSizeMB</code>: default is
+ * 1024</li>
+ * <li><code>fujixerox.storedrenditions.cache.maxAgeMinutes</code>: default is
+ * 1440 (one day)</li>
+ * </ul>
+ * The directory is emptied when the cache is initialized: The index is in
+ * memory only.
+ * <p>
+ * The files are copied outside of the lock of the cache. While a file is
+ * being read, its entry is pinned: It is not evicted, and if it is removed
+ * (replaced, expired, cleared), its file is deleted by the last reader.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionCache {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionCache.class);
+
+    public static final String ENABLED_PROPERTY = "fujixerox.storedrenditions.cache.enabled";
+
+    public static final String DIR_PROPERTY = "fujixerox.storedrenditions.cache.dir";
+
+    public static final String MAX_SIZE_MB_PROPERTY = "fujixerox.storedrenditions.cache.maxSizeMB";
+
+    public static final String MAX_AGE_MINUTES_PROPERTY = "fujixerox.storedrenditions.cache.maxAgeMinutes";
+
+    protected static StoredPictureRenditionCache instance;
+
+    protected final File directory;
+
+    protected final long maxSize;
+
+    protected final long maxAge;
+
+    // Access-order => the first entry is the least recently used one
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    protected long totalSize = 0;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    // Each put() writes its own file, so a reader never sees it change
+    protected final AtomicLong sequence = new AtomicLong();
+
+    protected static class Entry {
+
+        protected final File file;
+
+        protected final long size;
+
+        protected final long created;
+
+        // Number of get() copying the file right now (guarded by the cache)
+        protected int pins = 0;
+
+        protected boolean removed = false;
+
+        protected Entry(File inFile, long inSize, long inCreated) {
+            file = inFile;
+            size = inSize;
+            created = inCreated;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Framework.getProperty(ENABLED_PROPERTY,
+                "false"));
+    }
+
+    /*
+     * Returns null if the cache is not enabled
+     */
+    public static synchronized StoredPictureRenditionCache getInstance() {
+
+        if (!isEnabled()) {
+            return null;
+        }
+
+        if (instance == null) {
+            String dirPath = Framework.getProperty(DIR_PROPERTY);
+            File dir;
+            if (dirPath != null && !dirPath.isEmpty()) {
+                dir = new File(dirPath);
+            } else {
+                Environment env = Environment.getDefault();
+                File parent = env == null || env.getData() == null ? new File(
+                        System.getProperty("java.io.tmpdir"))
+                        : env.getData();
+                dir = new File(parent, "fujixerox-rendition-cache");
+            }
+            long maxSizeMB = Long.parseLong(Framework.getProperty(
+                    MAX_SIZE_MB_PROPERTY, "1024"));
+            long maxAgeMinutes = Long.parseLong(Framework.getProperty(
+                    MAX_AGE_MINUTES_PROPERTY, "1440"));
+            instance = new StoredPictureRenditionCache(dir,
+                    maxSizeMB * 1024 * 1024, maxAgeMinutes * 60 * 1000);
+        }
+        return instance;
+    }
+
+    public StoredPictureRenditionCache(File inDirectory, long inMaxSize,
+            long inMaxAge) {
+
+        directory = inDirectory;
+        maxSize = inMaxSize;
+        maxAge = inMaxAge;
+
+        directory.mkdirs();
+        File[] previous = directory.listFiles();
+        if (previous != null) {
+            for (File oneFile : previous) {
+                oneFile.delete();
+            }
+        }
+    }
+
+    /*
+     * The key of a rendition. Returns null if we can't build it (no digest).
+     * Includes the version of the definition, so incrementing it builds the
+     * rendition again instead of reusing the cached one.
+     */
+    public static String buildKey(String inSourceDigest,
+            StoredPictureRenditionJob inJob) {
+
+        if (inSourceDigest == null) {
+            return null;
+        }
+
+        return inSourceDigest + "/" + inJob.getRenditionName() + "/"
+                + inJob.getParametersFingerprint() + "/"
+                + inJob.getPlan().getVersion();
+    }
+
+    protected boolean isExpired(Entry inEntry, long inNow) {
+        return maxAge > 0 && inNow - inEntry.created > maxAge;
+    }
+
+    /*
+     * Must be called with the lock held
+     */
+    protected void discard(Entry inEntry) {
+        totalSize -= inEntry.size;
+        inEntry.removed = true;
+        if (inEntry.pins == 0) {
+            inEntry.file.delete();
+        }
+    }
+
+    protected void remove(String inKey, Entry inEntry) {
+        discard(inEntry);
+        evictions.incrementAndGet();
+    }
+
+    protected void copyFile(File inSource, File inTarget) throws IOException {
+        Files.copy(inSource.toPath(), inTarget.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+     * On a hit, the cached file is copied to inTarget and true is returned.
+     */
+    public boolean get(String inKey, File inTarget) {
+
+        if (inKey == null) {
+            return false;
+        }
+
+        Entry e;
+        synchronized (this) {
+            e = entries.get(inKey);
+            if (e != null && isExpired(e, System.currentTimeMillis())) {
+                entries.remove(inKey);
+                remove(inKey, e);
+                e = null;
+            }
+            if (e == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+            e.pins++;
+        }
+
+        boolean copied = false;
+        try {
+            copyFile(e.file, inTarget);
+            copied = true;
+        } catch (IOException ex) {
+            log.warn("Cannot read the cached rendition " + inKey, ex);
+        } finally {
+            synchronized (this) {
+                e.pins--;
+                if (!copied && entries.get(inKey) == e) {
+                    entries.remove(inKey);
+                    remove(inKey, e);
+                } else if (e.removed && e.pins == 0) {
+                    e.file.delete();
+                }
+            }
+        }
+
+        if (copied) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return copied;
+    }
+
+    /*
+     * Errors are logged and ignored: The cache is just an optimization.
+     */
+    public void put(String inKey, File inRenditionFile) {
+
+        if (inKey == null || !inRenditionFile.exists()) {
+            return;
+        }
+
+        long size = inRenditionFile.length();
+        if (maxSize > 0 && size > maxSize) {
+            return;
+        }
+
+        // The entry is added once the file is complete, so a concurrent get()
+        // never reads a partial file
+        File cached = new File(directory, BlobDigestHelper.fingerprint(inKey)
+                + "-" + sequence.incrementAndGet());
+        try {
+            copyFile(inRenditionFile, cached);
+        } catch (IOException e) {
+            log.warn("Cannot cache the rendition " + inKey, e);
+            cached.delete();
+            return;
+        }
+
+        synchronized (this) {
+            Entry previous = entries.put(inKey, new Entry(cached, size,
+                    System.currentTimeMillis()));
+            if (previous != null) {
+                discard(previous);
+            }
+            totalSize += size;
+            evict();
+        }
+    }
+
+    /*
+     * The pinned entries are kept: Their file can't be deleted yet, so
+     * removing them would not free any space.
+     */
+    protected void evict() {
+
+        long now = System.currentTimeMillis();
+        List<String> expired = new ArrayList<String>();
+        for (Map.Entry<String, Entry> oneEntry : entries.entrySet()) {
+            if (oneEntry.getValue().pins == 0
+                    && isExpired(oneEntry.getValue(), now)) {
+                expired.add(oneEntry.getKey());
+            }
+        }
+        for (String oneKey : expired) {
+            remove(oneKey, entries.remove(oneKey));
+        }
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (maxSize > 0 && totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue().pins > 0) {
+                continue;
+            }
+            it.remove();
+            remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    public synchronized void clear() {
+        for (Map.Entry<String, Entry> oneEntry : entries.entrySet()) {
+            discard(oneEntry.getValue());
+        }
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+}
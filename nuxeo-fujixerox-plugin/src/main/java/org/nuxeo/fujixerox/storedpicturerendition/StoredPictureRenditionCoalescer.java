@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Rapid successive edits of a picture send several
+ * <code>pictureViewsGenerationDone</code> events for the same document, and
+ * each one would rebuild all the stored renditions and save the document.
+ * Only the latest one is useful:
+ * <ul>
+ * <li>Within a bundle, only the last event of each document is kept (see
+ * {@link #coalesce(EventBundle, String)})</li>
+ * <li>Across bundles: The document of an asynchronous event is the current
+ * one (the bundle is reconnected when it is handled), so the first bundle
+ * handled already builds the latest binary. A later bundle for the same
+ * document and the same binary, handled within the window (or while the
+ * first one is still building), is stale and is dropped (see
+ * {@link #begin(DocumentModel)})</li>
+ * </ul>
+ * The window is set with
+ * <code>fujixerox.storedrenditions.coalesce.windowSeconds</code> (default is
+ * 10, 0 to coalesce only within a bundle).
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionCoalescer {
+
+    public static final String WINDOW_SECONDS_PROPERTY = "fujixerox.storedrenditions.coalesce.windowSeconds";
+
+    protected static final ConcurrentHashMap<String, Entry> recent = new ConcurrentHashMap<String, Entry>();
+
+    protected static final AtomicLong coalesced = new AtomicLong();
+
+    protected static final AtomicLong dropped = new AtomicLong();
+
+    /*
+     * The last build of a document: the binary, and when it ended (0 while
+     * it is running)
+     */
+    protected static class Entry {
+
+        protected final String digest;
+
+        protected final long end;
+
+        protected Entry(String inDigest, long inEnd) {
+            digest = inDigest;
+            end = inEnd;
+        }
+    }
+
+    protected static long getWindow() {
+        return Long.parseLong(Framework.getProperty(WINDOW_SECONDS_PROPERTY,
+                "10")) * 1000;
+    }
+
+    protected static String getKey(DocumentModel inDoc) {
+        return inDoc.getRepositoryName() + "/" + inDoc.getId();
+    }
+
+    protected static String getDigest(DocumentModel inDoc) {
+        BlobHolder bh = inDoc.getAdapter(BlobHolder.class);
+        Blob blob = bh == null ? null : bh.getBlob();
+        String digest = blob == null ? null : blob.getDigest();
+        return digest == null || digest.isEmpty() ? null : digest;
+    }
+
+    /*
+     * The source documents of the inEventName events, the last event of each
+     * document only, in the order of these last events
+     */
+    public static Collection<DocumentModel> coalesce(EventBundle inBundle,
+            String inEventName) {
+
+        LinkedHashMap<String, DocumentModel> docs = new LinkedHashMap<String, DocumentModel>();
+        for (Event oneEvent : inBundle) {
+            EventContext ctx = oneEvent.getContext();
+            if (!inEventName.equals(oneEvent.getName())
+                    || !(ctx instanceof DocumentEventContext)) {
+                continue;
+            }
+            DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+            if (doc == null || doc.getId() == null) {
+                continue;
+            }
+            // remove() then put(), so the document moves to the end
+            if (docs.remove(getKey(doc)) != null) {
+                coalesced.incrementAndGet();
+            }
+            docs.put(getKey(doc), doc);
+        }
+        return docs.values();
+    }
+
+    /*
+     * Returns false if the renditions of this binary are being built, or
+     * were built within the window: The caller must drop the event. Else,
+     * the caller must call end() once the renditions are built.
+     */
+    public static boolean begin(DocumentModel inDoc) {
+
+        long window = getWindow();
+        String digest = getDigest(inDoc);
+        if (window <= 0 || digest == null) {
+            return true;
+        }
+
+        String key = getKey(inDoc);
+        long now = System.currentTimeMillis();
+        Entry running = new Entry(digest, 0);
+        while (true) {
+            Entry previous = recent.get(key);
+            if (previous != null && previous.digest.equals(digest)
+                    && (previous.end == 0 || now - previous.end < window)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            boolean done = previous == null ? recent.putIfAbsent(key, running) == null
+                    : recent.replace(key, previous, running);
+            if (done) {
+                return true;
+            }
+        }
+    }
+
+    /*
+     * inSuccess false: The next event for this document is not dropped
+     */
+    public static void end(DocumentModel inDoc, boolean inSuccess) {
+
+        String digest = getDigest(inDoc);
+        if (getWindow() <= 0 || digest == null) {
+            return;
+        }
+        String key = getKey(inDoc);
+        if (inSuccess) {
+            recent.put(key, new Entry(digest, System.currentTimeMillis()));
+        } else {
+            recent.remove(key);
+        }
+        purge();
+    }
+
+    /*
+     * Removes the entries out of the window, so the map stays small
+     */
+    protected static void purge() {
+
+        long limit = System.currentTimeMillis() - getWindow();
+        Iterator<Map.Entry<String, Entry>> it = recent.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e.end != 0 && e.end < limit) {
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Number of events ignored because a later event of the same bundle was
+     * for the same document
+     */
+    public static long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /*
+     * Number of events dropped because the same binary was being built, or
+     * was built within the window
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Limits the number of command lines (ImageMagick processes, each one using
+ * several threads and hundreds of MB) running at the same time on the node,
+ * whatever the number of builders, works and threads.
+ * <p>
+ * There is a global maximum and, optionally, a maximum per command. A caller
+ * which can't run its command waits in a fair queue; after the wait timeout,
+ * the execution is rejected with a <code>CommandException</code> (so
+ * {@link StoredPictureRenditionWork} retries it later, with a backoff).
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li><code>fujixerox.storedrenditions.limiter.maxConcurrent</code>: Global
+ * maximum, default is the number of processors (0 for no limit)</li>
+ * <li><code>fujixerox.storedrenditions.limiter.commandMaxConcurrent</code>:
+ * Default maximum per command, default is 0 (only the global maximum)</li>
+ * <li><code>fujixerox.storedrenditions.limiter.{command}.maxConcurrent</code>
+ * : Maximum for one command (<code>imageAsPDF</code> for example)</li>
+ * <li><code>fujixerox.storedrenditions.limiter.waitSeconds</code>: Default is
+ * 120</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionCommandLimiter {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionCommandLimiter.class);
+
+    public static final String PREFIX = "fujixerox.storedrenditions.limiter.";
+
+    public static final String MAX_CONCURRENT_PROPERTY = PREFIX
+            + "maxConcurrent";
+
+    public static final String COMMAND_MAX_CONCURRENT_PROPERTY = PREFIX
+            + "commandMaxConcurrent";
+
+    public static final String WAIT_SECONDS_PROPERTY = PREFIX + "waitSeconds";
+
+    protected static final String COMMAND_SUFFIX = ".maxConcurrent";
+
+    protected static StoredPictureRenditionCommandLimiter instance;
+
+    // null => no limit
+    protected final Semaphore global;
+
+    protected final int defaultCommandMax;
+
+    protected final Map<String, Integer> commandMax;
+
+    protected final ConcurrentHashMap<String, Semaphore> perCommand = new ConcurrentHashMap<String, Semaphore>();
+
+    protected final long waitMillis;
+
+    protected final AtomicLong executions = new AtomicLong();
+
+    protected final AtomicLong waits = new AtomicLong();
+
+    protected final AtomicLong waitNanos = new AtomicLong();
+
+    protected final AtomicLong maxWaitNanos = new AtomicLong();
+
+    protected final AtomicLong rejections = new AtomicLong();
+
+    protected final AtomicLong running = new AtomicLong();
+
+    /*
+     * Releases the permits of one execution. Must be closed in a finally
+     * block.
+     */
+    public class Permit implements Closeable {
+
+        protected final Semaphore command;
+
+        protected boolean released = false;
+
+        protected Permit(Semaphore inCommand) {
+            command = inCommand;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            running.decrementAndGet();
+            if (global != null) {
+                global.release();
+            }
+            if (command != null) {
+                command.release();
+            }
+        }
+    }
+
+    public static synchronized StoredPictureRenditionCommandLimiter getInstance() {
+
+        if (instance == null) {
+            int globalMax = Integer.parseInt(Framework.getProperty(
+                    MAX_CONCURRENT_PROPERTY,
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            int defaultCommandMax = Integer.parseInt(Framework.getProperty(
+                    COMMAND_MAX_CONCURRENT_PROPERTY, "0"));
+            long waitSeconds = Long.parseLong(Framework.getProperty(
+                    WAIT_SECONDS_PROPERTY, "120"));
+
+            // fujixerox.storedrenditions.limiter.{command}.maxConcurrent
+            Map<String, Integer> commandMax = new HashMap<String, Integer>();
+            Properties props = Framework.getProperties();
+            for (String oneName : props.stringPropertyNames()) {
+                if (oneName.startsWith(PREFIX)
+                        && oneName.endsWith(COMMAND_SUFFIX)
+                        && oneName.length() > PREFIX.length()
+                                + COMMAND_SUFFIX.length()) {
+                    String command = oneName.substring(PREFIX.length(),
+                            oneName.length() - COMMAND_SUFFIX.length());
+                    commandMax.put(command,
+                            Integer.valueOf(props.getProperty(oneName).trim()));
+                }
+            }
+
+            instance = new StoredPictureRenditionCommandLimiter(globalMax,
+                    defaultCommandMax, commandMax, waitSeconds * 1000);
+        }
+        return instance;
+    }
+
+    public StoredPictureRenditionCommandLimiter(int inGlobalMax,
+            int inDefaultCommandMax, Map<String, Integer> inCommandMax,
+            long inWaitMillis) {
+
+        global = inGlobalMax > 0 ? new Semaphore(inGlobalMax, true) : null;
+        defaultCommandMax = inDefaultCommandMax;
+        commandMax = inCommandMax == null ? new HashMap<String, Integer>()
+                : inCommandMax;
+        waitMillis = inWaitMillis;
+    }
+
+    /*
+     * null if the command has no limit of its own
+     */
+    protected Semaphore getCommandSemaphore(String inCommand) {
+
+        Semaphore s = perCommand.get(inCommand);
+        if (s == null) {
+            Integer max = commandMax.get(inCommand);
+            int value = max == null ? defaultCommandMax : max.intValue();
+            if (value <= 0) {
+                return null;
+            }
+            s = new Semaphore(value, true);
+            Semaphore previous = perCommand.putIfAbsent(inCommand, s);
+            if (previous != null) {
+                s = previous;
+            }
+        }
+        return s;
+    }
+
+    /*
+     * Waits (at most the wait timeout, for both limits) until inCommand can
+     * run.
+     */
+    public Permit acquire(String inCommand) throws CommandException {
+
+        Semaphore command = getCommandSemaphore(inCommand);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        boolean waited = false;
+        try {
+            // The command first: We don't hold a global permit while waiting
+            // for the command
+            if (command != null && !command.tryAcquire()) {
+                waited = true;
+                if (!command.tryAcquire(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    throw reject(inCommand, start);
+                }
+            }
+            if (global != null && !global.tryAcquire()) {
+                waited = true;
+                if (!global.tryAcquire(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    if (command != null) {
+                        command.release();
+                    }
+                    throw reject(inCommand, start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandException("Interrupted while waiting to run <"
+                    + inCommand + ">", e);
+        }
+
+        if (waited) {
+            long waitTime = System.nanoTime() - start;
+            waits.incrementAndGet();
+            waitNanos.addAndGet(waitTime);
+            long max;
+            while (waitTime > (max = maxWaitNanos.get())
+                    && !maxWaitNanos.compareAndSet(max, waitTime)) {
+                // Retry
+            }
+        }
+        executions.incrementAndGet();
+        running.incrementAndGet();
+        return new Permit(command);
+    }
+
+    protected CommandException reject(String inCommand, long inStart) {
+        rejections.incrementAndGet();
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                - inStart);
+        waitNanos.addAndGet(System.nanoTime() - inStart);
+        log.warn("Too many command lines running, <" + inCommand
+                + "> rejected after " + waited + "ms");
+        return new CommandException("Too many command lines running, <"
+                + inCommand + "> rejected after " + waited + "ms");
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /*
+     * Number of executions which had to wait (rejected ones excluded)
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /*
+     * Total time spent waiting, in ms (rejected ones included)
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /*
+     * Number of command lines running now
+     */
+    public long getRunning() {
+        return running.get();
+    }
+}
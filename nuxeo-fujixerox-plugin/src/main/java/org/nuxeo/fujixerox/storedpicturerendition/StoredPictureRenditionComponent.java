@@ -0,0 +1,306 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineExecutorComponent;
+import org.nuxeo.ecm.platform.rendition.service.RenditionDefinition;
+import org.nuxeo.ecm.platform.rendition.service.RenditionService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Compiles the <code>renditionPlans</code> contributions into immutable
+ * {@link RenditionPlan}s, once, when the application is started (and again
+ * if a contribution is registered later). The availability of the command
+ * lines is kept in a thread-safe map, refreshed in the background.
+ * <p>
+ * A rendition definition of {@link StoredPictureRenditionProvider} without a
+ * plan gets a default plan: No parameter, and the extension is deduced from
+ * the content type of the definition.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionComponent extends DefaultComponent
+        implements StoredPictureRenditionService {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionComponent.class);
+
+    public static final String RENDITION_PLANS_XP = "renditionPlans";
+
+    public static final String REFRESH_SECONDS_PROPERTY = "fujixerox.storedrenditions.availability.refreshSeconds";
+
+    // Set when the component is activated: The builders get the plans without
+    // a service lookup
+    protected static volatile StoredPictureRenditionComponent instance;
+
+    protected final Map<String, RenditionPlanDescriptor> descriptors = new LinkedHashMap<String, RenditionPlanDescriptor>();
+
+    protected volatile List<RenditionPlan> plans = Collections.emptyList();
+
+    protected volatile Map<String, RenditionPlan> plansByName = Collections.emptyMap();
+
+    protected final ConcurrentHashMap<String, Boolean> availability = new ConcurrentHashMap<String, Boolean>();
+
+    protected volatile boolean started = false;
+
+    protected ScheduledExecutorService refresher;
+
+    public static StoredPictureRenditionService getInstance() {
+        StoredPictureRenditionComponent component = instance;
+        if (component == null) {
+            return Framework.getLocalService(StoredPictureRenditionService.class);
+        }
+        return component;
+    }
+
+    @Override
+    public void activate(ComponentContext context) {
+        instance = this;
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        StoredPictureRenditionWork.shutdownRescheduler();
+        started = false;
+        instance = null;
+    }
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (RENDITION_PLANS_XP.equals(extensionPoint)) {
+            RenditionPlanDescriptor desc = (RenditionPlanDescriptor) contribution;
+            synchronized (descriptors) {
+                descriptors.put(desc.getName(), desc);
+            }
+            if (started) {
+                compile();
+            }
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (RENDITION_PLANS_XP.equals(extensionPoint)) {
+            RenditionPlanDescriptor desc = (RenditionPlanDescriptor) contribution;
+            synchronized (descriptors) {
+                descriptors.remove(desc.getName());
+            }
+            if (started) {
+                compile();
+            }
+        }
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) {
+
+        compile();
+        refreshAvailability();
+        started = true;
+
+        // Backfills interrupted by the previous shutdown
+        StoredPictureRenditionBackfillWork.resumePending();
+
+        int seconds = Integer.parseInt(Framework.getProperty(
+                REFRESH_SECONDS_PROPERTY, "300"));
+        if (seconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(new StoredPictureRenditionExecutor.NamedThreadFactory(
+                    "fujixerox-rendition-availability"));
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refreshAvailability();
+                    } catch (RuntimeException e) {
+                        log.warn("Cannot refresh the availability of the command lines", e);
+                    }
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    protected synchronized void compile() {
+
+        RenditionService renditionService = Framework.getLocalService(RenditionService.class);
+        List<RenditionDefinition> defs = renditionService.getDeclaredRenditionDefinitionsForProviderType(StoredPictureRenditionProvider.class.getSimpleName());
+
+        List<RenditionPlan> compiled = new ArrayList<RenditionPlan>();
+        Map<String, RenditionPlan> byName = new LinkedHashMap<String, RenditionPlan>();
+        for (RenditionDefinition oneDef : defs) {
+            RenditionPlanDescriptor desc;
+            synchronized (descriptors) {
+                desc = descriptors.get(oneDef.getName());
+            }
+            if (desc != null && !desc.isEnabled()) {
+                continue;
+            }
+            RenditionPlan plan = compile(oneDef, desc);
+            compiled.add(plan);
+            byName.put(plan.getName(), plan);
+        }
+
+        plans = Collections.unmodifiableList(compiled);
+        plansByName = Collections.unmodifiableMap(byName);
+    }
+
+    protected RenditionPlan compile(RenditionDefinition inDef,
+            RenditionPlanDescriptor inDesc) {
+
+        String name = inDef.getName();
+        String extension = null;
+        String engine = null;
+        String version = null;
+        String policy = null;
+        Map<String, String> staticParams = Collections.emptyMap();
+        Map<String, RenditionParameterProvider> dynamicParams = new LinkedHashMap<String, RenditionParameterProvider>();
+
+        if (inDesc != null) {
+            extension = inDesc.getExtension();
+            engine = inDesc.getEngine();
+            version = inDesc.getVersion();
+            policy = inDesc.getPolicy();
+            staticParams = inDesc.getParameters();
+            for (DynamicParameterDescriptor oneParam : inDesc.getDynamicParameters()) {
+                RenditionParameterProvider provider;
+                try {
+                    provider = oneParam.getProviderClass().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new ClientException(
+                            "Cannot instantiate the parameter provider of <"
+                                    + oneParam.getName() + "> in <" + name
+                                    + ">", e);
+                }
+                provider.init(oneParam.getOptions());
+                dynamicParams.put(oneParam.getName(), provider);
+            }
+        } else {
+            log.info("No rendition plan for <" + name
+                    + ">, using a default plan");
+        }
+
+        if (extension == null || extension.isEmpty()) {
+            extension = getDefaultExtension(inDef.getContentType());
+        } else if (!extension.startsWith(".")) {
+            extension = "." + extension;
+        }
+        if (engine == null || engine.isEmpty()) {
+            engine = StoredPictureRenditionEngineRegistry.getEngineName(name);
+        }
+        if (version == null || version.isEmpty()) {
+            version = Framework.getProperty("fujixerox.storedrenditions."
+                    + name + ".version", "1");
+        }
+        if (policy == null || policy.isEmpty()) {
+            policy = Framework.getProperty("fujixerox.storedrenditions."
+                    + name + ".policy", RenditionPlan.POLICY_EAGER);
+        }
+        policy = policy.trim().toLowerCase(Locale.ENGLISH);
+        if (!RenditionPlan.POLICY_EAGER.equals(policy)
+                && !RenditionPlan.POLICY_LAZY.equals(policy)) {
+            log.warn("Unknown policy <" + policy + "> for <" + name
+                    + ">, using " + RenditionPlan.POLICY_EAGER);
+            policy = RenditionPlan.POLICY_EAGER;
+        }
+
+        return new RenditionPlan(name, extension, inDef.getContentType(),
+                engine, version, policy,
+                CommandLineExecutorComponent.getCommandDescriptor(name),
+                staticParams, dynamicParams);
+    }
+
+    protected String getDefaultExtension(String inContentType) {
+
+        if (inContentType == null) {
+            return "";
+        }
+        String subType = inContentType.substring(
+                inContentType.indexOf('/') + 1).toLowerCase(Locale.ENGLISH);
+        return "." + subType;
+    }
+
+    @Override
+    public List<RenditionPlan> getRenditionPlans() {
+        return plans;
+    }
+
+    @Override
+    public RenditionPlan getRenditionPlan(String inName) {
+        return plansByName.get(inName);
+    }
+
+    @Override
+    public boolean isCommandLineAvailable(String inCommandName) {
+
+        Boolean isAvailable = availability.get(inCommandName);
+        if (isAvailable == null) {
+            isAvailable = checkAvailability(inCommandName);
+            availability.put(inCommandName, isAvailable);
+        }
+        return isAvailable.booleanValue();
+    }
+
+    protected boolean checkAvailability(String inCommandName) {
+        CommandLineExecutorService cles = Framework.getLocalService(CommandLineExecutorService.class);
+        return cles.getCommandAvailability(inCommandName).isAvailable();
+    }
+
+    @Override
+    public void refreshAvailability() {
+
+        List<String> names = new ArrayList<String>();
+        for (RenditionPlan onePlan : plans) {
+            names.add(onePlan.getName());
+        }
+        names.add(StoredPictureRenditionPipeline.PIPELINE_COMMAND);
+        for (String oneName : names) {
+            availability.put(oneName, checkAvailability(oneName));
+        }
+    }
+
+    @Override
+    public <T> T getAdapter(Class<T> adapter) {
+        if (adapter.isAssignableFrom(StoredPictureRenditionService.class)) {
+            return adapter.cast(this);
+        }
+        return super.getAdapter(adapter);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.transaction.Transaction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Leases stored in the database, in the <code>fxRenditionLeases</code> SQL
+ * directory (see org.nuxeo.fujixerox.StoredPictureRenditionLeases.xml), so
+ * they are shared by all the nodes of the cluster.
+ * <p>
+ * The id of the entry is the key of the lease: The primary key of the table
+ * makes sure only one node can create it. An expired lease (a node which
+ * crashed while building) is deleted and created again by the next node. Each
+ * operation runs in its own short transaction, the transaction of the caller
+ * being suspended (see {@link StoredPictureRenditionTransactions}): The lease
+ * is visible to the other nodes before the build starts, and a conflict on
+ * the primary key does not roll back the caller.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionDirectoryLeaseStore implements
+        StoredPictureRenditionLeaseStore {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionDirectoryLeaseStore.class);
+
+    public static final String DIRECTORY_NAME = "fxRenditionLeases";
+
+    public static final String SCHEMA = "fxrenditionlease";
+
+    protected static final String OWNER_FIELD = "owner";
+
+    protected static final String EXPIRES_FIELD = "expires";
+
+    /*
+     * false if the directory is not deployed (distribution without SQL
+     * directories, for example)
+     */
+    public static boolean isAvailable() {
+        DirectoryService ds = Framework.getLocalService(DirectoryService.class);
+        try {
+            return ds != null && ds.getDirectory(DIRECTORY_NAME) != null;
+        } catch (ClientException e) {
+            return false;
+        }
+    }
+
+    protected interface LeaseOperation {
+        boolean run(Session inSession) throws ClientException;
+    }
+
+    protected boolean runInTransaction(LeaseOperation inOperation)
+            throws ClientException {
+
+        Transaction suspended = StoredPictureRenditionTransactions.suspend();
+        try {
+            boolean txStarted = TransactionHelper.startTransaction();
+            Session session = null;
+            try {
+                session = Framework.getLocalService(DirectoryService.class).open(
+                        DIRECTORY_NAME);
+                return inOperation.run(session);
+            } catch (RuntimeException e) {
+                if (txStarted) {
+                    TransactionHelper.setTransactionRollbackOnly();
+                }
+                throw e;
+            } finally {
+                try {
+                    if (session != null) {
+                        session.close();
+                    }
+                } finally {
+                    if (txStarted) {
+                        TransactionHelper.commitOrRollbackTransaction();
+                    }
+                }
+            }
+        } finally {
+            StoredPictureRenditionTransactions.resume(suspended);
+        }
+    }
+
+    protected static long getExpires(DocumentModel inEntry) {
+        Object value = inEntry.getProperty(SCHEMA, EXPIRES_FIELD);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public boolean acquire(final String inKey, final String inOwner,
+            final long inTtlMillis) {
+
+        try {
+            return runInTransaction(new LeaseOperation() {
+                @Override
+                public boolean run(Session inSession) throws ClientException {
+
+                    long now = System.currentTimeMillis();
+                    DocumentModel entry = inSession.getEntry(inKey);
+                    if (entry != null) {
+                        if (!inOwner.equals(entry.getProperty(SCHEMA,
+                                OWNER_FIELD)) && getExpires(entry) > now) {
+                            return false;
+                        }
+                        // Ours, or expired
+                        inSession.deleteEntry(inKey);
+                    }
+
+                    Map<String, Object> values = new HashMap<String, Object>();
+                    values.put("id", inKey);
+                    values.put(OWNER_FIELD, inOwner);
+                    values.put(EXPIRES_FIELD, Long.valueOf(now + inTtlMillis));
+                    inSession.createEntry(values);
+                    return true;
+                }
+            });
+        } catch (ClientException e) {
+            // Created by another node in the meantime (primary key)
+            if (log.isDebugEnabled()) {
+                log.debug("Lease " + inKey + " not acquired: "
+                        + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void release(final String inKey, final String inOwner) {
+
+        try {
+            runInTransaction(new LeaseOperation() {
+                @Override
+                public boolean run(Session inSession) throws ClientException {
+                    DocumentModel entry = inSession.getEntry(inKey);
+                    if (entry != null
+                            && inOwner.equals(entry.getProperty(SCHEMA,
+                                    OWNER_FIELD))) {
+                        inSession.deleteEntry(inKey);
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        } catch (ClientException e) {
+            // It will expire
+            log.warn("Cannot release the lease " + inKey, e);
+        }
+    }
+}
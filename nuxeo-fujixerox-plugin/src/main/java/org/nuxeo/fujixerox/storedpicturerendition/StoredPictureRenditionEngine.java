@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+
+/**
+ * Builds the file of a {@link StoredPictureRenditionJob}.
+ * <p>
+ * Each rendition can choose its engine with the
+ * <code>fujixerox.storedrenditions.&lt;renditionName&gt;.engine</code>
+ * configuration property (see {@link StoredPictureRenditionEngineRegistry}).
+ * When the chosen engine can't handle a rendition (unsupported operation,
+ * unsupported format, ...), the rendition is built with the command line
+ * engine.
+ *
+ * @since 5.9.5
+ */
+public interface StoredPictureRenditionEngine {
+
+    /*
+     * Quick check, done before render(): Does this engine know how to handle
+     * the operations of this rendition?
+     */
+    boolean canRender(StoredPictureRenditionJob inJob);
+
+    /*
+     * Writes the rendition in the target file of the job and returns the
+     * blob (see StoredPictureRenditionJob#createResultBlob()). Returns null if
+     * the engine finds out it can't handle this source (for example, a format
+     * it can't decode): The caller then falls back to the command line.
+     */
+    Blob render(StoredPictureRenditionJob inJob) throws CommandNotAvailable,
+            IOException, CommandException;
+}
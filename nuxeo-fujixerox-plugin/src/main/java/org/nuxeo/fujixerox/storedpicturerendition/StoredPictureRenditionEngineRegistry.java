@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The available {@link StoredPictureRenditionEngine}s, by name.
+ * <p>
+ * Two engines are registered by default: "commandline" (the default one, see
+ * {@link CommandLineRenditionEngine}) and "java" (see
+ * {@link JavaImageRenditionEngine}). Other engines can be added with
+ * {@link #register(String, StoredPictureRenditionEngine)}.
+ * <p>
+ * The engine of a rendition is set in the
+ * <code>fujixerox.storedrenditions.&lt;renditionName&gt;.engine</code>
+ * configuration property, for example:
+ *
+ * <pre>
+ * fujixerox.storedrenditions.jpeg200x200.engine=java
+ * </pre>
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionEngineRegistry {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionEngineRegistry.class);
+
+    protected static final ConcurrentHashMap<String, StoredPictureRenditionEngine> engines = new ConcurrentHashMap<String, StoredPictureRenditionEngine>();
+
+    static {
+        engines.put(CommandLineRenditionEngine.NAME,
+                new CommandLineRenditionEngine());
+        engines.put(JavaImageRenditionEngine.NAME,
+                new JavaImageRenditionEngine());
+    }
+
+    public static void register(String inName,
+            StoredPictureRenditionEngine inEngine) {
+        engines.put(inName, inEngine);
+    }
+
+    public static StoredPictureRenditionEngine getEngine(String inName) {
+        return engines.get(inName);
+    }
+
+    public static String getEngineName(String inRenditionName) {
+        return Framework.getProperty("fujixerox.storedrenditions."
+                + inRenditionName + ".engine", CommandLineRenditionEngine.NAME);
+    }
+
+    public static Blob render(StoredPictureRenditionJob inJob)
+            throws CommandNotAvailable, IOException, CommandException {
+
+        StoredPictureRenditionEngine engine = getEngine(inJob.getEngineName());
+        if (engine == null) {
+            log.warn("Unknown rendition engine <" + inJob.getEngineName()
+                    + "> for the rendition <" + inJob.getRenditionName()
+                    + ">, using the command line");
+        } else if (engine.canRender(inJob)) {
+            Blob result = engine.render(inJob);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Rendition <" + inJob.getRenditionName()
+                    + ">: fallback to the command line");
+        }
+        return getEngine(CommandLineRenditionEngine.NAME).render(inJob);
+    }
+}
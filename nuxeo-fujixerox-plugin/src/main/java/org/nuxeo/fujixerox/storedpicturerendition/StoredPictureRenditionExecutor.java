@@ -0,0 +1,231 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Runs the {@link StoredPictureRenditionJob}s of one document.
+ * <p>
+ * By default, the jobs are run one after the other in the calling thread
+ * (this is the original behavior). When the
+ * <code>fujixerox.storedrenditions.parallel.maxThreads</code> configuration
+ * property is greater than 1, the jobs are run concurrently on a bounded,
+ * shared, thread pool. So, the time to get all the renditions of a picture is
+ * the time of the longest command, not the sum of all of them.
+ * <p>
+ * In all cases, the results are returned in the same order as the jobs and
+ * nothing is returned if one job fails: The first error is thrown and the
+ * other jobs are cancelled (all-or-nothing, as before). The caller is in
+ * charge of adding the blobs to the document, in its own thread, so the
+ * <code>MultiviewPicture</code> is never modified concurrently.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionExecutor {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionExecutor.class);
+
+    public static final String MAX_THREADS_PROPERTY = "fujixerox.storedrenditions.parallel.maxThreads";
+
+    public static final String QUEUE_SIZE_PROPERTY = "fujixerox.storedrenditions.parallel.queueSize";
+
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    protected static ThreadPoolExecutor executor;
+
+    protected static int getIntProperty(String inName, int inDefault) {
+        String value = Framework.getProperty(inName);
+        if (value == null || value.trim().isEmpty()) {
+            return inDefault;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value <" + value + "> for " + inName
+                    + ", using " + inDefault);
+            return inDefault;
+        }
+    }
+
+    public static int getMaxThreads() {
+        return getIntProperty(MAX_THREADS_PROPERTY, 1);
+    }
+
+    public static boolean isParallel() {
+        return getMaxThreads() > 1;
+    }
+
+    /*
+     * The pool is shared by all the builders. It is bounded (threads and
+     * queue). When it is full, the caller runs the job itself, which slows
+     * down the callers instead of piling up jobs in memory.
+     */
+    protected static synchronized ExecutorService getExecutor() {
+
+        if (executor == null) {
+            int maxThreads = getMaxThreads();
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+                            getIntProperty(QUEUE_SIZE_PROPERTY,
+                                    DEFAULT_QUEUE_SIZE)),
+                    new NamedThreadFactory("fujixerox-rendition"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public static List<Blob> runAll(List<StoredPictureRenditionJob> inJobs)
+            throws CommandNotAvailable, IOException, CommandException {
+
+        List<Blob> results = new ArrayList<Blob>();
+
+        if (inJobs.size() < 2 || !isParallel()) {
+            for (StoredPictureRenditionJob oneJob : inJobs) {
+                try {
+                    results.add(oneJob.call());
+                } catch (Exception e) {
+                    throwCause(oneJob, e);
+                }
+            }
+            return results;
+        }
+
+        return runAll(inJobs, getExecutor());
+    }
+
+    /*
+     * The jobs are collected in the order they end (not in the order they
+     * were submitted), so the first failure cancels the others right away,
+     * even if a job submitted before it is still running.
+     */
+    public static List<Blob> runAll(List<StoredPictureRenditionJob> inJobs,
+            ExecutorService inExecutor) throws CommandNotAvailable,
+            IOException, CommandException {
+
+        ExecutorCompletionService<Blob> ecs = new ExecutorCompletionService<Blob>(
+                inExecutor);
+        Map<Future<Blob>, Integer> indexes = new HashMap<Future<Blob>, Integer>();
+        for (int i = 0; i < inJobs.size(); i++) {
+            indexes.put(ecs.submit(inJobs.get(i)), Integer.valueOf(i));
+        }
+
+        Blob[] blobs = new Blob[inJobs.size()];
+        int done = 0;
+        try {
+            while (done < inJobs.size()) {
+                Future<Blob> oneFuture = ecs.take();
+                int index = indexes.get(oneFuture).intValue();
+                try {
+                    blobs[index] = oneFuture.get();
+                } catch (ExecutionException e) {
+                    throwCause(inJobs.get(index), e.getCause());
+                }
+                done++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(
+                    "Interrupted while building the renditions", e);
+        } finally {
+            // All-or-nothing: if we leave early, nobody will use the other
+            // results
+            if (done != inJobs.size()) {
+                for (Future<Blob> oneFuture : indexes.keySet()) {
+                    oneFuture.cancel(true);
+                }
+            }
+        }
+
+        return Arrays.asList(blobs);
+    }
+
+    /*
+     * Rethrow the error with its original type, so the caller gets exactly
+     * what it was getting before the parallel mode.
+     */
+    protected static void throwCause(StoredPictureRenditionJob inJob,
+            Throwable inCause) throws CommandNotAvailable, IOException,
+            CommandException {
+
+        if (inCause instanceof CommandNotAvailable) {
+            throw (CommandNotAvailable) inCause;
+        }
+        if (inCause instanceof CommandException) {
+            throw (CommandException) inCause;
+        }
+        if (inCause instanceof IOException) {
+            throw (IOException) inCause;
+        }
+        if (inCause instanceof RuntimeException) {
+            throw (RuntimeException) inCause;
+        }
+        if (inCause instanceof Error) {
+            throw (Error) inCause;
+        }
+        throw new ClientException("Failed to build the rendition <"
+                + inJob.getRenditionName() + ">", inCause);
+    }
+
+    public static class NamedThreadFactory implements ThreadFactory {
+
+        protected final String prefix;
+
+        protected final AtomicInteger count = new AtomicInteger();
+
+        public NamedThreadFactory(String inPrefix) {
+            prefix = inPrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Per-node index of the stored renditions: document => (rendition name =>
+ * blob).
+ * <p>
+ * When the list of the renditions of a document is displayed,
+ * {@link StoredPictureRenditionProvider#isAvailable} is called for each
+ * rendition definition, and then <code>render()</code> is called: Each call
+ * would build the <code>MultiviewPicture</code> adapter (or read the
+ * rendition schema) and scan the list. With the index, the renditions of a
+ * document are read once, and the next calls are a lookup.
+ * <p>
+ * An entry is valid only for the renditions token of the document it was
+ * built from (see {@link StoredPictureRenditionStorage#getRenditionsToken}):
+ * It changes when the renditions are saved, even when the modification date
+ * does not (see {@link StoredPictureRenditionPersister}), so every node sees
+ * the new renditions as soon as it loads the saved document. The token is
+ * read from the properties of the loaded document, which is cheaper than
+ * building the renditions. The entry is also removed once a modification of
+ * the document is committed on this node (see
+ * RenditionIndexInvalidationListener), and it expires after a while.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li><code>fujixerox.storedrenditions.index.maxEntries</code>: Number of
+ * documents, the least recently used are evicted first. Default is 10000, 0
+ * disables the index</li>
+ * <li><code>fujixerox.storedrenditions.index.ttlSeconds</code>: Default is
+ * 300</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionIndex {
+
+    public static final String MAX_ENTRIES_PROPERTY = "fujixerox.storedrenditions.index.maxEntries";
+
+    public static final String TTL_SECONDS_PROPERTY = "fujixerox.storedrenditions.index.ttlSeconds";
+
+    protected static StoredPictureRenditionIndex instance;
+
+    protected final int maxEntries;
+
+    protected final long ttl;
+
+    // Access-order => the first entry is the least recently used one
+    protected final LinkedHashMap<String, IndexEntry> entries;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong invalidations = new AtomicLong();
+
+    protected static class IndexEntry {
+
+        protected final String changeToken;
+
+        protected final long created;
+
+        protected final Map<String, Blob> renditions;
+
+        protected IndexEntry(String inChangeToken, long inCreated,
+                Map<String, Blob> inRenditions) {
+            changeToken = inChangeToken;
+            created = inCreated;
+            renditions = inRenditions;
+        }
+    }
+
+    public static synchronized StoredPictureRenditionIndex getInstance() {
+
+        if (instance == null) {
+            int maxEntries = Integer.parseInt(Framework.getProperty(
+                    MAX_ENTRIES_PROPERTY, "10000"));
+            long ttlSeconds = Long.parseLong(Framework.getProperty(
+                    TTL_SECONDS_PROPERTY, "300"));
+            instance = new StoredPictureRenditionIndex(maxEntries,
+                    ttlSeconds * 1000);
+        }
+        return instance;
+    }
+
+    public StoredPictureRenditionIndex(int inMaxEntries, long inTtl) {
+
+        maxEntries = inMaxEntries;
+        ttl = inTtl;
+        entries = new LinkedHashMap<String, IndexEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, IndexEntry> inEldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    protected static String getKey(String inRepositoryName, String inDocId) {
+        return inRepositoryName + "/" + inDocId;
+    }
+
+    /*
+     * Not the modification date, which a renditions-only save keeps. null if
+     * the document is not a picture (not indexed then)
+     */
+    protected static String getChangeToken(DocumentModel inDoc) {
+        return StoredPictureRenditionStorage.getRenditionsToken(inDoc);
+    }
+
+    /*
+     * The stored renditions of the document, name => blob (read-only)
+     */
+    public Map<String, Blob> getRenditions(DocumentModel inDoc) {
+
+        String token = getChangeToken(inDoc);
+        if (maxEntries <= 0 || token == null || inDoc.getId() == null
+                || inDoc.isDirty()) {
+            return StoredPictureRenditionStorage.getRenditions(inDoc);
+        }
+
+        String key = getKey(inDoc.getRepositoryName(), inDoc.getId());
+        synchronized (this) {
+            IndexEntry e = entries.get(key);
+            if (e != null
+                    && token.equals(e.changeToken)
+                    && (ttl <= 0 || System.currentTimeMillis() - e.created <= ttl)) {
+                hits.incrementAndGet();
+                return e.renditions;
+            }
+        }
+
+        // Read outside the lock: It may load the document
+        misses.incrementAndGet();
+        Map<String, Blob> renditions = Collections.unmodifiableMap(StoredPictureRenditionStorage.getRenditions(
+                inDoc));
+        synchronized (this) {
+            entries.put(key, new IndexEntry(token, System.currentTimeMillis(),
+                    renditions));
+        }
+        return renditions;
+    }
+
+    public void invalidate(String inRepositoryName, String inDocId) {
+        synchronized (this) {
+            if (entries.remove(getKey(inRepositoryName, inDocId)) != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+}
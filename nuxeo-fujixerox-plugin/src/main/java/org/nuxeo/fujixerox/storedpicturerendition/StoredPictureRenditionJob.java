@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.fujixerox.BlobDigestHelper;
+
+/**
+ * One rendition to build, fully prepared by
+ * {@link StoredPictureRenditionBuilder}: all the parameters are already set,
+ * so running it does not need the document at all. This is what makes it
+ * possible to run several of them at the same time (see
+ * {@link StoredPictureRenditionExecutor}).
+ * <p>
+ * The result is a {@link FileBlob} with the correct mime-type and file name,
+ * ready to be added to the <code>picture:views</code> field.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionJob implements Callable<Blob> {
+
+    protected RenditionPlan plan;
+
+    protected CmdParameters params;
+
+    protected File targetFile;
+
+    protected String fileName;
+
+    protected String cacheKey;
+
+    protected String fingerprint;
+
+    public StoredPictureRenditionJob(RenditionPlan inPlan,
+            CmdParameters inParams, File inTargetFile, String inFileName) {
+
+        plan = inPlan;
+        params = inParams;
+        targetFile = inTargetFile;
+        fileName = inFileName;
+    }
+
+    public RenditionPlan getPlan() {
+        return plan;
+    }
+
+    public String getRenditionName() {
+        return plan.getName();
+    }
+
+    public CmdParameters getParams() {
+        return params;
+    }
+
+    public File getTargetFile() {
+        return targetFile;
+    }
+
+    /*
+     * Key in the StoredPictureRenditionCache (null if the cache is not used)
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public void setCacheKey(String inCacheKey) {
+        cacheKey = inCacheKey;
+    }
+
+    /*
+     * Fingerprint stored with the rendition, see
+     * StoredPictureRenditionBuilder#getRenditionFingerprint()
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String inFingerprint) {
+        fingerprint = inFingerprint;
+    }
+
+    public String getEngineName() {
+        return plan.getEngineName();
+    }
+
+    /*
+     * See RenditionPlan#getOperations()
+     */
+    public String getOperations() {
+        return plan.getOperations();
+    }
+
+    /*
+     * Fingerprint of the command line and of its parameters. The source and
+     * target paths are ignored: They are temporary files, which change at
+     * every call.
+     */
+    public String getParametersFingerprint() {
+
+        // Sorted, so the fingerprint does not depend on the order of the
+        // parameters
+        TreeMap<String, String> values = new TreeMap<String, String>(
+                params.getParameters());
+        values.remove("sourceFilePath");
+        values.remove("targetFilePath");
+
+        return BlobDigestHelper.fingerprint(plan.getCommandLine(),
+                values.toString(), plan.getEngineName());
+    }
+
+    /*
+     * The rendition is built by the engine chosen for this rendition, or by
+     * the command line engine if the chosen one can't handle it (see
+     * StoredPictureRenditionEngineRegistry)
+     */
+    @Override
+    public Blob call() throws Exception {
+        return StoredPictureRenditionEngineRegistry.render(this);
+    }
+
+    /*
+     * Setup the blob before adding it to the views. It needs a correct
+     * mime-type and a correct file name. the filename should be the original
+     * filename, not the name from targetFile
+     */
+    public Blob createResultBlob() {
+
+        FileBlob resultBlob = new FileBlob(targetFile);
+        resultBlob.setMimeType(plan.getContentType());
+        resultBlob.setFilename(fileName);
+
+        return resultBlob;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Priority lanes of the stored renditions: A user uploading a picture during
+ * a bulk import must not wait behind the whole import to get its renditions.
+ * <p>
+ * The renditions of the <code>interactive</code> documents are built in the
+ * <code>storedPictureRenditions</code> queue, the ones of the
+ * <code>bulk</code> documents in the <code>storedPictureRenditionsBulk</code>
+ * queue (see PictureViewsGenerationDoneListener.xml): The threads of the
+ * interactive queue are reserved, a bulk import never uses them. The capacity
+ * of each lane is the <code>maxThreads</code> of its queue.
+ * <p>
+ * The lane is decided when the binary is modified (see
+ * {@link #classify(DocumentEventContext, DocumentModel)}), because
+ * <code>pictureViewsGenerationDone</code> is sent later, by a work, without
+ * the context nor the principal of the modification. A document is
+ * <code>bulk</code> when:
+ * <ul>
+ * <li>The <code>fujixerox.bulkImport</code> flag is set (to
+ * <code>true</code>) in the context data of the document or of the event
+ * (the importer sets it with
+ * <code>doc.putContextData("fujixerox.bulkImport", true)</code>)</li>
+ * <li>Or the principal is listed in
+ * <code>fujixerox.storedrenditions.lanes.bulkPrincipals</code> (comma
+ * separated, default is <code>system</code>)</li>
+ * </ul>
+ * Only the interactive documents are remembered (they are few), so a
+ * document we know nothing about (server restarted since its upload, ...) is
+ * <code>bulk</code>.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionLanes {
+
+    public static final String INTERACTIVE = "interactive";
+
+    public static final String BULK = "bulk";
+
+    public static final String BULK_IMPORT_FLAG = "fujixerox.bulkImport";
+
+    public static final String BULK_PRINCIPALS_PROPERTY = "fujixerox.storedrenditions.lanes.bulkPrincipals";
+
+    // An interactive document not handled within one hour is forgotten
+    protected static final long TTL = 3600 * 1000;
+
+    protected static final int MAX_ENTRIES = 10000;
+
+    // key => time it was classified
+    protected static final ConcurrentHashMap<String, Long> interactive = new ConcurrentHashMap<String, Long>();
+
+    protected static final AtomicLong interactiveCount = new AtomicLong();
+
+    protected static final AtomicLong bulkCount = new AtomicLong();
+
+    protected static String getKey(String inRepositoryName, String inDocId) {
+        return inRepositoryName + "/" + inDocId;
+    }
+
+    protected static boolean isTrue(Serializable inValue) {
+        return inValue != null && Boolean.parseBoolean(inValue.toString());
+    }
+
+    protected static boolean isBulkPrincipal(Principal inPrincipal) {
+
+        if (inPrincipal == null) {
+            return false;
+        }
+        String value = Framework.getProperty(BULK_PRINCIPALS_PROPERTY,
+                "system");
+        for (String oneName : value.split(",")) {
+            if (oneName.trim().equals(inPrincipal.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the lane of a modification of the binary of inDoc, and
+     * remembers it for the next pictureViewsGenerationDone of inDoc
+     */
+    public static String classify(DocumentEventContext inCtx,
+            DocumentModel inDoc) {
+
+        String lane;
+        if (isTrue(inDoc.getContextData(BULK_IMPORT_FLAG))
+                || isTrue(inCtx.getProperty(BULK_IMPORT_FLAG))
+                || isBulkPrincipal(inCtx.getPrincipal())) {
+            lane = BULK;
+            bulkCount.incrementAndGet();
+            interactive.remove(getKey(inDoc.getRepositoryName(),
+                    inDoc.getId()));
+        } else {
+            lane = INTERACTIVE;
+            interactiveCount.incrementAndGet();
+            cleanup();
+            interactive.put(getKey(inDoc.getRepositoryName(), inDoc.getId()),
+                    Long.valueOf(System.currentTimeMillis()));
+        }
+        return lane;
+    }
+
+    /*
+     * The lane of the renditions of inDoc. The classification is consumed.
+     */
+    public static String takeLane(DocumentModel inDoc) {
+
+        Long classified = interactive.remove(getKey(inDoc.getRepositoryName(),
+                inDoc.getId()));
+        if (classified != null
+                && System.currentTimeMillis() - classified.longValue() <= TTL) {
+            return INTERACTIVE;
+        }
+        return BULK;
+    }
+
+    protected static void cleanup() {
+
+        if (interactive.size() < MAX_ENTRIES) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = interactive.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().longValue() > TTL) {
+                it.remove();
+            }
+        }
+        // Still full: They are not handled anymore (queue stopped, ...)
+        if (interactive.size() >= MAX_ENTRIES) {
+            interactive.clear();
+        }
+    }
+
+    public static long getInteractiveCount() {
+        return interactiveCount.get();
+    }
+
+    public static long getBulkCount() {
+        return bulkCount.get();
+    }
+}
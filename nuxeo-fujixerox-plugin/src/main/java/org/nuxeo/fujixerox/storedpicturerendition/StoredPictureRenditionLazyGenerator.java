@@ -0,0 +1,223 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Transaction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.rendition.RenditionException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Builds and stores a lazy rendition (see {@link RenditionPlan#isLazy()}) on
+ * its first request.
+ * <p>
+ * Concurrent requests for the same document and the same rendition share the
+ * same computation: The first caller builds the rendition in its own thread,
+ * the others wait for its result. So we never run several ImageMagick
+ * processes for the same rendition.
+ * <p>
+ * The rendition is stored with an unrestricted session (the user asking for
+ * the rendition may only have read access), in its own transaction: The
+ * transaction of the caller (the HTTP request) is suspended meanwhile (see
+ * {@link StoredPictureRenditionTransactions}).
+ * <p>
+ * The build takes the lease of the document (see
+ * {@link StoredPictureRenditionLeases}), and releases it once the rendition
+ * is committed. When another node is building the document, the request
+ * does not wait: It fails with {@link StoredPictureRenditionBusyException}
+ * (the servlet answers 503 with a <code>Retry-After</code>).
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionLazyGenerator {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionLazyGenerator.class);
+
+    protected static final ConcurrentHashMap<String, FutureTask<Blob>> inFlight = new ConcurrentHashMap<String, FutureTask<Blob>>();
+
+    protected static final AtomicLong generated = new AtomicLong();
+
+    protected static final AtomicLong shared = new AtomicLong();
+
+    protected static String getKey(DocumentModel inDoc, String inRenditionName) {
+        return inDoc.getRepositoryName() + "/" + inDoc.getId() + "/"
+                + inRenditionName;
+    }
+
+    public static Blob getOrBuild(final DocumentModel inDoc,
+            final RenditionPlan inPlan) throws RenditionException {
+
+        try {
+            return share(getKey(inDoc, inPlan.getName()), new Callable<Blob>() {
+                @Override
+                public Blob call() throws Exception {
+                    return buildAndStore(inDoc, inPlan);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RenditionException("Interrupted while building <"
+                    + inPlan.getName() + ">", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RenditionException) {
+                throw (RenditionException) e.getCause();
+            }
+            throw new RenditionException("Cannot build the rendition <"
+                    + inPlan.getName() + "> of document " + inDoc.getId(),
+                    e.getCause());
+        }
+    }
+
+    /*
+     * Runs inComputation in the current thread, unless a computation with the
+     * same key is already in progress: In this case, waits for its result.
+     * Nothing is kept once the computation is done (the result is stored in
+     * the document)
+     */
+    public static Blob share(String inKey, Callable<Blob> inComputation)
+            throws InterruptedException, ExecutionException {
+
+        FutureTask<Blob> task = new FutureTask<Blob>(inComputation);
+        FutureTask<Blob> running = inFlight.putIfAbsent(inKey, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(inKey, task);
+            }
+            running = task;
+        } else {
+            shared.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Waiting for " + inKey + ", already in progress");
+            }
+        }
+
+        return running.get();
+    }
+
+    protected static Blob buildAndStore(DocumentModel inDoc,
+            RenditionPlan inPlan) throws RenditionException {
+
+        String repositoryName = inDoc.getRepositoryName();
+        String docId = inDoc.getId();
+        Transaction suspended = StoredPictureRenditionTransactions.suspend();
+        try {
+            String lease = StoredPictureRenditionLeases.acquire(
+                    repositoryName, docId);
+            if (lease == null) {
+                throw new StoredPictureRenditionBusyException(
+                        "The renditions of document " + docId
+                                + " are being built by another node");
+            }
+            try {
+                return buildAndStoreInTransaction(repositoryName, docId,
+                        inPlan);
+            } finally {
+                // Released once the rendition is committed
+                StoredPictureRenditionLeases.release(repositoryName, docId,
+                        lease);
+            }
+        } finally {
+            StoredPictureRenditionTransactions.resume(suspended);
+        }
+    }
+
+    protected static Blob buildAndStoreInTransaction(String inRepositoryName,
+            String inDocId, RenditionPlan inPlan) {
+
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            return buildAndStoreWithLease(inRepositoryName, inDocId, inPlan);
+        } catch (RuntimeException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    /*
+     * The document is loaded after the lease is taken, so a rendition stored
+     * meanwhile by another node is up to date and not built again
+     */
+    protected static Blob buildAndStoreWithLease(String inRepositoryName,
+            final String docId, final RenditionPlan inPlan) {
+
+        final Blob[] result = new Blob[1];
+        new UnrestrictedSessionRunner(inRepositoryName) {
+            @Override
+            public void run() throws ClientException {
+                DocumentModel doc = session.getDocument(new IdRef(docId));
+                try (StoredPictureRenditionBuilder builder = new StoredPictureRenditionBuilder(
+                        doc)) {
+                    Blob blob;
+                    try {
+                        blob = builder.buildRendition(inPlan);
+                    } catch (Exception e) {
+                        throw new ClientException(e);
+                    }
+                    if (blob == null) {
+                        return;
+                    }
+                    if (doc.isDirty()) {
+                        doc = StoredPictureRenditionPersister.save(doc);
+                        generated.incrementAndGet();
+                    }
+                }
+                // Return the stored blob: The temporary file has been deleted
+                // when the builder was closed
+                PictureView view = StoredPictureRenditionStorage.getRendition(
+                        doc, inPlan.getName());
+                result[0] = view == null ? null : view.getBlob();
+            }
+        }.runUnrestricted();
+
+        return result[0];
+    }
+
+    /*
+     * Number of renditions built and stored on request
+     */
+    public static long getGeneratedCount() {
+        return generated.get();
+    }
+
+    /*
+     * Number of requests which waited for a computation already in progress
+     * instead of starting a new one
+     */
+    public static long getSharedCount() {
+        return shared.get();
+    }
+}
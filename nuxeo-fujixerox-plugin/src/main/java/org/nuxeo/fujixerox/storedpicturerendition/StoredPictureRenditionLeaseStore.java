@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+/**
+ * Storage of the leases of {@link StoredPictureRenditionLeases}: A lease is
+ * an exclusive right, for one owner and for a limited time, to build the
+ * stored renditions of one document.
+ * <p>
+ * The store must be shared by all the nodes of the cluster for the lease to
+ * be cluster-wide (see {@link StoredPictureRenditionDirectoryLeaseStore}).
+ * {@link StoredPictureRenditionMemoryLeaseStore} is local to the node (tests,
+ * single node).
+ *
+ * @since 5.9.5
+ */
+public interface StoredPictureRenditionLeaseStore {
+
+    /*
+     * Returns true if inOwner now holds the lease: It was free, expired, or
+     * already held by inOwner (the expiration is then extended)
+     */
+    boolean acquire(String inKey, String inOwner, long inTtlMillis);
+
+    /*
+     * Does nothing if the lease is not held by inOwner (expired and taken by
+     * someone else, for example)
+     */
+    void release(String inKey, String inOwner);
+}
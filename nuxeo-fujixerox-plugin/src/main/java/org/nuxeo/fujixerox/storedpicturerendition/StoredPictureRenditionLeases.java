@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Cluster-wide exclusion of the builds: Only one node at a time builds the
+ * stored renditions of a document. Without it, two nodes handling the same
+ * document (retries, repeated edits) both run ImageMagick and both save
+ * <code>picture:views</code>.
+ * <p>
+ * {@link StoredPictureRenditionWork}, {@link StoredPictureRenditionBackfillWork}
+ * and {@link StoredPictureRenditionLazyGenerator} take the lease of the
+ * document before building, and release it once the renditions are
+ * committed. When another node holds it, the work is scheduled again later,
+ * the backfill hands the document over to the work, and the lazy generator
+ * fails right away (the fingerprints of the renditions make a build cheap
+ * once the other node built the latest binary). The lease store runs in its
+ * own transactions, whatever the transaction of the caller (see
+ * {@link StoredPictureRenditionTransactions}).
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li><code>fujixerox.storedrenditions.lease.store</code>:
+ * <code>directory</code> (default, see
+ * {@link StoredPictureRenditionDirectoryLeaseStore}), <code>memory</code>
+ * (this node only), <code>none</code> (no lease) or the class name of a
+ * {@link StoredPictureRenditionLeaseStore}</li>
+ * <li><code>fujixerox.storedrenditions.lease.ttlSeconds</code>: Expiration of
+ * a lease not released (node stopped during the build), default is 600. Must
+ * be longer than the longest build</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionLeases {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionLeases.class);
+
+    public static final String STORE_PROPERTY = "fujixerox.storedrenditions.lease.store";
+
+    public static final String TTL_SECONDS_PROPERTY = "fujixerox.storedrenditions.lease.ttlSeconds";
+
+    // Identifies this JVM in the owners of the leases (pid@host)
+    protected static final String NODE_NAME = ManagementFactory.getRuntimeMXBean().getName();
+
+    protected static StoredPictureRenditionLeaseStore store;
+
+    protected static boolean storeInitialized = false;
+
+    protected static final AtomicLong acquired = new AtomicLong();
+
+    protected static final AtomicLong busy = new AtomicLong();
+
+    /*
+     * Returns null if the leases are disabled
+     */
+    public static synchronized StoredPictureRenditionLeaseStore getStore() {
+
+        if (!storeInitialized) {
+            String value = Framework.getProperty(STORE_PROPERTY, "directory").trim();
+            switch (value) {
+            case "none":
+                store = null;
+                break;
+
+            case "memory":
+                store = new StoredPictureRenditionMemoryLeaseStore();
+                break;
+
+            case "directory":
+                if (StoredPictureRenditionDirectoryLeaseStore.isAvailable()) {
+                    store = new StoredPictureRenditionDirectoryLeaseStore();
+                } else {
+                    log.warn("The directory "
+                            + StoredPictureRenditionDirectoryLeaseStore.DIRECTORY_NAME
+                            + " is not available: The leases of the stored renditions are local to this node");
+                    store = new StoredPictureRenditionMemoryLeaseStore();
+                }
+                break;
+
+            default:
+                try {
+                    store = (StoredPictureRenditionLeaseStore) Class.forName(
+                            value).newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException("Invalid "
+                            + STORE_PROPERTY + ": " + value, e);
+                }
+                break;
+            }
+            storeInitialized = true;
+        }
+        return store;
+    }
+
+    /*
+     * Used by the unit tests
+     */
+    public static synchronized void setStore(
+            StoredPictureRenditionLeaseStore inStore) {
+        store = inStore;
+        storeInitialized = true;
+    }
+
+    protected static String buildKey(String inRepositoryName, String inDocId) {
+        return inRepositoryName + ":" + inDocId;
+    }
+
+    /*
+     * Returns the owner of the lease (to be passed to release()), or null if
+     * another owner holds it. When the leases are disabled, always returns an
+     * owner.
+     */
+    public static String acquire(String inRepositoryName, String inDocId) {
+
+        String owner = NODE_NAME + "/" + UUID.randomUUID();
+        StoredPictureRenditionLeaseStore s = getStore();
+        if (s == null) {
+            return owner;
+        }
+
+        long ttl = Long.parseLong(Framework.getProperty(TTL_SECONDS_PROPERTY,
+                "600")) * 1000;
+        if (s.acquire(buildKey(inRepositoryName, inDocId), owner, ttl)) {
+            acquired.incrementAndGet();
+            return owner;
+        }
+        busy.incrementAndGet();
+        return null;
+    }
+
+    public static void release(String inRepositoryName, String inDocId,
+            String inOwner) {
+
+        StoredPictureRenditionLeaseStore s = getStore();
+        if (s != null && inOwner != null) {
+            s.release(buildKey(inRepositoryName, inDocId), inOwner);
+        }
+    }
+
+    public static long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /*
+     * Number of times the lease was held by another owner
+     */
+    public static long getBusyCount() {
+        return busy.get();
+    }
+}
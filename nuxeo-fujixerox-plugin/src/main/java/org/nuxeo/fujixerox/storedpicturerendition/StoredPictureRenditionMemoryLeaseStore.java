@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Leases stored in memory: Exclusive on this node only. Used by the unit tests,
+ * on a single node, and when the directory of
+ * {@link StoredPictureRenditionDirectoryLeaseStore} is not available.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionMemoryLeaseStore implements
+        StoredPictureRenditionLeaseStore {
+
+    protected static class Lease {
+
+        protected final String owner;
+
+        protected final long expires;
+
+        protected Lease(String inOwner, long inExpires) {
+            owner = inOwner;
+            expires = inExpires;
+        }
+    }
+
+    protected final Map<String, Lease> leases = new HashMap<String, Lease>();
+
+    @Override
+    public synchronized boolean acquire(String inKey, String inOwner,
+            long inTtlMillis) {
+
+        long now = System.currentTimeMillis();
+        Lease current = leases.get(inKey);
+        if (current != null && current.expires > now
+                && !current.owner.equals(inOwner)) {
+            return false;
+        }
+        leases.put(inKey, new Lease(inOwner, now + inTtlMillis));
+        return true;
+    }
+
+    @Override
+    public synchronized void release(String inKey, String inOwner) {
+
+        Lease current = leases.get(inKey);
+        if (current != null && current.owner.equals(inOwner)) {
+            leases.remove(inKey);
+        }
+    }
+
+    public synchronized int getSize() {
+        return leases.size();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.Serializable;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.VersioningOption;
+import org.nuxeo.ecm.core.versioning.VersioningService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Saves a document whose only change is its stored renditions (in
+ * <code>picture:views</code>, or in their own schema, see
+ * {@link StoredPictureRenditionStorage}), or another state managed by this
+ * plug-in only (the validation status set by
+ * <code>ValidatePictureMetadataWork</code>).
+ * <p>
+ * A usual <code>saveDocument()</code> runs the whole listener chain again
+ * for a change which is not a change of the document for the user: It would
+ * update the modification date and the last contributor, create a version,
+ * log an audit entry, send notifications, and run the listeners of this
+ * plug-in again. So the document is saved with:
+ * <ul>
+ * <li>No versioning</li>
+ * <li>The Dublin Core listener disabled (<code>dc:modified</code> and
+ * <code>dc:lastContributor</code> are unchanged)</li>
+ * <li>The audit and the notifications disabled</li>
+ * <li>A flag telling the listeners of this plug-in to return right away (see
+ * {@link #isRenditionsOnlySave(DocumentModel)})</li>
+ * </ul>
+ * Can be disabled with <code>fujixerox.storedrenditions.lightweightSave</code>
+ * (default is <code>true</code>).
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionPersister {
+
+    public static final String LIGHTWEIGHT_SAVE_PROPERTY = "fujixerox.storedrenditions.lightweightSave";
+
+    public static final String RENDITIONS_ONLY_FLAG = "fujixerox.storedRenditionsOnly";
+
+    // The constants of these services are not referenced, so the plug-in
+    // does not depend on their bundles
+    public static final String DISABLE_DUBLINCORE_LISTENER = "disableDublinCoreListener";
+
+    public static final String DISABLE_AUDIT_LOGGER = "disableAuditLogger";
+
+    public static final String DISABLE_NOTIFICATION_SERVICE = "disableNotificationService";
+
+    public static boolean isLightweightSaveEnabled() {
+        return Boolean.parseBoolean(Framework.getProperty(
+                LIGHTWEIGHT_SAVE_PROPERTY, "true"));
+    }
+
+    /*
+     * Returns the saved document
+     */
+    public static DocumentModel save(DocumentModel inDoc) {
+
+        if (isLightweightSaveEnabled()) {
+            inDoc.putContextData(VersioningService.VERSIONING_OPTION,
+                    VersioningOption.NONE);
+            inDoc.putContextData(DISABLE_DUBLINCORE_LISTENER, Boolean.TRUE);
+            inDoc.putContextData(DISABLE_AUDIT_LOGGER, Boolean.TRUE);
+            inDoc.putContextData(DISABLE_NOTIFICATION_SERVICE, Boolean.TRUE);
+            inDoc.putContextData(RENDITIONS_ONLY_FLAG, Boolean.TRUE);
+        }
+        DocumentModel saved = null;
+        try {
+            saved = inDoc.getCoreSession().saveDocument(inDoc);
+        } finally {
+            // The flags must not apply to a later save of the same model
+            clearFlags(inDoc);
+            if (saved != null && saved != inDoc) {
+                clearFlags(saved);
+            }
+        }
+        return saved;
+    }
+
+    /*
+     * putContextData() stores the values in the default scope (the key of the
+     * map is "default/<key>"), so they are reset the same way instead of
+     * being removed from getContextData()
+     */
+    protected static void clearFlags(DocumentModel inDoc) {
+        for (String oneKey : new String[] {
+                VersioningService.VERSIONING_OPTION,
+                DISABLE_DUBLINCORE_LISTENER, DISABLE_AUDIT_LOGGER,
+                DISABLE_NOTIFICATION_SERVICE, RENDITIONS_ONLY_FLAG }) {
+            inDoc.putContextData(oneKey, null);
+        }
+    }
+
+    /*
+     * true if inDoc is being saved by save(): Only its stored renditions (or
+     * another state managed by this plug-in) changed
+     */
+    public static boolean isRenditionsOnlySave(DocumentModel inDoc) {
+        Serializable flag = inDoc.getContextData(RENDITIONS_ONLY_FLAG);
+        return Boolean.TRUE.equals(flag);
+    }
+}
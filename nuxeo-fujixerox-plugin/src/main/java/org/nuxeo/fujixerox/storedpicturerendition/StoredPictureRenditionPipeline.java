@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Combined ImageMagick pipeline: Instead of running one <code>convert</code>
+ * per rendition (which reads and decodes the source once per rendition), we
+ * build one single command line, which decodes the source once, keeps it in
+ * memory (<code>mpr:</code>) and writes every rendition from this in-memory
+ * copy.
+ * <p>
+ * The command line is built from the command line contributions of the
+ * renditions (see command-line-contrib.xml). A rendition can be combined only
+ * if its command line has the usual form:
+ *
+ * <pre>
+ * convert "#{sourceFilePath}[0]" ...operations... "#{targetFilePath}"
+ * </pre>
+ *
+ * The operations are extracted and their parameters replaced by the values
+ * set by {@link StoredPictureRenditionBuilder}. The final command is run
+ * thanks to the <code>storedRenditionsPipeline</code> command line
+ * contribution. For example, with 3 renditions, we get:
+ *
+ * <pre>
+ * convert "source[0]" -respect-parentheses -write mpr:fxsource +delete
+ *         "(" mpr:fxsource -resize 200x200 -write "target1.jpeg" +delete ")"
+ *         "(" mpr:fxsource -gravity ... -write "target2.jpeg" +delete ")"
+ *         mpr:fxsource "target3.pdf"
+ * </pre>
+ *
+ * (the parenthesis are quoted, so it works the same way with a shell or with
+ * Windows). Renditions which can't be combined are built the usual way.
+ * <p>
+ * This mode is enabled with the
+ * <code>fujixerox.storedrenditions.pipeline.enabled</code> configuration
+ * property.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionPipeline {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionPipeline.class);
+
+    public static final String ENABLED_PROPERTY = "fujixerox.storedrenditions.pipeline.enabled";
+
+    public static final String PIPELINE_COMMAND = "storedRenditionsPipeline";
+
+    public static final String PIPELINE_ARGUMENTS_PARAM = "pipelineArguments";
+
+    protected static final String MPR_NAME = "mpr:fxsource";
+
+    protected static final Pattern PARAM_PATTERN = Pattern.compile("#\\{([^}]+)\\}");
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Framework.getProperty(ENABLED_PROPERTY,
+                "false"));
+    }
+
+    /*
+     * The jobs built with another engine than the command line are not
+     * combined
+     */
+    public boolean accepts(StoredPictureRenditionJob inJob) {
+        return CommandLineRenditionEngine.NAME.equals(inJob.getEngineName())
+                && inJob.getOperations() != null;
+    }
+
+    protected String replaceParams(String inOperations, CmdParameters inParams) {
+
+        Map<String, String> values = inParams.getParameters();
+        Matcher m = PARAM_PATTERN.matcher(inOperations);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String value = values.get(m.group(1));
+            if (value == null) {
+                throw new ClientException("No value for the parameter <"
+                        + m.group(1) + ">");
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(value));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    protected String buildArguments(String inSourceFilePath,
+            List<StoredPictureRenditionJob> inJobs) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\"").append(inSourceFilePath).append("[0]\"");
+        sb.append(" -respect-parentheses -write ").append(MPR_NAME).append(
+                " +delete");
+
+        int last = inJobs.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            StoredPictureRenditionJob oneJob = inJobs.get(i);
+            String operations = replaceParams(oneJob.getOperations(),
+                    oneJob.getParams());
+            String target = "\"" + oneJob.getTargetFile().getAbsolutePath()
+                    + "\"";
+
+            if (i < last) {
+                sb.append(" \"(\" ").append(MPR_NAME);
+                if (!operations.isEmpty()) {
+                    sb.append(" ").append(operations);
+                }
+                sb.append(" -write ").append(target).append(" +delete \")\"");
+            } else {
+                // The last one is the output of the command
+                sb.append(" ").append(MPR_NAME);
+                if (!operations.isEmpty()) {
+                    sb.append(" ").append(operations);
+                }
+                sb.append(" ").append(target);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /*
+     * All the jobs must have been accepted (see accepts()). Returns the blobs
+     * in the same order as the jobs. As for the other modes, it is
+     * all-or-nothing.
+     */
+    public List<Blob> run(List<StoredPictureRenditionJob> inJobs)
+            throws CommandNotAvailable, CommandException {
+
+        List<Blob> results = new ArrayList<Blob>();
+        if (inJobs.isEmpty()) {
+            return results;
+        }
+
+        String sourceFilePath = inJobs.get(0).getParams().getParameters().get(
+                "sourceFilePath");
+        CmdParameters params = new CmdParameters();
+        params.addNamedParameter(PIPELINE_ARGUMENTS_PARAM,
+                buildArguments(sourceFilePath, inJobs));
+
+        CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
+        ExecResult result;
+        try (StoredPictureRenditionCommandLimiter.Permit permit = StoredPictureRenditionCommandLimiter.getInstance().acquire(
+                PIPELINE_COMMAND)) {
+            result = cles.execCommand(PIPELINE_COMMAND, params);
+        }
+        if (result.getError() != null) {
+            throw new CommandException("Failed to execute the command <"
+                    + PIPELINE_COMMAND + ">", result.getError());
+        }
+        if (!result.isSuccessful()) {
+            throw new CommandException("Failed to execute the command <"
+                    + PIPELINE_COMMAND + ">. Final command [ "
+                    + result.getCommandLine() + " ] returned with error "
+                    + result.getReturnCode());
+        }
+
+        // Split the outputs: one blob per rendition
+        for (StoredPictureRenditionJob oneJob : inJobs) {
+            if (oneJob.getTargetFile().length() == 0) {
+                throw new CommandException("The command <" + PIPELINE_COMMAND
+                        + "> did not write the rendition <"
+                        + oneJob.getRenditionName() + ">");
+            }
+            results.add(oneJob.createResultBlob());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(inJobs.size() + " renditions built with one decode: "
+                    + result.getCommandLine());
+        }
+
+        return results;
+    }
+}
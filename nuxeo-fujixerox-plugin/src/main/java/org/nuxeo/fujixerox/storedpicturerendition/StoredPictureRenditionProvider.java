@@ -21,7 +21,7 @@ import java.util.List;
 
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
 import org.nuxeo.ecm.platform.rendition.RenditionException;
 import org.nuxeo.ecm.platform.rendition.extension.RenditionProvider;
@@ -32,10 +32,15 @@ import org.nuxeo.ecm.platform.rendition.service.RenditionDefinition;
  * picture:views field. This way, it is easy to add a rendition or get a
  * rendition thanks to {@link MultiviewPicture}.
  * <p>
- * Storage is done by {@link StoredPictureRenditionBuilder}
+ * Storage is done by {@link StoredPictureRenditionBuilder}, in
+ * picture:views or in a dedicated schema (see
+ * {@link StoredPictureRenditionStorage})
  * <p>
- * <b>IMPORTANT</b>: This provider does not calculate the rendition if it does not
- * exist, it <b>assumes all renditions have already been stored</b>
+ * <b>IMPORTANT</b>: For an "eager" rendition (the default, see
+ * {@link RenditionPlan#getPolicy()}), this provider does not calculate the
+ * rendition if it does not exist, it <b>assumes all renditions have already
+ * been stored</b>. A "lazy" rendition is built and stored on its first
+ * request (see {@link StoredPictureRenditionLazyGenerator})
  * <p>
  *
  * @since 5.9.5
@@ -57,17 +62,41 @@ public class StoredPictureRenditionProvider implements RenditionProvider {
             return false;
         }
 
-        // Check we have something in picture:views, trying to avoid returning
-        // null when render() is called.
-        MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
-        if (mvp != null) {
-            return mvp.getView(definition.getName()) != null;
+        // Check we have the rendition, trying to avoid returning null when
+        // render() is called.
+        // The renditions of the document are read once for all the
+        // definitions (see StoredPictureRenditionIndex)
+        if (!doc.hasSchema("picture")) {
+            return false;
+        }
+        if (StoredPictureRenditionIndex.getInstance().getRenditions(doc).containsKey(
+                definition.getName())) {
+            return true;
+        }
+
+        // Not built yet: A lazy rendition will be built by render()
+        RenditionPlan plan = getLazyPlan(definition);
+        if (plan == null
+                || !StoredPictureRenditionComponent.getInstance().isCommandLineAvailable(
+                        plan.getName())) {
+            return false;
         }
-        return false;
+        BlobHolder bh = doc.getAdapter(BlobHolder.class);
+        return bh != null && bh.getBlob() != null;
+    }
+
+    /*
+     * null if the rendition is not lazy
+     */
+    protected RenditionPlan getLazyPlan(RenditionDefinition definition) {
+        RenditionPlan plan = StoredPictureRenditionComponent.getInstance().getRenditionPlan(
+                definition.getName());
+        return plan != null && plan.isLazy() ? plan : null;
     }
 
     /*
-     * The name of the rendition is the key in the picture:views field.
+     * The name of the rendition is the key in the picture:views field (or in
+     * the fxstoredrenditions schema, see StoredPictureRenditionStorage).
      */
     @Override
     public List<Blob> render(DocumentModel doc, RenditionDefinition definition)
@@ -75,11 +104,20 @@ public class StoredPictureRenditionProvider implements RenditionProvider {
 
         List<Blob> blobs = new ArrayList<Blob>();
 
-        MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
-        if (mvp != null) {
-            PictureView pv = mvp.getView(definition.getName());
-            if (pv != null) {
-                blobs.add(pv.getBlob());
+        if (doc.hasSchema("picture")) {
+            Blob stored = StoredPictureRenditionIndex.getInstance().getRenditions(
+                    doc).get(definition.getName());
+            if (stored != null) {
+                blobs.add(stored);
+            } else {
+                RenditionPlan plan = getLazyPlan(definition);
+                if (plan != null) {
+                    Blob blob = StoredPictureRenditionLazyGenerator.getOrBuild(
+                            doc, plan);
+                    if (blob != null) {
+                        blobs.add(blob);
+                    }
+                }
             }
         }
 
@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+/**
+ * One HTTP byte range (RFC 7233), resolved against the length of the file:
+ * <code>start</code> and <code>end</code> are inclusive.
+ * <p>
+ * Only a single range is supported. A request with several ranges gets the
+ * whole file, which is allowed by the RFC (a server may ignore the Range
+ * header).
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionRange {
+
+    protected final long start;
+
+    protected final long end;
+
+    protected final long total;
+
+    public StoredPictureRenditionRange(long inStart, long inEnd, long inTotal) {
+        start = inStart;
+        end = inEnd;
+        total = inTotal;
+    }
+
+    /*
+     * Returns the whole file (see isFull()) if inHeader is null, is not a
+     * bytes range, has several ranges or is syntactically invalid (for
+     * example "bytes=200-100"). Returns null if the range can't be satisfied
+     * (the caller must then return a 416).
+     */
+    public static StoredPictureRenditionRange parse(String inHeader,
+            long inLength) {
+
+        StoredPictureRenditionRange full = new StoredPictureRenditionRange(0,
+                inLength - 1, inLength);
+        if (inHeader == null) {
+            return full;
+        }
+
+        String header = inHeader.trim();
+        if (!header.startsWith("bytes=")) {
+            return full;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        if (spec.indexOf(',') >= 0) {
+            return full;
+        }
+
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return full;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+
+        long start, end;
+        try {
+            if (first.isEmpty()) {
+                // "bytes=-500": The last 500 bytes
+                if (last.isEmpty()) {
+                    return full;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || inLength == 0) {
+                    return null;
+                }
+                start = Math.max(0, inLength - suffix);
+                end = inLength - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (last.isEmpty()) {
+                    end = inLength - 1;
+                } else {
+                    end = Long.parseLong(last);
+                    if (end < start) {
+                        // Syntactically invalid: Ignored
+                        return full;
+                    }
+                    end = Math.min(end, inLength - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Syntactically invalid: Ignored
+            return full;
+        }
+
+        if (start < 0 || start >= inLength) {
+            return null;
+        }
+        return new StoredPictureRenditionRange(start, end, inLength);
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    public boolean isFull() {
+        return start == 0 && end == total - 1;
+    }
+
+    /*
+     * Value of the Content-Range header of a 206
+     */
+    public String getContentRange() {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Scratch space for the temporary files of the stored renditions (copy of
+ * the source, outputs of the command lines).
+ * <p>
+ * Each build gets its own sub-directory (see {@link #open(long)}), which is
+ * deleted as soon as the build is closed, once the renditions have been
+ * saved in the repository. So we don't rely on <code>deleteOnExit()</code>
+ * (which keeps every path in memory until the JVM stops) or on the garbage
+ * collector to cleanup the files.
+ * <p>
+ * The total disk usage is capped: A build reserves an estimate of its disk
+ * usage when it is opened. If there is not enough room, it waits until
+ * other builds are closed (and fails after a timeout). A build larger than
+ * the cap just waits to be alone.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li><code>fujixerox.storedrenditions.scratch.dir</code>: default is
+ * <code>fujixerox-scratch</code> in the temp. directory. A tmpfs is a good
+ * choice</li>
+ * <li><code>fujixerox.storedrenditions.scratch.maxSizeMB</code>: default is
+ * 2048, 0 for no limit</li>
+ * <li><code>fujixerox.storedrenditions.scratch.waitSeconds</code>: default is
+ * 300</li>
+ * </ul>
+ * The build directories left by a previous run are deleted when the scratch
+ * space is initialized.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionScratchSpace {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionScratchSpace.class);
+
+    public static final String DIR_PROPERTY = "fujixerox.storedrenditions.scratch.dir";
+
+    public static final String MAX_SIZE_MB_PROPERTY = "fujixerox.storedrenditions.scratch.maxSizeMB";
+
+    public static final String WAIT_SECONDS_PROPERTY = "fujixerox.storedrenditions.scratch.waitSeconds";
+
+    protected static final String BUILD_DIR_PREFIX = "build-";
+
+    protected static StoredPictureRenditionScratchSpace instance;
+
+    protected final File directory;
+
+    // The permits are in KB, so a Semaphore (int) can handle a large cap
+    protected final int maxPermits;
+
+    protected final Semaphore permits;
+
+    protected final long waitMillis;
+
+    protected final AtomicLong openBuilds = new AtomicLong();
+
+    protected final AtomicLong waits = new AtomicLong();
+
+    public static synchronized StoredPictureRenditionScratchSpace getInstance() {
+
+        if (instance == null) {
+            String dirPath = Framework.getProperty(DIR_PROPERTY);
+            File dir;
+            if (dirPath != null && !dirPath.isEmpty()) {
+                dir = new File(dirPath);
+            } else {
+                dir = new File(System.getProperty("java.io.tmpdir"),
+                        "fujixerox-scratch");
+            }
+            long maxSizeMB = Long.parseLong(Framework.getProperty(
+                    MAX_SIZE_MB_PROPERTY, "2048"));
+            long waitSeconds = Long.parseLong(Framework.getProperty(
+                    WAIT_SECONDS_PROPERTY, "300"));
+            instance = new StoredPictureRenditionScratchSpace(dir,
+                    maxSizeMB * 1024 * 1024, waitSeconds * 1000);
+        }
+        return instance;
+    }
+
+    public StoredPictureRenditionScratchSpace(File inDirectory, long inMaxSize,
+            long inWaitMillis) {
+
+        directory = inDirectory;
+        maxPermits = (int) Math.min(Integer.MAX_VALUE, toPermits(inMaxSize));
+        permits = maxPermits > 0 ? new Semaphore(maxPermits, true) : null;
+        waitMillis = inWaitMillis;
+
+        // Leftovers of a previous run (only ours, the directory may be
+        // shared)
+        File[] previous = directory.listFiles();
+        if (previous != null) {
+            for (File oneFile : previous) {
+                if (oneFile.getName().startsWith(BUILD_DIR_PREFIX)) {
+                    FileUtils.deleteTree(oneFile);
+                }
+            }
+        }
+        directory.mkdirs();
+    }
+
+    protected static long toPermits(long inBytes) {
+        return (inBytes + 1023) / 1024;
+    }
+
+    /*
+     * Waits until inEstimatedSize bytes can be used (see the class comment).
+     * The caller must close() the build, in a finally block.
+     */
+    public Build open(long inEstimatedSize) {
+
+        int needed = 0;
+        if (permits != null) {
+            needed = (int) Math.max(1,
+                    Math.min(maxPermits, toPermits(inEstimatedSize)));
+            if (!permits.tryAcquire(needed)) {
+                waits.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Waiting for " + needed
+                            + "KB of scratch space, available: "
+                            + permits.availablePermits() + "KB");
+                }
+                boolean acquired;
+                try {
+                    acquired = permits.tryAcquire(needed, waitMillis,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ClientException(
+                            "Interrupted while waiting for scratch space", e);
+                }
+                if (!acquired) {
+                    throw new ClientException("No scratch space available ("
+                            + needed + "KB needed) after " + waitMillis
+                            + "ms");
+                }
+            }
+        }
+
+        File dir;
+        try {
+            dir = Files.createTempDirectory(directory.toPath(),
+                    BUILD_DIR_PREFIX).toFile();
+        } catch (IOException e) {
+            if (permits != null) {
+                permits.release(needed);
+            }
+            throw new ClientException("Cannot create a scratch directory in "
+                    + directory, e);
+        }
+        openBuilds.incrementAndGet();
+        return new Build(dir, needed);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getOpenBuilds() {
+        return openBuilds.get();
+    }
+
+    /*
+     * Number of builds which had to wait for scratch space
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /*
+     * In bytes, -1 if there is no limit
+     */
+    public long getAvailableSize() {
+        return permits == null ? -1 : permits.availablePermits() * 1024L;
+    }
+
+    /**
+     * The scratch directory of one build.
+     */
+    public class Build implements Closeable {
+
+        protected final File dir;
+
+        protected final int reserved;
+
+        protected boolean closed = false;
+
+        protected Build(File inDir, int inReserved) {
+            dir = inDir;
+            reserved = inReserved;
+        }
+
+        public File getDirectory() {
+            return dir;
+        }
+
+        public File createFile(String inPrefix, String inSuffix)
+                throws IOException {
+            if (closed) {
+                throw new IllegalStateException("Scratch directory closed");
+            }
+            return File.createTempFile(inPrefix, inSuffix, dir);
+        }
+
+        /*
+         * Deletes the directory and its files, and releases the reserved
+         * space. Can be called several times.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            FileUtils.deleteTree(dir);
+            openBuilds.decrementAndGet();
+            if (permits != null) {
+                permits.release(reserved);
+            }
+        }
+    }
+}
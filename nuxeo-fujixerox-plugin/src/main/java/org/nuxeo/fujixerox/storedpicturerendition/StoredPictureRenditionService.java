@@ -0,0 +1,49 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.util.List;
+
+/**
+ * Holds the compiled {@link RenditionPlan}s of the stored renditions and the
+ * availability of their command lines.
+ *
+ * @since 5.9.5
+ */
+public interface StoredPictureRenditionService {
+
+    /*
+     * The plans of all the enabled renditions declared for
+     * StoredPictureRenditionProvider, in the order of the rendition
+     * definitions
+     */
+    List<RenditionPlan> getRenditionPlans();
+
+    /*
+     * null if there is no such rendition
+     */
+    RenditionPlan getRenditionPlan(String inName);
+
+    boolean isCommandLineAvailable(String inCommandName);
+
+    /*
+     * Called in the background (see the
+     * fujixerox.storedrenditions.availability.refreshSeconds property), but
+     * can be called at any time
+     */
+    void refreshAvailability();
+}
@@ -0,0 +1,358 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.platform.picture.api.BlobHelper;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Serves the stored renditions directly from their file, without copying
+ * them in memory:
+ *
+ * <pre>
+ * GET /nuxeo/storedrendition/{repository}/{docId}/{renditionName}
+ * </pre>
+ *
+ * <ul>
+ * <li>Supports HEAD, single byte-range requests (<code>Range</code>,
+ * <code>If-Range</code>) and <code>If-None-Match</code>, so a PDF viewer can
+ * load the pages it displays only</li>
+ * <li>When the servlet container supports it (Tomcat with the NIO or APR
+ * connector), the file is sent by the container with <code>sendfile</code>.
+ * Else, it is sent with {@link FileChannel#transferTo}</li>
+ * <li>The user must have read access to the document. A lazy rendition (see
+ * {@link RenditionPlan#isLazy()}) is built on the first request (503 with
+ * a <code>Retry-After</code> while another node builds the document)</li>
+ * </ul>
+ * The servlet is declared in OSGI-INF/deployment-fragment.xml
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionServlet.class);
+
+    // Request attributes of the Tomcat sendfile support
+    public static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    public static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    public static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    public static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    // Seconds before retrying a lazy rendition being built by another node
+    protected static final String RETRY_AFTER_SECONDS = "5";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        serve(req, resp, true);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        serve(req, resp, false);
+    }
+
+    protected void serve(HttpServletRequest req, HttpServletResponse resp,
+            boolean inWithContent) throws IOException {
+
+        // {repository}/{docId}/{renditionName}
+        String path = req.getPathInfo();
+        String[] parts = path == null ? new String[0]
+                : path.substring(1).split("/");
+        if (parts.length != 3) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Expected /{repository}/{docId}/{renditionName}");
+            return;
+        }
+
+        RenditionPlan plan = StoredPictureRenditionComponent.getInstance().getRenditionPlan(
+                parts[2]);
+        if (plan == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        Blob blob;
+        try {
+            blob = getRendition(parts[0], parts[1], plan);
+        } catch (DocumentSecurityException e) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        } catch (StoredPictureRenditionBusyException e) {
+            // Lazy rendition being built by another node
+            resp.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        } catch (ClientException e) {
+            log.debug("Cannot get the rendition " + path, e);
+            blob = null;
+        }
+        if (blob == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        File file = getBackingFile(blob);
+        long length = file != null ? file.length() : blob.getLength();
+        String etag = getETag(blob, file);
+
+        if (etag != null && etag.equals(req.getHeader("If-None-Match"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // The range is ignored if the rendition changed since the client got
+        // its first part. It is ignored also if we can't seek in the blob
+        String rangeHeader = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (length < 0 || (ifRange != null && !ifRange.equals(etag))) {
+            rangeHeader = null;
+        }
+        StoredPictureRenditionRange range;
+        if (length < 0) {
+            // Unknown length: The whole stream, until its end
+            range = new StoredPictureRenditionRange(0, Long.MAX_VALUE - 1,
+                    Long.MAX_VALUE);
+        } else {
+            range = StoredPictureRenditionRange.parse(rangeHeader, length);
+        }
+        if (range == null) {
+            resp.setHeader("Content-Range", "bytes */" + length);
+            resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        String mimeType = blob.getMimeType();
+        resp.setContentType(mimeType != null ? mimeType
+                : plan.getContentType());
+        resp.setHeader("Content-Disposition",
+                getContentDisposition(blob.getFilename()));
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("Cache-Control", "private");
+        if (etag != null) {
+            resp.setHeader("ETag", etag);
+        }
+        if (length >= 0) {
+            resp.setHeader("Content-Length", Long.toString(range.getLength()));
+        }
+        if (!range.isFull()) {
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setHeader("Content-Range", range.getContentRange());
+        }
+
+        if (!inWithContent || range.getLength() == 0) {
+            return;
+        }
+
+        if (file == null) {
+            sendStream(blob, range, resp.getOutputStream());
+        } else if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+            // The container sends the file once we return (end is exclusive)
+            req.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            req.setAttribute(SENDFILE_START, Long.valueOf(range.getStart()));
+            req.setAttribute(SENDFILE_END, Long.valueOf(range.getEnd() + 1));
+        } else {
+            sendFile(file, range, resp.getOutputStream());
+        }
+    }
+
+    /*
+     * The file name comes from the uploaded file: It may contain quotes,
+     * line breaks or non ASCII characters. The plain filename parameter is an
+     * ASCII-only fallback, filename* (RFC 6266/5987) holds the exact name.
+     */
+    public static String getContentDisposition(String inFileName) {
+
+        if (inFileName == null || inFileName.isEmpty()) {
+            return "inline";
+        }
+
+        StringBuilder fallback = new StringBuilder();
+        for (int i = 0; i < inFileName.length(); i++) {
+            char c = inFileName.charAt(i);
+            boolean safe = c >= 0x20 && c <= 0x7e && c != '"' && c != '\\';
+            fallback.append(safe ? c : '_');
+        }
+
+        String encoded;
+        try {
+            // URLEncoder is for forms: a space is "+", and '*' is not encoded
+            encoded = URLEncoder.encode(inFileName, "UTF-8").replace("+",
+                    "%20").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new ClientException(e);
+        }
+
+        return "inline; filename=\"" + fallback + "\"; filename*=UTF-8''"
+                + encoded;
+    }
+
+    /*
+     * The rendition is read with the rights of the current user. The
+     * transaction is needed only to read the document (and to store a lazy
+     * rendition), not to send the file.
+     */
+    protected Blob getRendition(String inRepository, String inDocId,
+            RenditionPlan inPlan) {
+
+        boolean txStarted = !TransactionHelper.isTransactionActive()
+                && TransactionHelper.startTransaction();
+        try {
+            CoreSession session = CoreInstance.openCoreSession(inRepository);
+            try {
+                DocumentModel doc = session.getDocument(new IdRef(inDocId));
+                if (!doc.hasSchema("picture")) {
+                    return null;
+                }
+                PictureView view = StoredPictureRenditionStorage.getRendition(
+                        doc, inPlan.getName());
+                if (view != null) {
+                    return view.getBlob();
+                }
+                if (inPlan.isLazy()) {
+                    return StoredPictureRenditionLazyGenerator.getOrBuild(doc,
+                            inPlan);
+                }
+                return null;
+            } finally {
+                session.close();
+            }
+        } catch (ClientException e) {
+            if (txStarted) {
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    /*
+     * The file of a blob stored in the binary manager (or of a FileBlob).
+     * null if there is no such file.
+     */
+    protected File getBackingFile(Blob inBlob) {
+        try {
+            File f = BlobHelper.getFileFromBlob(inBlob);
+            return f != null && f.isFile() ? f : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    protected String getETag(Blob inBlob, File inFile) {
+        String digest = inBlob.getDigest();
+        if (digest != null && !digest.isEmpty()) {
+            return "\"" + digest + "\"";
+        }
+        if (inFile != null) {
+            return "\"" + inFile.length() + "-" + inFile.lastModified() + "\"";
+        }
+        return null;
+    }
+
+    /*
+     * Zero-copy when the output stream is backed by a channel. Else, the JDK
+     * copies with a small direct buffer, the file is never loaded in memory.
+     */
+    protected void sendFile(File inFile, StoredPictureRenditionRange inRange,
+            OutputStream inOut) throws IOException {
+
+        WritableByteChannel out = Channels.newChannel(inOut);
+        try (FileChannel in = FileChannel.open(inFile.toPath(),
+                StandardOpenOption.READ)) {
+            long position = inRange.getStart();
+            long remaining = inRange.getLength();
+            while (remaining > 0) {
+                long sent = in.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+        inOut.flush();
+    }
+
+    /*
+     * Blob without a file (should not happen with stored renditions)
+     */
+    protected void sendStream(Blob inBlob, StoredPictureRenditionRange inRange,
+            OutputStream inOut) throws IOException {
+
+        try (InputStream in = inBlob.getStream()) {
+            long toSkip = inRange.getStart();
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    return;
+                }
+                toSkip -= skipped;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = inRange.getLength();
+            while (remaining > 0) {
+                int count = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    break;
+                }
+                inOut.write(buffer, 0, count);
+                remaining -= count;
+            }
+        }
+        inOut.flush();
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.PictureViewImpl;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
+import org.nuxeo.fujixerox.BlobDigestHelper;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Where the stored renditions of a document are kept.
+ * <p>
+ * By default, they are entries of <code>picture:views</code> (see
+ * {@link StoredPictureRenditionBuilder}). But every load of a picture which
+ * reads the <code>picture</code> schema (listings, search results, ...) then
+ * loads the renditions too, and this list grows with each new rendition
+ * definition.
+ * <p>
+ * With <code>fujixerox.storedrenditions.storage</code> set to
+ * <code>schema</code>, they are stored in the <code>fxstoredrenditions</code>
+ * schema (facet <code>FxStoredRenditions</code>), one entry per rendition
+ * name. Nothing reads this schema but the renditions code, so it is loaded
+ * only when a rendition is requested or built.
+ * <p>
+ * Migration: In the <code>schema</code> mode, a rendition still in
+ * <code>picture:views</code> is still returned, and it is moved to the schema
+ * (the blob is not built again) the next time the renditions of the
+ * document are built (see {@link #migrate(DocumentModel)}). To migrate all
+ * the pictures, run the backfill (<code>Picture.BackfillStoredRenditions</code>)
+ * on them.
+ * <p>
+ * The renditions are returned as {@link PictureView}, whatever the storage:
+ * the name is the title, the fingerprint is the tag.
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionStorage {
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionStorage.class);
+
+    public static final String STORAGE_PROPERTY = "fujixerox.storedrenditions.storage";
+
+    public static final String STORAGE_VIEWS = "views";
+
+    public static final String STORAGE_SCHEMA = "schema";
+
+    public static final String FACET = "FxStoredRenditions";
+
+    public static final String SCHEMA = "fxstoredrenditions";
+
+    public static final String RENDITIONS_XPATH = "fxsr:renditions";
+
+    protected static final String NAME = "name";
+
+    protected static final String CONTENT = "content";
+
+    protected static final String FINGERPRINT = "fingerprint";
+
+    protected static final String WIDTH = "width";
+
+    protected static final String HEIGHT = "height";
+
+    public static boolean isSchemaStorage() {
+        return STORAGE_SCHEMA.equals(Framework.getProperty(STORAGE_PROPERTY,
+                STORAGE_VIEWS));
+    }
+
+    /*
+     * null if the document has no stored rendition of this name
+     */
+    public static PictureView getRendition(DocumentModel inDoc, String inName) {
+
+        if (isSchemaStorage() && inDoc.hasFacet(FACET)) {
+            Map<String, Serializable> entry = findEntry(getEntries(inDoc),
+                    inName);
+            if (entry != null) {
+                return toView(entry);
+            }
+        }
+
+        // Default storage, or not migrated yet
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        return mvp == null ? null : mvp.getView(inName);
+    }
+
+    /*
+     * All the stored renditions of the document: name => blob. Only the
+     * views named as a rendition plan are returned, not the views of nuxeo
+     * (Thumbnail, Small, ...)
+     */
+    public static Map<String, Blob> getRenditions(DocumentModel inDoc) {
+
+        Map<String, Blob> renditions = new HashMap<String, Blob>();
+        if (!inDoc.hasSchema("picture")) {
+            return renditions;
+        }
+
+        // Default storage, or not migrated yet
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        if (mvp != null) {
+            Set<String> planNames = getPlanNames();
+            for (PictureView oneView : mvp.getViews()) {
+                if (planNames.contains(oneView.getTitle())
+                        && oneView.getBlob() != null) {
+                    renditions.put(oneView.getTitle(), oneView.getBlob());
+                }
+            }
+        }
+
+        // The schema has the latest ones
+        if (isSchemaStorage() && inDoc.hasFacet(FACET)) {
+            for (Map<String, Serializable> oneEntry : getEntries(inDoc)) {
+                Blob blob = (Blob) oneEntry.get(CONTENT);
+                if (blob != null) {
+                    renditions.put((String) oneEntry.get(NAME), blob);
+                }
+            }
+        }
+        return renditions;
+    }
+
+    /*
+     * Changes each time a stored rendition is added, replaced or removed,
+     * even by a save which keeps the modification date (see
+     * StoredPictureRenditionPersister): Fingerprint of the name, the
+     * fingerprint and the digest of each view and each entry of the schema.
+     * Read from the properties of the document, the blobs are not loaded.
+     * null if the document is not a picture
+     */
+    public static String getRenditionsToken(DocumentModel inDoc) {
+
+        if (!inDoc.hasSchema("picture")) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>();
+        addTokenValues(values, getViewEntries(inDoc), "title", "tag",
+                "content");
+        if (isSchemaStorage() && inDoc.hasFacet(FACET)) {
+            addTokenValues(values, getEntries(inDoc), NAME, FINGERPRINT,
+                    CONTENT);
+        }
+        return BlobDigestHelper.fingerprint(values.toArray(new String[values.size()]));
+    }
+
+    protected static void addTokenValues(List<String> inValues,
+            List<Map<String, Serializable>> inEntries, String inNameKey,
+            String inFingerprintKey, String inContentKey) {
+
+        for (Map<String, Serializable> oneEntry : inEntries) {
+            inValues.add((String) oneEntry.get(inNameKey));
+            inValues.add((String) oneEntry.get(inFingerprintKey));
+            Blob blob = (Blob) oneEntry.get(inContentKey);
+            inValues.add(blob == null ? null : blob.getDigest());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static List<Map<String, Serializable>> getViewEntries(
+            DocumentModel inDoc) {
+        List<Map<String, Serializable>> views = (List<Map<String, Serializable>>) inDoc.getPropertyValue("picture:views");
+        return views == null ? new ArrayList<Map<String, Serializable>>()
+                : views;
+    }
+
+    /*
+     * Replaces the rendition of the same name, if any. The document is not
+     * saved.
+     */
+    public static void putRendition(DocumentModel inDoc, PictureView inView) {
+
+        if (!isSchemaStorage()) {
+            MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+            if (mvp.getView(inView.getTitle()) != null) {
+                mvp.removeView(inView.getTitle());
+            }
+            mvp.addView(inView);
+            return;
+        }
+
+        if (!inDoc.hasFacet(FACET)) {
+            inDoc.addFacet(FACET);
+        }
+        List<Map<String, Serializable>> entries = getEntries(inDoc);
+        Map<String, Serializable> previous = findEntry(entries,
+                inView.getTitle());
+        if (previous != null) {
+            entries.remove(previous);
+        }
+        entries.add(toEntry(inView));
+        inDoc.setPropertyValue(RENDITIONS_XPATH, (Serializable) entries);
+
+        // The previous one, built before the migration
+        removeView(inDoc, inView.getTitle());
+    }
+
+    /*
+     * The document is not saved
+     */
+    public static void removeRendition(DocumentModel inDoc, String inName) {
+
+        if (isSchemaStorage() && inDoc.hasFacet(FACET)) {
+            List<Map<String, Serializable>> entries = getEntries(inDoc);
+            Map<String, Serializable> entry = findEntry(entries, inName);
+            if (entry != null) {
+                entries.remove(entry);
+                inDoc.setPropertyValue(RENDITIONS_XPATH,
+                        (Serializable) entries);
+            }
+        }
+        removeView(inDoc, inName);
+    }
+
+    /*
+     * In the schema mode, moves the stored renditions still in
+     * picture:views to the schema (the blobs are just referenced, not copied
+     * nor built again). Only the views named as a rendition plan are moved,
+     * the views of nuxeo (Thumbnail, Small, ...) stay. Returns the number of
+     * renditions moved; the document is dirty if it is not 0, and is not
+     * saved.
+     */
+    public static int migrate(DocumentModel inDoc) {
+
+        if (!isSchemaStorage() || !inDoc.hasSchema("picture")) {
+            return 0;
+        }
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        if (mvp == null) {
+            return 0;
+        }
+
+        Set<String> planNames = getPlanNames();
+        int count = 0;
+        for (PictureView oneView : mvp.getViews()) {
+            if (planNames.contains(oneView.getTitle())) {
+                // Already in the schema: the one of the schema is the latest
+                if (inDoc.hasFacet(FACET)
+                        && findEntry(getEntries(inDoc), oneView.getTitle()) != null) {
+                    removeView(inDoc, oneView.getTitle());
+                } else {
+                    putRendition(inDoc, oneView);
+                }
+                count++;
+            }
+        }
+        if (count > 0 && log.isDebugEnabled()) {
+            log.debug(count + " stored renditions of " + inDoc.getId()
+                    + " moved from picture:views to " + SCHEMA);
+        }
+        return count;
+    }
+
+    protected static Set<String> getPlanNames() {
+        Set<String> planNames = new HashSet<String>();
+        for (RenditionPlan onePlan : StoredPictureRenditionComponent.getInstance().getRenditionPlans()) {
+            planNames.add(onePlan.getName());
+        }
+        return planNames;
+    }
+
+    protected static void removeView(DocumentModel inDoc, String inName) {
+        if (!inDoc.hasSchema("picture")) {
+            return;
+        }
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        if (mvp != null && mvp.getView(inName) != null) {
+            mvp.removeView(inName);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static List<Map<String, Serializable>> getEntries(
+            DocumentModel inDoc) {
+        List<Map<String, Serializable>> entries = (List<Map<String, Serializable>>) inDoc.getPropertyValue(RENDITIONS_XPATH);
+        return entries == null ? new ArrayList<Map<String, Serializable>>()
+                : new ArrayList<Map<String, Serializable>>(entries);
+    }
+
+    protected static Map<String, Serializable> findEntry(
+            List<Map<String, Serializable>> inEntries, String inName) {
+        for (Map<String, Serializable> oneEntry : inEntries) {
+            if (inName.equals(oneEntry.get(NAME))) {
+                return oneEntry;
+            }
+        }
+        return null;
+    }
+
+    protected static PictureView toView(Map<String, Serializable> inEntry) {
+
+        PictureViewImpl view = new PictureViewImpl();
+        view.setTitle((String) inEntry.get(NAME));
+        Blob blob = (Blob) inEntry.get(CONTENT);
+        view.setContent(blob);
+        view.setFilename(blob == null ? null : blob.getFilename());
+        view.setTag((String) inEntry.get(FINGERPRINT));
+        view.setWidth(toInt(inEntry.get(WIDTH)));
+        view.setHeight(toInt(inEntry.get(HEIGHT)));
+        return view;
+    }
+
+    protected static Map<String, Serializable> toEntry(PictureView inView) {
+
+        Map<String, Serializable> entry = new HashMap<String, Serializable>();
+        entry.put(NAME, inView.getTitle());
+        entry.put(CONTENT, (Serializable) inView.getBlob());
+        entry.put(FINGERPRINT, inView.getTag());
+        entry.put(WIDTH, Long.valueOf(inView.getWidth()));
+        entry.put(HEIGHT, Long.valueOf(inView.getHeight()));
+        return entry;
+    }
+
+    protected static int toInt(Serializable inValue) {
+        return inValue instanceof Number ? ((Number) inValue).intValue() : 0;
+    }
+}
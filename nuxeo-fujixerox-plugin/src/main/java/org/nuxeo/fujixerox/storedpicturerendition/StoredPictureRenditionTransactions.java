@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import javax.naming.NamingException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Suspends and resumes the transaction of the caller, so a piece of work runs
+ * in its own transaction whatever the caller (HTTP request, backfill, ...):
+ * <ul>
+ * <li>The leases (see {@link StoredPictureRenditionLeases}) are committed at
+ * once, so the other nodes see them before the build starts, and a failure
+ * to create one does not mark the transaction of the caller rollback-only</li>
+ * <li>A lazy rendition (see {@link StoredPictureRenditionLazyGenerator}) is
+ * committed before its lease is released</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionTransactions {
+
+    /*
+     * Returns the suspended transaction, to be passed to resume(). null if
+     * there is none (or no transaction manager)
+     */
+    public static Transaction suspend() {
+
+        TransactionManager tm;
+        try {
+            tm = TransactionHelper.lookupTransactionManager();
+        } catch (NamingException e) {
+            return null;
+        }
+        try {
+            return tm.getTransaction() == null ? null : tm.suspend();
+        } catch (SystemException e) {
+            throw new ClientException("Cannot suspend the transaction", e);
+        }
+    }
+
+    public static void resume(Transaction inTransaction) {
+
+        if (inTransaction == null) {
+            return;
+        }
+        try {
+            TransactionHelper.lookupTransactionManager().resume(inTransaction);
+        } catch (NamingException | InvalidTransactionException
+                | SystemException e) {
+            throw new ClientException("Cannot resume the transaction", e);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.storedpicturerendition;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.Work.State;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Builds the stored renditions of one document, in the
+ * <code>storedPictureRenditions</code> queue (see
+ * PictureViewsGenerationDoneListener.xml), so it can be sized and monitored
+ * on its own and does not hold the threads of the asynchronous listeners.
+ * <p>
+ * <ul>
+ * <li>The id of the work is based on the id of the document: A document
+ * already in the queue is not queued again (the work loads the document
+ * when it starts, so it builds its latest binary)</li>
+ * <li>The bulk imports use the <code>storedPictureRenditionsBulk</code>
+ * queue, so they never use the threads of the interactive uploads (see
+ * {@link StoredPictureRenditionLanes})</li>
+ * <li>A failure of a command line (<code>CommandException</code>, also thrown
+ * by the engines when ImageMagick exits with an error) is retried with a
+ * backoff: <code>fujixerox.storedrenditions.work.maxRetries</code> (default
+ * 3) and <code>fujixerox.storedrenditions.work.retryDelayMs</code> (default
+ * 1000, doubled at each retry, at most
+ * <code>fujixerox.storedrenditions.work.maxRetryDelayMs</code>, default
+ * 60000)</li>
+ * <li>Each attempt runs in its own transaction, and a retry is a new work
+ * scheduled after the delay: The backoff holds neither a transaction, nor
+ * the lease, nor a thread of the queue. The works still waiting for their
+ * delay when the component is deactivated are scheduled at once, so they
+ * are not lost (see {@link #shutdownRescheduler()})</li>
+ * <li>Only one node of the cluster builds a document at a time (see
+ * {@link StoredPictureRenditionLeases}): When another node holds the lease,
+ * the work is scheduled again after a delay (same backoff). It never gives
+ * up: The lease expires anyway, and the fingerprints make the build cheap
+ * when the other node already built the latest binary</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class StoredPictureRenditionWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    static private Log log = LogFactory.getLog(StoredPictureRenditionWork.class);
+
+    public static final String CATEGORY = "storedPictureRenditions";
+
+    public static final String BULK_CATEGORY = "storedPictureRenditionsBulk";
+
+    public static final String MAX_RETRIES_PROPERTY = "fujixerox.storedrenditions.work.maxRetries";
+
+    public static final String RETRY_DELAY_MS_PROPERTY = "fujixerox.storedrenditions.work.retryDelayMs";
+
+    public static final String MAX_RETRY_DELAY_MS_PROPERTY = "fujixerox.storedrenditions.work.maxRetryDelayMs";
+
+    protected static final AtomicLong scheduled = new AtomicLong();
+
+    protected static final AtomicLong retries = new AtomicLong();
+
+    protected static final AtomicLong failures = new AtomicLong();
+
+    protected static final AtomicLong deferred = new AtomicLong();
+
+    // Schedules the retried and deferred works again after their delay
+    protected static ScheduledExecutorService rescheduler;
+
+    protected final String lane;
+
+    // Number of failed attempts of the command lines before this one
+    protected final int attempt;
+
+    // Number of times this document was deferred because of the lease
+    protected final int deferrals;
+
+    public StoredPictureRenditionWork(String inRepositoryName, String inDocId) {
+        this(inRepositoryName, inDocId, StoredPictureRenditionLanes.INTERACTIVE);
+    }
+
+    /*
+     * One id per lane: A document queued in the bulk lane and then modified
+     * by a user is also queued in the interactive lane
+     */
+    public StoredPictureRenditionWork(String inRepositoryName, String inDocId,
+            String inLane) {
+        this(inRepositoryName, inDocId, inLane, 0, 0);
+    }
+
+    protected StoredPictureRenditionWork(String inRepositoryName,
+            String inDocId, String inLane, int inAttempt, int inDeferrals) {
+        super("fujixerox-renditions-"
+                + (StoredPictureRenditionLanes.BULK.equals(inLane) ? "bulk-"
+                        : "") + inRepositoryName + "-" + inDocId);
+        setDocument(inRepositoryName, inDocId);
+        lane = inLane;
+        attempt = inAttempt;
+        deferrals = inDeferrals;
+    }
+
+    public static void schedule(DocumentModel inDoc) {
+        schedule(inDoc, StoredPictureRenditionLanes.INTERACTIVE);
+    }
+
+    public static void schedule(DocumentModel inDoc, String inLane) {
+        schedule(inDoc.getRepositoryName(), inDoc.getId(), inLane);
+    }
+
+    public static void schedule(String inRepositoryName, String inDocId,
+            String inLane) {
+        Framework.getLocalService(WorkManager.class).schedule(
+                new StoredPictureRenditionWork(inRepositoryName, inDocId,
+                        inLane), Scheduling.IF_NOT_SCHEDULED);
+        scheduled.incrementAndGet();
+    }
+
+    @Override
+    public String getTitle() {
+        return "Stored renditions (" + lane + "): " + docId;
+    }
+
+    @Override
+    public String getCategory() {
+        return getCategory(lane);
+    }
+
+    public static String getCategory(String inLane) {
+        return StoredPictureRenditionLanes.BULK.equals(inLane) ? BULK_CATEGORY
+                : CATEGORY;
+    }
+
+    // One transaction per attempt, see buildInTransaction()
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    protected static boolean isCommandFailure(Throwable inError) {
+        for (Throwable t = inError; t != null; t = t.getCause()) {
+            if (t instanceof CommandException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void work() throws Exception {
+
+        int maxRetries = Integer.parseInt(Framework.getProperty(
+                MAX_RETRIES_PROPERTY, "3"));
+
+        String lease = StoredPictureRenditionLeases.acquire(repositoryName,
+                docId);
+        if (lease == null) {
+            // Another node is building this document
+            long delay = getRetryDelay(deferrals);
+            deferred.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("The stored renditions of " + docId
+                        + " are being built by another node, scheduled again in "
+                        + delay + " ms");
+            }
+            setStatus("Deferred");
+            scheduleLater(createNext(attempt, deferrals + 1), delay);
+            return;
+        }
+
+        ClientException failure;
+        setStatus(attempt == 0 ? "Building" : "Retry " + attempt);
+        try {
+            buildInTransaction();
+            setStatus("Done");
+            return;
+        } catch (ClientException e) {
+            if (!isCommandFailure(e) || attempt >= maxRetries) {
+                failures.incrementAndGet();
+                throw e;
+            }
+            failure = e;
+        } finally {
+            // The renditions are committed (or rolled back) by now
+            StoredPictureRenditionLeases.release(repositoryName, docId, lease);
+        }
+
+        long delay = getRetryDelay(attempt);
+        retries.incrementAndGet();
+        log.warn("Failed to build the stored renditions of " + docId
+                + ", retrying in " + delay + " ms: " + failure.getMessage());
+        setStatus("Retry scheduled");
+        scheduleLater(createNext(attempt + 1, deferrals), delay);
+    }
+
+    /*
+     * retryDelayMs, doubled inCount times, up to maxRetryDelayMs
+     */
+    protected static long getRetryDelay(int inCount) {
+
+        long delay = Long.parseLong(Framework.getProperty(
+                RETRY_DELAY_MS_PROPERTY, "1000"));
+        long maxDelay = Long.parseLong(Framework.getProperty(
+                MAX_RETRY_DELAY_MS_PROPERTY, "60000"));
+        delay <<= Math.min(inCount, 20);
+        return delay <= 0 || delay > maxDelay ? maxDelay : delay;
+    }
+
+    /*
+     * The work which retries this one
+     */
+    protected StoredPictureRenditionWork createNext(int inAttempt,
+            int inDeferrals) {
+        return new StoredPictureRenditionWork(repositoryName, docId, lane,
+                inAttempt, inDeferrals);
+    }
+
+    /*
+     * Schedules inWork once the delay has elapsed, instead of sleeping in the
+     * thread of the queue
+     */
+    protected void scheduleLater(final StoredPictureRenditionWork inWork,
+            long inDelay) {
+
+        getRescheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Framework.getLocalService(WorkManager.class).schedule(
+                            inWork, Scheduling.IF_NOT_SCHEDULED);
+                } catch (RuntimeException e) {
+                    log.error("Cannot schedule again the stored renditions of "
+                            + docId, e);
+                }
+            }
+        }, inDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Called when the component is deactivated: The works still waiting for
+     * their delay are handed over to the WorkManager right away, instead of
+     * being lost with this executor (the WorkManager then keeps them, or
+     * suspends them, as any other scheduled work)
+     */
+    public static void shutdownRescheduler() {
+
+        ScheduledExecutorService s;
+        synchronized (StoredPictureRenditionWork.class) {
+            s = rescheduler;
+            rescheduler = null;
+        }
+        if (s == null) {
+            return;
+        }
+        List<Runnable> pending = s.shutdownNow();
+        for (Runnable onePending : pending) {
+            onePending.run();
+        }
+        if (!pending.isEmpty()) {
+            log.info(pending.size()
+                    + " delayed stored renditions works scheduled at shutdown");
+        }
+    }
+
+    protected static synchronized ScheduledExecutorService getRescheduler() {
+        if (rescheduler == null) {
+            rescheduler = Executors.newSingleThreadScheduledExecutor(new StoredPictureRenditionExecutor.NamedThreadFactory(
+                    "fujixerox-renditions-defer"));
+        }
+        return rescheduler;
+    }
+
+    protected void buildInTransaction() {
+
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    IdRef ref = new IdRef(docId);
+                    if (session.exists(ref)) {
+                        build(session.getDocument(ref));
+                    }
+                }
+            }.runUnrestricted();
+        } catch (RuntimeException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    protected void build(DocumentModel inDoc) {
+
+        if (inDoc.isImmutable() || !inDoc.hasSchema("picture")) {
+            return;
+        }
+
+        // Same binary already being built, or just built, by another work
+        if (!StoredPictureRenditionCoalescer.begin(inDoc)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Renditions of " + inDoc.getId()
+                        + " already built => nothing to do");
+            }
+            return;
+        }
+
+        boolean success = false;
+        StoredPictureRenditionBuilder rh = new StoredPictureRenditionBuilder(
+                inDoc);
+        try {
+            rh.buildAvailableRenditions();
+
+            // ==================================================================
+            // If the pattern is to set a flag on a field of the document,
+            // this is where it must be done
+            // inDoc.setPropertyValue("schemaprefix:fieldname", true);
+            // ==================================================================
+
+            // Saved only if a rendition was built, without running the
+            // listeners again (see StoredPictureRenditionPersister)
+            if (inDoc.isDirty()) {
+                StoredPictureRenditionPersister.save(inDoc);
+            }
+            success = true;
+
+            // ==================================================================
+            // If the pattern is to send a push notification to a webservice
+            // and/or to send an email, this is where it must be done
+            // ==================================================================
+        } catch (CommandNotAvailable | IOException | CommandException e) {
+            throw new ClientException(
+                    "Failed to pre-build the renditions for document "
+                            + inDoc.getId(), e);
+        } finally {
+            // The renditions are now stored (or failed): Cleanup the temp.
+            // files
+            rh.close();
+            StoredPictureRenditionCoalescer.end(inDoc, success);
+        }
+    }
+
+    /*
+     * Number of documents waiting in the queues of both lanes
+     */
+    public static int getQueueDepth() {
+        return getQueueDepth(StoredPictureRenditionLanes.INTERACTIVE)
+                + getQueueDepth(StoredPictureRenditionLanes.BULK);
+    }
+
+    public static int getQueueDepth(String inLane) {
+        WorkManager wm = Framework.getLocalService(WorkManager.class);
+        return wm.getQueueSize(wm.getCategoryQueueId(getCategory(inLane)),
+                State.SCHEDULED);
+    }
+
+    /*
+     * Number of documents being built in both lanes
+     */
+    public static int getRunningCount() {
+        return getRunningCount(StoredPictureRenditionLanes.INTERACTIVE)
+                + getRunningCount(StoredPictureRenditionLanes.BULK);
+    }
+
+    public static int getRunningCount(String inLane) {
+        WorkManager wm = Framework.getLocalService(WorkManager.class);
+        return wm.getQueueSize(wm.getCategoryQueueId(getCategory(inLane)),
+                State.RUNNING);
+    }
+
+    public static long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    public static long getRetryCount() {
+        return retries.get();
+    }
+
+    public static long getFailureCount() {
+        return failures.get();
+    }
+
+    /*
+     * Number of times a document was scheduled again because another node
+     * held the lease (the failures of the command lines are in
+     * getRetryCount())
+     */
+    public static long getDeferredCount() {
+        return deferred.get();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Base class of the built-in rules: Keeps the name and the options of the
+ * contribution.
+ *
+ * @since 5.9.5
+ */
+public abstract class AbstractValidationRule implements ValidationRule {
+
+    protected String name;
+
+    protected Map<String, String> options = Collections.emptyMap();
+
+    @Override
+    public void init(String inName, Map<String, String> inOptions) {
+        name = inName;
+        if (inOptions != null) {
+            options = inOptions;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    protected String getOption(String inName, String inDefault) {
+        String value = options.get(inName);
+        return value == null || value.trim().isEmpty() ? inDefault
+                : value.trim();
+    }
+
+    protected double getDoubleOption(String inName, double inDefault) {
+        String value = getOption(inName, null);
+        if (value == null) {
+            return inDefault;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new ClientException("Invalid value <" + value
+                    + "> for the option <" + inName + "> of the rule <"
+                    + name + ">", e);
+        }
+    }
+
+    protected void addMissing(ValidationResult inResult, String inLabel) {
+        inResult.addError(name, inLabel, null, true);
+    }
+
+    protected void addInvalid(ValidationResult inResult, String inLabel,
+            String inDetail) {
+        inResult.addError(name, inLabel, inDetail, false);
+    }
+}
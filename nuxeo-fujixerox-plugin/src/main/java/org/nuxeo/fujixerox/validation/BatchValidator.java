@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.fujixerox.ValidatePictureMetadata;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionExecutor;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Validates a list of blobs concurrently (see
+ * {@link ValidatePictureMetadata#validate(Blob)}), on a bounded pool shared
+ * by all the callers. The size of the pool is set by the
+ * <code>fujixerox.validation.batch.maxThreads</code> configuration property
+ * (default is the number of processors). The calling thread waits for the
+ * results.
+ *
+ * @since 5.9.5
+ */
+public class BatchValidator {
+
+    public static final String MAX_THREADS_PROPERTY = "fujixerox.validation.batch.maxThreads";
+
+    protected static ThreadPoolExecutor executor;
+
+    protected static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = Integer.parseInt(Framework.getProperty(
+                    MAX_THREADS_PROPERTY,
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+            executor = new ThreadPoolExecutor(threads, threads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new StoredPictureRenditionExecutor.NamedThreadFactory(
+                            "fujixerox-validation"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /*
+     * Returns a map of (file name => error message), in the order of the
+     * blobs. The message is empty if the blob is valid. Two blobs with the
+     * same name get "name (2)", ..., a blob without a name gets "blob-n".
+     * With inFailFast, the validation stops on the first invalid blob: The
+     * others are cancelled and the map contains only the blobs validated so
+     * far.
+     */
+    public static Map<String, String> validateAll(List<Blob> inBlobs,
+            boolean inFailFast) {
+
+        List<String> names = getNames(inBlobs);
+        ExecutorCompletionService<Integer> ecs = new ExecutorCompletionService<Integer>(
+                getExecutor());
+        final String[] results = new String[inBlobs.size()];
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < inBlobs.size(); i++) {
+            final int index = i;
+            final Blob blob = inBlobs.get(i);
+            futures.add(ecs.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    results[index] = ValidatePictureMetadata.validate(blob);
+                    return index;
+                }
+            }));
+        }
+
+        boolean[] done = new boolean[inBlobs.size()];
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                int index = ecs.take().get();
+                done[index] = true;
+                if (inFailFast && !results[index].isEmpty()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while validating", e);
+        } catch (ExecutionException e) {
+            throw new ClientException(e.getCause());
+        } finally {
+            for (Future<Integer> oneFuture : futures) {
+                oneFuture.cancel(true);
+            }
+        }
+
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < inBlobs.size(); i++) {
+            if (done[i]) {
+                map.put(names.get(i), results[i]);
+            }
+        }
+        return map;
+    }
+
+    protected static List<String> getNames(List<Blob> inBlobs) {
+
+        List<String> names = new ArrayList<String>();
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < inBlobs.size(); i++) {
+            String name = inBlobs.get(i).getFilename();
+            if (name == null || name.isEmpty()) {
+                name = "blob-" + (i + 1);
+            }
+            Integer count = counts.get(name);
+            counts.put(name, count == null ? 1 : count + 1);
+            names.add(count == null ? name : name + " (" + (count + 1) + ")");
+        }
+        return names;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The picture must have a colorspace. Option:
+ * <ul>
+ * <li><code>allowed</code>: Comma-separated list of the accepted
+ * colorspaces ("sRGB,CMYK" for example), case insensitive. Default is any
+ * colorspace</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class ColorspaceRule extends AbstractValidationRule {
+
+    protected static final Set<String> KEYS = Collections.singleton(PictureMetadata.COLORSPACE);
+
+    protected Set<String> allowed = new HashSet<String>();
+
+    @Override
+    public void init(String inName, Map<String, String> inOptions) {
+        super.init(inName, inOptions);
+        String list = getOption("allowed", "");
+        for (String oneValue : list.split(",")) {
+            oneValue = oneValue.trim();
+            if (!oneValue.isEmpty()) {
+                allowed.add(oneValue.toLowerCase(Locale.ENGLISH));
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getRequiredKeys() {
+        return KEYS;
+    }
+
+    @Override
+    public void check(PictureMetadata inMetadata, ValidationResult inResult) {
+
+        String colorspace = inMetadata.getColorspace();
+        if (colorspace == null || colorspace.isEmpty()) {
+            addMissing(inResult, "Colorspace");
+        } else if (!allowed.isEmpty()
+                && !allowed.contains(colorspace.toLowerCase(Locale.ENGLISH))) {
+            addInvalid(inResult, "Colorspace", colorspace);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The picture must embed an ICC profile. No option.
+ *
+ * @since 5.9.5
+ */
+public class IccProfileRule extends AbstractValidationRule {
+
+    protected static final Set<String> KEYS = Collections.singleton(PictureMetadata.ICC_PROFILE);
+
+    @Override
+    public Set<String> getRequiredKeys() {
+        return KEYS;
+    }
+
+    @Override
+    public void check(PictureMetadata inMetadata, ValidationResult inResult) {
+        if (!inMetadata.hasIccProfile()) {
+            addMissing(inResult, "ICC profile");
+        }
+    }
+}
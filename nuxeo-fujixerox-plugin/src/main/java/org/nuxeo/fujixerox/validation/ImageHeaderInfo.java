@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+/**
+ * What {@link ImageHeaderReader} found in the header of an image. A
+ * resolution of 0 means the image does not have a resolution.
+ *
+ * @since 5.9.5
+ */
+public class ImageHeaderInfo {
+
+    protected String format;
+
+    protected double xDpi;
+
+    protected double yDpi;
+
+    protected String colorspace;
+
+    protected long width;
+
+    protected long height;
+
+    protected boolean iccProfile;
+
+    public ImageHeaderInfo(String inFormat) {
+        format = inFormat;
+    }
+
+    /*
+     * "JPEG", "PNG" or "TIFF"
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    public double getXDpi() {
+        return xDpi;
+    }
+
+    public double getYDpi() {
+        return yDpi;
+    }
+
+    protected void setResolution(double inX, double inY, double inToDpi) {
+        xDpi = inX * inToDpi;
+        yDpi = inY * inToDpi;
+    }
+
+    /*
+     * Same names as ImageMagick: "sRGB", "Gray", "CMYK", ...
+     */
+    public String getColorspace() {
+        return colorspace;
+    }
+
+    protected void setColorspace(String inColorspace) {
+        colorspace = inColorspace;
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    protected void setSize(long inWidth, long inHeight) {
+        width = inWidth;
+        height = inHeight;
+    }
+
+    public boolean hasIccProfile() {
+        return iccProfile;
+    }
+
+    protected void setIccProfile(boolean inValue) {
+        iccProfile = inValue;
+    }
+
+    @Override
+    public String toString() {
+        return format + " " + width + "x" + height + ", " + xDpi + "x" + yDpi
+                + " dpi, " + colorspace + (iccProfile ? ", ICC" : "");
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Reads the resolution, the colorspace and the size of an image from its
+ * header only, in pure Java: No external process, and only the first bytes of
+ * the file are read (the segments we don't need are skipped).
+ * <ul>
+ * <li>JPEG: JFIF (APP0), EXIF (APP1), ICC profile (APP2) and SOF
+ * segments</li>
+ * <li>PNG: IHDR, pHYs and iCCP chunks</li>
+ * <li>TIFF: First IFD (only if it is in the first 64KB of the file)</li>
+ * </ul>
+ * The values are the ones ImageMagick would return. When the header is not
+ * enough to be sure of it (unknown format, resolution without unit, JPEG
+ * with an EXIF resolution only, ...), <code>read()</code> returns null and the
+ * caller must use <code>ImageMetadataReader</code>.
+ *
+ * @since 5.9.5
+ */
+public class ImageHeaderReader {
+
+    static private Log log = LogFactory.getLog(ImageHeaderReader.class);
+
+    protected static final int TIFF_BUFFER_SIZE = 64 * 1024;
+
+    protected static final double CM_TO_INCH = 2.54;
+
+    protected static final double METER_TO_INCH = 0.0254;
+
+    protected static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N',
+            'G', '\r', '\n', 0x1a, '\n' };
+
+    /*
+     * Returns null if the format is not handled or if the header is not
+     * enough (see the class comment)
+     */
+    public static ImageHeaderInfo read(Blob inBlob) {
+
+        if (inBlob == null) {
+            return null;
+        }
+        try (InputStream in = inBlob.getStream()) {
+            if (in == null) {
+                return null;
+            }
+            return read(in);
+        } catch (IOException | RuntimeException e) {
+            // Truncated or unexpected header: Let ImageMagick tell
+            if (log.isDebugEnabled()) {
+                log.debug("Cannot read the header of " + inBlob.getFilename(),
+                        e);
+            }
+            return null;
+        }
+    }
+
+    public static ImageHeaderInfo read(InputStream inStream)
+            throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                inStream, 8192));
+        in.mark(8);
+        byte[] magic = new byte[8];
+        int count = readAtMost(in, magic, 0, 8);
+        in.reset();
+        if (count < 4) {
+            return null;
+        }
+
+        if ((magic[0] & 0xff) == 0xff && (magic[1] & 0xff) == 0xd8) {
+            return readJpeg(in);
+        }
+        if (count == 8 && startsWith(magic, PNG_SIGNATURE)) {
+            return readPng(in);
+        }
+        if ((magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0)
+                || (magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42)) {
+            byte[] buffer = new byte[TIFF_BUFFER_SIZE];
+            int length = readAtMost(in, buffer, 0, buffer.length);
+            ImageHeaderInfo info = new ImageHeaderInfo("TIFF");
+            return readTiff(buffer, 0, length, info, true) ? info : null;
+        }
+        return null;
+    }
+
+    protected static ImageHeaderInfo readJpeg(DataInputStream in)
+            throws IOException {
+
+        ImageHeaderInfo info = new ImageHeaderInfo("JPEG");
+        in.skipBytes(2);
+
+        boolean jfifResolution = false;
+        boolean jfifAmbiguous = false;
+        boolean exifResolution = false;
+        int components = 0;
+
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xff) {
+                return null;
+            }
+            // Fill bytes
+            while (marker == 0xff) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0xd8 || marker == 0x01
+                    || (marker >= 0xd0 && marker <= 0xd7)) {
+                continue;
+            }
+            if (marker == 0xda || marker == 0xd9) {
+                // Start of scan: The header is done
+                break;
+            }
+
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+
+            if (marker == 0xe0 && length >= 12) {
+                byte[] seg = readFully(in, length);
+                if (startsWith(seg, "JFIF\0")) {
+                    int units = seg[7] & 0xff;
+                    int x = ((seg[8] & 0xff) << 8) | (seg[9] & 0xff);
+                    int y = ((seg[10] & 0xff) << 8) | (seg[11] & 0xff);
+                    // Like ImageMagick: A 1x1 density is the default value
+                    // written by most encoders, it is not a resolution
+                    if (!(x == 1 && y == 1)) {
+                        if (units == 1) {
+                            info.setResolution(x, y, 1);
+                            jfifResolution = true;
+                        } else if (units == 2) {
+                            info.setResolution(x, y, CM_TO_INCH);
+                            jfifResolution = true;
+                        } else {
+                            jfifAmbiguous = true;
+                        }
+                    }
+                }
+            } else if (marker == 0xe1 && length >= 14) {
+                byte[] seg = readFully(in, length);
+                if (startsWith(seg, "Exif\0\0")) {
+                    ImageHeaderInfo exif = new ImageHeaderInfo("EXIF");
+                    if (readTiff(seg, 6, seg.length, exif, false)
+                            && exif.getXDpi() > 0) {
+                        exifResolution = true;
+                    }
+                }
+            } else if (marker == 0xe2 && length >= 12) {
+                byte[] seg = readFully(in, length);
+                if (startsWith(seg, "ICC_PROFILE\0")) {
+                    info.setIccProfile(true);
+                }
+            } else if (isSof(marker) && length >= 6) {
+                byte[] seg = readFully(in, length);
+                int height = ((seg[1] & 0xff) << 8) | (seg[2] & 0xff);
+                int width = ((seg[3] & 0xff) << 8) | (seg[4] & 0xff);
+                components = seg[5] & 0xff;
+                info.setSize(width, height);
+            } else {
+                skipFully(in, length);
+            }
+        }
+
+        switch (components) {
+        case 1:
+            info.setColorspace("Gray");
+            break;
+        case 3:
+            // YCbCr, or RGB (Adobe APP14 marker): sRGB for ImageMagick
+            info.setColorspace("sRGB");
+            break;
+        case 4:
+            info.setColorspace("CMYK");
+            break;
+        default:
+            return null;
+        }
+
+        // The resolution is in the EXIF only, or JFIF has no unit: We can't
+        // be sure of what ImageMagick will say
+        if (!jfifResolution && (exifResolution || jfifAmbiguous)) {
+            return null;
+        }
+        return info;
+    }
+
+    protected static boolean isSof(int inMarker) {
+        return inMarker >= 0xc0 && inMarker <= 0xcf && inMarker != 0xc4
+                && inMarker != 0xc8 && inMarker != 0xcc;
+    }
+
+    protected static ImageHeaderInfo readPng(DataInputStream in)
+            throws IOException {
+
+        ImageHeaderInfo info = new ImageHeaderInfo("PNG");
+        skipFully(in, PNG_SIGNATURE.length);
+
+        boolean ihdr = false;
+        while (true) {
+            long length = in.readInt() & 0xffffffffL;
+            byte[] type = readFully(in, 4);
+            String typeStr = new String(type, StandardCharsets.US_ASCII);
+
+            if ("IHDR".equals(typeStr) && length >= 13) {
+                long width = in.readInt() & 0xffffffffL;
+                long height = in.readInt() & 0xffffffffL;
+                in.readUnsignedByte(); // bit depth
+                int colorType = in.readUnsignedByte();
+                skipFully(in, length - 10);
+                info.setSize(width, height);
+                info.setColorspace(colorType == 0 || colorType == 4 ? "Gray"
+                        : "sRGB");
+                ihdr = true;
+            } else if ("pHYs".equals(typeStr) && length >= 9) {
+                long x = in.readInt() & 0xffffffffL;
+                long y = in.readInt() & 0xffffffffL;
+                int unit = in.readUnsignedByte();
+                skipFully(in, length - 9);
+                if (unit != 1) {
+                    // Aspect ratio only
+                    return null;
+                }
+                info.setResolution(x, y, METER_TO_INCH);
+            } else if ("iCCP".equals(typeStr)) {
+                info.setIccProfile(true);
+                skipFully(in, length);
+            } else if ("IDAT".equals(typeStr) || "IEND".equals(typeStr)) {
+                break;
+            } else {
+                skipFully(in, length);
+            }
+            // CRC
+            skipFully(in, 4);
+        }
+
+        return ihdr ? info : null;
+    }
+
+    /*
+     * Reads the first IFD of the TIFF structure starting at inStart (a TIFF
+     * file, or the EXIF segment of a JPEG). Returns false if the IFD is not
+     * in the buffer or if the values are not what we expect.
+     */
+    protected static boolean readTiff(byte[] inBuffer, int inStart,
+            int inEnd, ImageHeaderInfo inInfo, boolean inColorspace) {
+
+        TiffBuffer b = new TiffBuffer(inBuffer, inStart, inEnd);
+        if (!b.has(0, 8)) {
+            return false;
+        }
+        b.littleEndian = inBuffer[inStart] == 'I';
+        long ifd = b.getInt(4);
+        if (!b.has(ifd, 2)) {
+            return false;
+        }
+
+        int entries = b.getShort(ifd);
+        if (!b.has(ifd + 2, entries * 12L)) {
+            return false;
+        }
+
+        double x = 0, y = 0;
+        int unit = 2;
+        int photometric = -1;
+        long width = 0, height = 0;
+        for (int i = 0; i < entries; i++) {
+            long e = ifd + 2 + i * 12L;
+            int tag = b.getShort(e);
+            int type = b.getShort(e + 2);
+            switch (tag) {
+            case 256:
+                width = b.getValue(e, type);
+                break;
+            case 257:
+                height = b.getValue(e, type);
+                break;
+            case 262:
+                photometric = (int) b.getValue(e, type);
+                break;
+            case 282:
+                x = b.getRational(e);
+                break;
+            case 283:
+                y = b.getRational(e);
+                break;
+            case 296:
+                unit = (int) b.getValue(e, type);
+                break;
+            case 34675:
+                inInfo.setIccProfile(true);
+                break;
+            default:
+                break;
+            }
+        }
+        if (x < 0 || y < 0) {
+            // The rational is out of the buffer
+            return false;
+        }
+
+        inInfo.setSize(width, height);
+        if (x > 0 || y > 0) {
+            if (unit == 2) {
+                inInfo.setResolution(x, y, 1);
+            } else if (unit == 3) {
+                inInfo.setResolution(x, y, CM_TO_INCH);
+            } else {
+                return false;
+            }
+        }
+
+        if (inColorspace) {
+            switch (photometric) {
+            case 0:
+            case 1:
+                inInfo.setColorspace("Gray");
+                break;
+            case 2:
+            case 3:
+                inInfo.setColorspace("sRGB");
+                break;
+            case 5:
+                inInfo.setColorspace("CMYK");
+                break;
+            case 6:
+                inInfo.setColorspace("YCbCr");
+                break;
+            case 8:
+            case 9:
+            case 10:
+                inInfo.setColorspace("Lab");
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Random access to a TIFF structure in a buffer. The offsets are relative
+     * to the start of the structure.
+     */
+    protected static class TiffBuffer {
+
+        protected final byte[] buffer;
+
+        protected final int start;
+
+        protected final int end;
+
+        protected boolean littleEndian;
+
+        protected TiffBuffer(byte[] inBuffer, int inStart, int inEnd) {
+            buffer = inBuffer;
+            start = inStart;
+            end = inEnd;
+        }
+
+        protected boolean has(long inOffset, long inLength) {
+            return inOffset >= 0 && start + inOffset + inLength <= end;
+        }
+
+        protected int getByte(long inOffset) {
+            return buffer[(int) (start + inOffset)] & 0xff;
+        }
+
+        protected int getShort(long inOffset) {
+            int b0 = getByte(inOffset), b1 = getByte(inOffset + 1);
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        protected long getInt(long inOffset) {
+            long s0 = getShort(inOffset), s1 = getShort(inOffset + 2);
+            return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+        }
+
+        /*
+         * SHORT or LONG value of an entry
+         */
+        protected long getValue(long inEntry, int inType) {
+            return inType == 3 ? getShort(inEntry + 8) : getInt(inEntry + 8);
+        }
+
+        /*
+         * RATIONAL value of an entry, -1 if it is out of the buffer
+         */
+        protected double getRational(long inEntry) {
+            long offset = getInt(inEntry + 8);
+            if (!has(offset, 8)) {
+                return -1;
+            }
+            long num = getInt(offset), den = getInt(offset + 4);
+            return den == 0 ? 0 : (double) num / den;
+        }
+    }
+
+    protected static boolean startsWith(byte[] inBytes, byte[] inPrefix) {
+        if (inBytes.length < inPrefix.length) {
+            return false;
+        }
+        for (int i = 0; i < inPrefix.length; i++) {
+            if (inBytes[i] != inPrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean startsWith(byte[] inBytes, String inPrefix) {
+        return startsWith(inBytes, inPrefix.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    protected static byte[] readFully(DataInputStream in, int inLength)
+            throws IOException {
+        byte[] bytes = new byte[inLength];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    protected static void skipFully(InputStream in, long inLength)
+            throws IOException {
+        long remaining = inLength;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    protected static int readAtMost(InputStream in, byte[] inBuffer,
+            int inOffset, int inLength) throws IOException {
+        int total = 0;
+        while (total < inLength) {
+            int count = in.read(inBuffer, inOffset + total, inLength - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The picture must not be too big (width x height). Option:
+ * <ul>
+ * <li><code>max</code>: Maximum number of pixels. Required</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class MaxPixelCountRule extends AbstractValidationRule {
+
+    protected static final Set<String> KEYS = Collections.singleton(PictureMetadata.GEOMETRY);
+
+    protected long max;
+
+    @Override
+    public void init(String inName, Map<String, String> inOptions) {
+        super.init(inName, inOptions);
+        max = (long) getDoubleOption("max", 0);
+    }
+
+    @Override
+    public Set<String> getRequiredKeys() {
+        return KEYS;
+    }
+
+    @Override
+    public void check(PictureMetadata inMetadata, ValidationResult inResult) {
+
+        long pixels = inMetadata.getWidth() * inMetadata.getHeight();
+        if (pixels == 0) {
+            addMissing(inResult, "Geometry");
+        } else if (max > 0 && pixels > max) {
+            addInvalid(inResult, "Geometry", inMetadata.getWidth() + "x"
+                    + inMetadata.getHeight() + ", max. " + max + " pixels");
+        }
+    }
+}
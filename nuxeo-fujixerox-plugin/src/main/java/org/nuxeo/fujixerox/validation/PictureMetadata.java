@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.imagemetadata.ImageMetadataConstants.KEYS;
+import org.nuxeo.imagemetadata.XYResolutionDPI;
+
+/**
+ * The metadata of a picture checked by the {@link ValidationRule}s, extracted
+ * once for all the rules (see {@link ValidationPlan}), either from the header
+ * ({@link ImageHeaderReader}) or with <code>ImageMetadataReader</code>.
+ * <p>
+ * The keys are the keys of <code>ImageMetadataReader</code>: A value is
+ * available only if its key was requested by a rule.
+ *
+ * @since 5.9.5
+ */
+public class PictureMetadata {
+
+    public static final String RESOLUTION = KEYS.RESOLUTION;
+
+    public static final String UNITS = KEYS.UNITS;
+
+    public static final String COLORSPACE = KEYS.COLORSPACE;
+
+    // "640x427+0+0"
+    public static final String GEOMETRY = "Geometry";
+
+    // Set only if the image has an ICC profile
+    public static final String ICC_PROFILE = "Profile-icc";
+
+    // What ImageHeaderReader can give
+    public static final Set<String> HEADER_KEYS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList(RESOLUTION, UNITS, COLORSPACE, GEOMETRY,
+                    ICC_PROFILE)));
+
+    protected double xDpi;
+
+    protected double yDpi;
+
+    protected String colorspace;
+
+    protected long width;
+
+    protected long height;
+
+    protected boolean iccProfile;
+
+    protected Map<String, String> values;
+
+    public static PictureMetadata fromHeader(ImageHeaderInfo inHeader) {
+
+        PictureMetadata m = new PictureMetadata();
+        m.xDpi = inHeader.getXDpi();
+        m.yDpi = inHeader.getYDpi();
+        m.colorspace = inHeader.getColorspace();
+        m.width = inHeader.getWidth();
+        m.height = inHeader.getHeight();
+        m.iccProfile = inHeader.hasIccProfile();
+        m.values = Collections.emptyMap();
+        return m;
+    }
+
+    /*
+     * inValues is the result of ImageMetadataReader#getMetadata()
+     */
+    public static PictureMetadata fromValues(Map<String, String> inValues) {
+
+        PictureMetadata m = new PictureMetadata();
+        m.values = Collections.unmodifiableMap(inValues);
+        if (inValues.containsKey(RESOLUTION)) {
+            // Resolution needs extra work
+            XYResolutionDPI dpi = new XYResolutionDPI(
+                    inValues.get(RESOLUTION), inValues.get(UNITS));
+            m.xDpi = dpi.getX();
+            m.yDpi = dpi.getY();
+        }
+        m.colorspace = inValues.get(COLORSPACE);
+        String geometry = inValues.get(GEOMETRY);
+        if (geometry != null && !geometry.isEmpty()) {
+            String size = geometry.split("\\+")[0];
+            int x = size.indexOf('x');
+            if (x > 0) {
+                try {
+                    m.width = Long.parseLong(size.substring(0, x).trim());
+                    m.height = Long.parseLong(size.substring(x + 1).trim());
+                } catch (NumberFormatException e) {
+                    // Unknown size
+                }
+            }
+        }
+        String icc = inValues.get(ICC_PROFILE);
+        m.iccProfile = icc != null && !icc.isEmpty();
+        return m;
+    }
+
+    /*
+     * 0 if the image has no resolution
+     */
+    public double getXDpi() {
+        return xDpi;
+    }
+
+    public double getYDpi() {
+        return yDpi;
+    }
+
+    /*
+     * null or empty if unknown
+     */
+    public String getColorspace() {
+        return colorspace;
+    }
+
+    /*
+     * 0 if unknown
+     */
+    public long getWidth() {
+        return width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public boolean hasIccProfile() {
+        return iccProfile;
+    }
+
+    /*
+     * Raw value read by ImageMetadataReader (null when the metadata were read
+     * from the header)
+     */
+    public String getValue(String inKey) {
+        return values.get(inKey);
+    }
+}
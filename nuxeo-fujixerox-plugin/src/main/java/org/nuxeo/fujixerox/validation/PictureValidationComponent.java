@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Compiles the <code>rules</code> contributions into an immutable
+ * {@link ValidationPlan}, the first time it is needed and again when a
+ * contribution is registered or unregistered.
+ *
+ * @since 5.9.5
+ */
+public class PictureValidationComponent extends DefaultComponent implements
+        PictureValidationService {
+
+    static private Log log = LogFactory.getLog(PictureValidationComponent.class);
+
+    public static final String RULES_XP = "rules";
+
+    protected static volatile PictureValidationComponent instance;
+
+    protected final Map<String, ValidationRuleDescriptor> descriptors = new LinkedHashMap<String, ValidationRuleDescriptor>();
+
+    // null => must be compiled
+    protected volatile ValidationPlan plan;
+
+    /*
+     * Returns null if the service is not deployed
+     */
+    public static PictureValidationService getInstance() {
+        PictureValidationComponent component = instance;
+        if (component == null) {
+            return Framework.getLocalService(PictureValidationService.class);
+        }
+        return component;
+    }
+
+    @Override
+    public void activate(ComponentContext context) {
+        instance = this;
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+        instance = null;
+    }
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (RULES_XP.equals(extensionPoint)) {
+            ValidationRuleDescriptor desc = (ValidationRuleDescriptor) contribution;
+            synchronized (descriptors) {
+                // Keep the order of the first contribution
+                descriptors.put(desc.getName(), desc);
+            }
+            plan = null;
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (RULES_XP.equals(extensionPoint)) {
+            ValidationRuleDescriptor desc = (ValidationRuleDescriptor) contribution;
+            synchronized (descriptors) {
+                descriptors.remove(desc.getName());
+            }
+            plan = null;
+        }
+    }
+
+    @Override
+    public ValidationPlan getPlan() {
+        ValidationPlan current = plan;
+        if (current == null) {
+            current = compile();
+        }
+        return current;
+    }
+
+    protected synchronized ValidationPlan compile() {
+
+        if (plan != null) {
+            return plan;
+        }
+
+        List<ValidationRuleDescriptor> enabled = new ArrayList<ValidationRuleDescriptor>();
+        synchronized (descriptors) {
+            for (ValidationRuleDescriptor oneDesc : descriptors.values()) {
+                if (oneDesc.isEnabled()) {
+                    enabled.add(oneDesc);
+                }
+            }
+        }
+
+        Map<String, ValidationRule> rules = new LinkedHashMap<String, ValidationRule>();
+        for (ValidationRuleDescriptor oneDesc : enabled) {
+            if (oneDesc.getRuleClass() == null) {
+                throw new ClientException("No class for the validation rule <"
+                        + oneDesc.getName() + ">");
+            }
+            ValidationRule rule;
+            try {
+                rule = oneDesc.getRuleClass().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new ClientException(
+                        "Cannot instantiate the validation rule <"
+                                + oneDesc.getName() + ">", e);
+            }
+            rule.init(oneDesc.getName(), oneDesc.getOptions());
+            rules.put(oneDesc.getName(), rule);
+        }
+
+        plan = new ValidationPlan(rules, ValidationPlan.fingerprint(enabled));
+        if (log.isDebugEnabled()) {
+            log.debug("Validation rules " + rules.keySet()
+                    + ", metadata keys " + plan.getRequiredKeys());
+        }
+        return plan;
+    }
+}
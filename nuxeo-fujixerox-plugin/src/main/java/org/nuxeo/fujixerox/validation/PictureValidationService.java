@@ -0,0 +1,31 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+/**
+ * Holds the validation rules contributed to the <code>rules</code> extension
+ * point, compiled in a {@link ValidationPlan}.
+ *
+ * @since 5.9.5
+ */
+public interface PictureValidationService {
+
+    /*
+     * The current plan: Compiled once, and again when a rule is contributed
+     */
+    ValidationPlan getPlan();
+}
@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The picture must have a resolution. Option:
+ * <ul>
+ * <li><code>minDpi</code>: Minimum resolution, in DPI, for both axis.
+ * Default is 0 (any resolution is accepted)</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class ResolutionRule extends AbstractValidationRule {
+
+    protected static final Set<String> KEYS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList(PictureMetadata.RESOLUTION, PictureMetadata.UNITS)));
+
+    protected double minDpi;
+
+    @Override
+    public void init(String inName, Map<String, String> inOptions) {
+        super.init(inName, inOptions);
+        minDpi = getDoubleOption("minDpi", 0);
+    }
+
+    @Override
+    public Set<String> getRequiredKeys() {
+        return KEYS;
+    }
+
+    protected void check(double inDpi, String inLabel,
+            ValidationResult inResult) {
+        if (inDpi == 0) {
+            addMissing(inResult, inLabel);
+        } else if (inDpi < minDpi) {
+            addInvalid(inResult, inLabel, Math.round(inDpi) + " dpi, min. "
+                    + Math.round(minDpi));
+        }
+    }
+
+    @Override
+    public void check(PictureMetadata inMetadata, ValidationResult inResult) {
+        check(inMetadata.getXDpi(), "X-Resolution", inResult);
+        check(inMetadata.getYDpi(), "Y-Resolution", inResult);
+    }
+}
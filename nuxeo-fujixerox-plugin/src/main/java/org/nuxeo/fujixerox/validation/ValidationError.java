@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.io.Serializable;
+
+/**
+ * One error found by a {@link ValidationRule}.
+ *
+ * @since 5.9.5
+ */
+public class ValidationError implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final String rule;
+
+    protected final String label;
+
+    protected final String detail;
+
+    protected final boolean missing;
+
+    /*
+     * inMissing: the value is missing (else, it is not the expected one,
+     * explained by inDetail)
+     */
+    public ValidationError(String inRule, String inLabel, String inDetail,
+            boolean inMissing) {
+        rule = inRule;
+        label = inLabel;
+        detail = inDetail;
+        missing = inMissing;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    /*
+     * "X-Resolution", "Colorspace", ...
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public boolean isMissing() {
+        return missing;
+    }
+
+    @Override
+    public String toString() {
+        return detail == null || detail.isEmpty() ? label : label + " ("
+                + detail + ")";
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.im4java.core.InfoException;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.fujixerox.BlobDigestHelper;
+import org.nuxeo.imagemetadata.ImageMetadataReader;
+
+/**
+ * The compiled validation rules (see {@link PictureValidationService}):
+ * Immutable, it is shared by all the threads.
+ * <p>
+ * The plan knows the union of the metadata keys needed by its rules, so the
+ * metadata of a picture are extracted once (from the header if it is enough,
+ * else with one single call to <code>ImageMetadataReader</code>), and all
+ * the rules are evaluated against this single result.
+ * <p>
+ * The fingerprint changes when a rule (or one of its options) changes: It is
+ * part of the version of the rules used by {@link ValidationResultCache}.
+ *
+ * @since 5.9.5
+ */
+public class ValidationPlan {
+
+    protected final List<ValidationRule> rules;
+
+    protected final Set<String> requiredKeys;
+
+    protected final String fingerprint;
+
+    public ValidationPlan(Map<String, ValidationRule> inRules,
+            String inFingerprint) {
+
+        rules = Collections.unmodifiableList(new ArrayList<ValidationRule>(
+                inRules.values()));
+        Set<String> keys = new LinkedHashSet<String>();
+        for (ValidationRule oneRule : rules) {
+            keys.addAll(oneRule.getRequiredKeys());
+        }
+        requiredKeys = Collections.unmodifiableSet(keys);
+        fingerprint = inFingerprint;
+    }
+
+    /*
+     * The rules used when the service is not deployed: The same as
+     * validation-rules-contrib.xml
+     */
+    public static ValidationPlan getDefault() {
+
+        Map<String, ValidationRule> rules = new LinkedHashMap<String, ValidationRule>();
+        ValidationRule resolution = new ResolutionRule();
+        resolution.init("resolution", new HashMap<String, String>());
+        rules.put("resolution", resolution);
+        ValidationRule colorspace = new ColorspaceRule();
+        colorspace.init("colorspace", new HashMap<String, String>());
+        rules.put("colorspace", colorspace);
+        return new ValidationPlan(rules, "default");
+    }
+
+    /*
+     * Fingerprint of the contributions (the order of the options does not
+     * matter)
+     */
+    public static String fingerprint(List<ValidationRuleDescriptor> inDescs) {
+
+        List<String> values = new ArrayList<String>();
+        for (ValidationRuleDescriptor oneDesc : inDescs) {
+            values.add(oneDesc.getName());
+            values.add(oneDesc.getRuleClass() == null ? null
+                    : oneDesc.getRuleClass().getName());
+            values.add(new TreeMap<String, String>(oneDesc.getOptions()).toString());
+        }
+        return BlobDigestHelper.fingerprint(values.toArray(new String[values.size()]));
+    }
+
+    public List<ValidationRule> getRules() {
+        return rules;
+    }
+
+    public Set<String> getRequiredKeys() {
+        return requiredKeys;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /*
+     * inHeader may be null (not read, or not enough). The header is used
+     * only if it has all the keys required by the rules.
+     */
+    public PictureMetadata extract(Blob inBlob, ImageHeaderInfo inHeader)
+            throws IOException, InfoException {
+
+        if (inHeader != null
+                && PictureMetadata.HEADER_KEYS.containsAll(requiredKeys)) {
+            return PictureMetadata.fromHeader(inHeader);
+        }
+
+        Map<String, String> values;
+        if (requiredKeys.isEmpty()) {
+            values = new HashMap<String, String>();
+        } else {
+            ImageMetadataReader imdr = new ImageMetadataReader(inBlob);
+            values = imdr.getMetadata(requiredKeys.toArray(new String[requiredKeys.size()]));
+        }
+        return PictureMetadata.fromValues(values);
+    }
+
+    public ValidationResult evaluate(PictureMetadata inMetadata) {
+
+        ValidationResult result = new ValidationResult();
+        for (ValidationRule oneRule : rules) {
+            oneRule.check(inMetadata, result);
+        }
+        return result;
+    }
+
+    public ValidationResult validate(Blob inBlob, ImageHeaderInfo inHeader)
+            throws IOException, InfoException {
+        return evaluate(extract(inBlob, inHeader));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of the validation of a picture: The errors found by the rules,
+ * or the error which prevented the validation (metadata could not be read).
+ *
+ * @since 5.9.5
+ */
+public class ValidationResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final List<ValidationError> errors = new ArrayList<ValidationError>();
+
+    protected String failure;
+
+    public static ValidationResult failed(String inMessage) {
+        ValidationResult result = new ValidationResult();
+        result.failure = inMessage == null ? "Cannot validate the image"
+                : inMessage;
+        return result;
+    }
+
+    public void addError(ValidationError inError) {
+        errors.add(inError);
+    }
+
+    public void addError(String inRule, String inLabel, String inDetail,
+            boolean inMissing) {
+        errors.add(new ValidationError(inRule, inLabel, inDetail, inMissing));
+    }
+
+    public boolean isValid() {
+        return failure == null && errors.isEmpty();
+    }
+
+    /*
+     * true if the metadata could not be read (the result must not be cached)
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public List<ValidationError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /*
+     * The message, as returned by ValidatePictureMetadata.validate(): Empty
+     * if the picture is valid
+     */
+    public String getMessage() {
+
+        if (failure != null) {
+            return failure;
+        }
+        int count = errors.size();
+        if (count == 0) {
+            return "";
+        }
+
+        boolean allMissing = true;
+        for (ValidationError oneError : errors) {
+            allMissing &= oneError.isMissing();
+        }
+        String what = allMissing ? "missing" : "invalid";
+        String errorMsg;
+        if (count > 1) {
+            errorMsg = "This image has " + count + " " + what
+                    + " values in its metadata: ";
+        } else {
+            errorMsg = "This image has a" + (allMissing ? "" : "n") + " "
+                    + what + " value in its metadata: ";
+        }
+        // Sorry for this quick "ArrayString to String" ;->
+        errorMsg += errors.toString().replace("[", "").replace("]", "");
+        return errorMsg;
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Bounded cache of the results of the metadata validation, shared by
+ * <code>ValidatePictureMetadataListener</code> and the
+ * <code>Blob.ValidatePictureMetadata</code> operation (both use
+ * <code>ValidatePictureMetadata.check()</code>).
+ * <p>
+ * The key is the digest of the blob and the version of the validation rules
+ * (which includes the fingerprint of the {@link ValidationPlan}): The same
+ * binary validated with the same rules always gives the same result. When
+ * the version of the rules changes, the whole cache is cleared (the previous
+ * results are useless).
+ * <p>
+ * The least recently used entries are evicted first. Configuration
+ * properties:
+ * <ul>
+ * <li><code>fujixerox.validation.cache.enabled</code>: default is
+ * <code>true</code></li>
+ * <li><code>fujixerox.validation.cache.maxEntries</code>: default is 10000
+ * (entries are small: a digest and a few errors)</li>
+ * </ul>
+ *
+ * @since 5.9.5
+ */
+public class ValidationResultCache {
+
+    public static final String ENABLED_PROPERTY = "fujixerox.validation.cache.enabled";
+
+    public static final String MAX_ENTRIES_PROPERTY = "fujixerox.validation.cache.maxEntries";
+
+    protected static ValidationResultCache instance;
+
+    protected final int maxEntries;
+
+    protected final LinkedHashMap<String, ValidationResult> entries;
+
+    protected String rulesVersion;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Framework.getProperty(ENABLED_PROPERTY,
+                "true"));
+    }
+
+    /*
+     * Returns null if the cache is not enabled
+     */
+    public static synchronized ValidationResultCache getInstance() {
+
+        if (!isEnabled()) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new ValidationResultCache(Integer.parseInt(Framework.getProperty(
+                    MAX_ENTRIES_PROPERTY, "10000")));
+        }
+        return instance;
+    }
+
+    public ValidationResultCache(int inMaxEntries) {
+
+        maxEntries = inMaxEntries;
+        // Access-order => the first entry is the least recently used one
+        entries = new LinkedHashMap<String, ValidationResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ValidationResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /*
+     * Clears the cache if the rules changed since the last call
+     */
+    protected void checkVersion(String inRulesVersion) {
+        if (!inRulesVersion.equals(rulesVersion)) {
+            entries.clear();
+            rulesVersion = inRulesVersion;
+        }
+    }
+
+    /*
+     * null if the result is not in the cache
+     */
+    public ValidationResult get(String inDigest, String inRulesVersion) {
+
+        if (inDigest == null) {
+            return null;
+        }
+        ValidationResult result;
+        synchronized (this) {
+            checkVersion(inRulesVersion);
+            result = entries.get(inDigest);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(String inDigest, String inRulesVersion,
+            ValidationResult inResult) {
+
+        if (inDigest == null || inResult == null || inResult.isFailed()) {
+            return;
+        }
+        synchronized (this) {
+            checkVersion(inRulesVersion);
+            entries.put(inDigest, inResult);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /*
+     * Between 0 and 1
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A validation rule, contributed to the <code>rules</code> extension point of
+ * {@link PictureValidationService}. A rule is stateless once initialized: The
+ * same instance is used concurrently.
+ *
+ * @since 5.9.5
+ */
+public interface ValidationRule {
+
+    /*
+     * Called once, with the options of the contribution
+     */
+    void init(String inName, Map<String, String> inOptions);
+
+    /*
+     * The keys (see PictureMetadata) the rule needs. The metadata of all the
+     * rules are extracted at once.
+     */
+    Set<String> getRequiredKeys();
+
+    /*
+     * Adds its errors (if any) to inResult
+     */
+    void check(PictureMetadata inMetadata, ValidationResult inResult);
+}
@@ -0,0 +1,63 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+package org.nuxeo.fujixerox.validation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A validation rule, contributed to the <code>rules</code> extension point.
+ * A contribution with the same name replaces the previous one (use
+ * <code>enabled="false"</code> to remove a rule).
+ *
+ * @since 5.9.5
+ */
+@XObject("rule")
+public class ValidationRuleDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNode("@class")
+    protected Class<? extends ValidationRule> ruleClass;
+
+    @XNodeMap(value = "option", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> options = new HashMap<String, String>();
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Class<? extends ValidationRule> getRuleClass() {
+        return ruleClass;
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.fujixerox.BlobProbe;
+import org.nuxeo.fujixerox.BlobProbeRegistry;
+
+public class BlobProbeRegistryTest {
+
+    protected FileBlob createBlob(String inDigest) {
+        File f = FileUtils.getResourceFileFromContext("images/image-ok.jpg");
+        FileBlob blob = new FileBlob(f);
+        blob.setDigest(inDigest);
+        return blob;
+    }
+
+    @Test
+    public void testSameDigestSharesTheProbe() {
+
+        BlobProbeRegistry registry = new BlobProbeRegistry(60000, 10);
+        BlobProbe probe = registry.get(createBlob("abc"));
+        long reads = BlobProbeRegistry.getHeaderReads();
+        assertNotNull(probe.getHeader());
+        assertEquals(2033, probe.getWidth());
+        assertEquals(1350, probe.getHeight());
+        assertNotNull(probe.getFile());
+
+        // Another blob, same binary: Nothing is read again
+        BlobProbe other = registry.get(createBlob("abc"));
+        assertSame(probe, other);
+        assertNotNull(other.getHeader());
+        assertEquals(reads + 1, BlobProbeRegistry.getHeaderReads());
+        assertEquals(1, registry.getHits());
+        assertEquals(1, registry.getMisses());
+    }
+
+    @Test
+    public void testNoDigestIsNotShared() {
+
+        BlobProbeRegistry registry = new BlobProbeRegistry(60000, 10);
+        BlobProbe probe = registry.get(createBlob(null));
+        assertNotSame(probe, registry.get(createBlob(null)));
+        assertEquals(0, registry.getSize());
+    }
+
+    @Test
+    public void testExpirationAndEviction() throws Exception {
+
+        BlobProbeRegistry registry = new BlobProbeRegistry(50, 2);
+        BlobProbe probe = registry.get(createBlob("a"));
+        Thread.sleep(100);
+        assertNotSame(probe, registry.get(createBlob("a")));
+
+        registry.get(createBlob("b"));
+        registry.get(createBlob("c"));
+        assertEquals(2, registry.getSize());
+    }
+}
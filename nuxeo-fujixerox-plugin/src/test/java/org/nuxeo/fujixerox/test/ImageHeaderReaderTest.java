@@ -0,0 +1,129 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.nuxeo.fujixerox.validation.ImageHeaderInfo;
+import org.nuxeo.fujixerox.validation.ImageHeaderReader;
+
+public class ImageHeaderReaderTest {
+
+    protected ImageHeaderInfo read(String inPath) throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(
+                inPath)) {
+            return ImageHeaderReader.read(in);
+        }
+    }
+
+    @Test
+    public void testJpeg() throws Exception {
+
+        ImageHeaderInfo info = read("images/image-ok.jpg");
+        assertNotNull(info);
+        assertEquals("JPEG", info.getFormat());
+        assertEquals(300, info.getXDpi(), 0.001);
+        assertEquals(300, info.getYDpi(), 0.001);
+        assertEquals("sRGB", info.getColorspace());
+        assertEquals(2033, info.getWidth());
+        assertEquals(1350, info.getHeight());
+        assertTrue(info.hasIccProfile());
+
+        // JFIF density is 1x1: No resolution (same as ImageMagick)
+        info = read("images/image-not-ok.jpg");
+        assertNotNull(info);
+        assertEquals(0, info.getXDpi(), 0.001);
+        assertEquals(0, info.getYDpi(), 0.001);
+        assertFalse(info.hasIccProfile());
+    }
+
+    /*
+     * A JPEG written by ImageIO, with the density of its JFIF segment set to
+     * inX x inY dpi
+     */
+    protected ImageHeaderInfo readJfif(int inX, int inY) throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 20, BufferedImage.TYPE_INT_RGB),
+                "jpeg", out);
+        byte[] jpeg = out.toByteArray();
+        // SOI, then the APP0 marker, its length and "JFIF\0"
+        assertEquals((byte) 0xe0, jpeg[3]);
+        assertEquals('J', jpeg[6]);
+        jpeg[13] = 1;
+        jpeg[14] = (byte) (inX >> 8);
+        jpeg[15] = (byte) inX;
+        jpeg[16] = (byte) (inY >> 8);
+        jpeg[17] = (byte) inY;
+        return ImageHeaderReader.read(new ByteArrayInputStream(jpeg));
+    }
+
+    @Test
+    public void testJfifDensity() throws Exception {
+
+        ImageHeaderInfo info = readJfif(300, 300);
+        assertEquals(300, info.getXDpi(), 0.001);
+        assertEquals(300, info.getYDpi(), 0.001);
+
+        // Only 1x1 is the "no resolution" default
+        info = readJfif(1, 72);
+        assertEquals(1, info.getXDpi(), 0.001);
+        assertEquals(72, info.getYDpi(), 0.001);
+        info = readJfif(72, 1);
+        assertEquals(72, info.getXDpi(), 0.001);
+        assertEquals(1, info.getYDpi(), 0.001);
+
+        info = readJfif(1, 1);
+        assertEquals(0, info.getXDpi(), 0.001);
+        assertEquals(0, info.getYDpi(), 0.001);
+    }
+
+    @Test
+    public void testPng() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 20, BufferedImage.TYPE_BYTE_GRAY),
+                "png", out);
+        ImageHeaderInfo info = ImageHeaderReader.read(new ByteArrayInputStream(
+                out.toByteArray()));
+        assertNotNull(info);
+        assertEquals("PNG", info.getFormat());
+        assertEquals(10, info.getWidth());
+        assertEquals(20, info.getHeight());
+        assertEquals("Gray", info.getColorspace());
+        assertEquals(0, info.getXDpi(), 0.001);
+    }
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 20, BufferedImage.TYPE_INT_RGB),
+                "bmp", out);
+        assertNull(ImageHeaderReader.read(new ByteArrayInputStream(
+                out.toByteArray())));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.fujixerox.storedpicturerendition.JavaImageRenditionEngine;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionParameterProvider;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionPlan;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionJob;
+
+public class JavaImageRenditionEngineTest {
+
+    protected File workDir;
+
+    protected File source;
+
+    /*
+     * The operations are the ones extracted from a command line contribution
+     * (see RenditionPlan#getOperations())
+     */
+    protected static class TestJob extends StoredPictureRenditionJob {
+
+        protected String operations;
+
+        public TestJob(File inSource, File inTarget, String inOperations) {
+            super(new RenditionPlan("test", "", "image/jpeg",
+                    JavaImageRenditionEngine.NAME, "1", null, null,
+                    Collections.<String, String> emptyMap(),
+                    Collections.<String, RenditionParameterProvider> emptyMap()),
+                    new CmdParameters(), inTarget, inTarget.getName());
+            params.addNamedParameter("sourceFilePath",
+                    inSource.getAbsolutePath());
+            operations = inOperations;
+        }
+
+        @Override
+        public String getOperations() {
+            return operations;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("fx-java-engine").toFile();
+        source = new File(workDir, "source.png");
+        ImageIO.write(new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB),
+                "png", source);
+    }
+
+    @After
+    public void cleanup() {
+        FileUtils.deleteTree(workDir);
+    }
+
+    @Test
+    public void testCanRender() throws Exception {
+
+        JavaImageRenditionEngine engine = new JavaImageRenditionEngine(0);
+        File jpeg = new File(workDir, "target.jpeg");
+        assertTrue(engine.canRender(new TestJob(source, jpeg,
+                "-resize 200x200")));
+        assertTrue(engine.canRender(new TestJob(source, jpeg, "")));
+        assertFalse(engine.canRender(new TestJob(source, jpeg,
+                "-gravity center -resize 200x200")));
+        assertFalse(engine.canRender(new TestJob(source, new File(workDir,
+                "target.pdf"), "")));
+    }
+
+    @Test
+    public void testResize() throws Exception {
+
+        File target = new File(workDir, "target.jpeg");
+        Blob blob = new JavaImageRenditionEngine(0).render(new TestJob(source,
+                target, "-resize 100x100"));
+
+        assertNotNull(blob);
+        BufferedImage result = ImageIO.read(target);
+        // Fits in 100x100, same aspect ratio
+        assertEquals(100, result.getWidth());
+        assertEquals(50, result.getHeight());
+    }
+
+    @Test
+    public void testMaxPixels() throws Exception {
+
+        JavaImageRenditionEngine engine = new JavaImageRenditionEngine(1000);
+
+        // 400x200 decoded as is: too large, back to the command line
+        assertNull(engine.render(new TestJob(source, new File(workDir,
+                "full.png"), "")));
+
+        // Subsampled to 40x20 for a 20x10 rendition: fine
+        File target = new File(workDir, "small.png");
+        assertNotNull(engine.render(new TestJob(source, target,
+                "-resize 20x20")));
+        BufferedImage result = ImageIO.read(target);
+        assertEquals(20, result.getWidth());
+        assertEquals(10, result.getHeight());
+    }
+
+    @Test
+    public void testNotAnImage() throws Exception {
+
+        File text = new File(workDir, "source.txt");
+        try (FileWriter w = new FileWriter(text)) {
+            w.write("not an image");
+        }
+        assertNull(new JavaImageRenditionEngine(0).render(new TestJob(text,
+                new File(workDir, "target.jpeg"), "")));
+    }
+}
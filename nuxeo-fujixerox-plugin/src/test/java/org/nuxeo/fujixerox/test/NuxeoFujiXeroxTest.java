@@ -18,11 +18,25 @@
 package org.nuxeo.fujixerox.test;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.io.Serializable;
 import java.io.StringWriter;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Transaction;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -32,18 +46,53 @@ import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationChain;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.BlobList;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.event.impl.EventBundleImpl;
 import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.ecm.platform.picture.PictureViewsGenerationWork;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.PictureViewImpl;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
+import org.nuxeo.ecm.platform.rendition.service.RenditionDefinition;
 import org.nuxeo.ecm.platform.rendition.service.RenditionService;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.fujixerox.PictureChangedListenerCustom;
 import org.nuxeo.fujixerox.ValidatePictureMetadata;
+import org.nuxeo.fujixerox.ValidatePictureMetadataBatchOp;
 import org.nuxeo.fujixerox.ValidatePictureMetadataOp;
+import org.nuxeo.fujixerox.ValidatePictureMetadataWork;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionPlan;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionBuilder;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionCoalescer;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionComponent;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionDirectoryLeaseStore;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionIndex;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionJob;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionLanes;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionLeaseStore;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionLeases;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionMemoryLeaseStore;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionPersister;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionProvider;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionService;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionStorage;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionTransactions;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionWork;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 import com.google.inject.Inject;
 
@@ -231,6 +280,628 @@ public class NuxeoFujiXeroxTest {
 
     }
 
+    @Test
+    public void testValidatePictureMetadataListenerAsync() throws Exception {
+
+        System.out.println("Check ValidatePictureMetadataListener in the async mode...");
+        Framework.getProperties().setProperty(
+                ValidatePictureMetadataWork.MODE_PROPERTY,
+                ValidatePictureMetadataWork.MODE_ASYNC);
+        try {
+            DocumentModel docOK = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+            // No exception: The document is saved, and validated later
+            DocumentModel docNotOK = coreSession.createDocument(createPictureDocumentModel(IMAGE_NOT_OK));
+            assertEquals(ValidatePictureMetadataWork.STATUS_PENDING,
+                    docNotOK.getPropertyValue(ValidatePictureMetadataWork.STATUS_XPATH));
+            coreSession.save();
+            Serializable modified = coreSession.getDocument(docOK.getRef()).getPropertyValue(
+                    "dc:modified");
+
+            TransactionHelper.commitOrRollbackTransaction();
+            assertTrue(Framework.getLocalService(WorkManager.class).awaitCompletion(
+                    ValidatePictureMetadataWork.CATEGORY, 60, TimeUnit.SECONDS));
+            TransactionHelper.startTransaction();
+
+            docOK = coreSession.getDocument(docOK.getRef());
+            assertEquals(ValidatePictureMetadataWork.STATUS_VALID,
+                    docOK.getPropertyValue(ValidatePictureMetadataWork.STATUS_XPATH));
+            // The status is not a modification of the picture
+            assertEquals(modified, docOK.getPropertyValue("dc:modified"));
+            docNotOK = coreSession.getDocument(docNotOK.getRef());
+            assertEquals(ValidatePictureMetadataWork.STATUS_QUARANTINED,
+                    docNotOK.getPropertyValue(ValidatePictureMetadataWork.STATUS_XPATH));
+            String message = (String) docNotOK.getPropertyValue(ValidatePictureMetadataWork.MESSAGE_XPATH);
+            assertTrue(message.indexOf("X-Resolution") > -1);
+        } finally {
+            Framework.getProperties().remove(
+                    ValidatePictureMetadataWork.MODE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testSameBinaryDoesNotRebuildTheViews() throws Exception {
+
+        System.out.println("Check PictureChangedListenerCustom when the same binary is set again...");
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        doc = coreSession.saveDocument(doc);
+        doc = coreSession.getDocument(doc.getRef());
+
+        long suppressed = PictureChangedListenerCustom.getSuppressedCount();
+        File aFile = FileUtils.getResourceFileFromContext(IMAGE_OK);
+        doc.setPropertyValue("file:content", new FileBlob(aFile));
+        doc = coreSession.saveDocument(doc);
+        assertEquals(suppressed + 1,
+                PictureChangedListenerCustom.getSuppressedCount());
+
+        // Another binary
+        aFile = FileUtils.getResourceFileFromContext(IMAGE_FOR_RENDITION);
+        doc.setPropertyValue("file:content", new FileBlob(aFile));
+        doc = coreSession.saveDocument(doc);
+        assertEquals(suppressed + 1,
+                PictureChangedListenerCustom.getSuppressedCount());
+    }
+
+    @Test
+    public void testCoalesceViewsGenerationDoneEvents() throws Exception {
+
+        DocumentModel doc1 = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        DocumentModel doc2 = coreSession.createDocument(createPictureDocumentModel(IMAGE_FOR_RENDITION));
+
+        EventBundleImpl bundle = new EventBundleImpl();
+        for (DocumentModel oneDoc : new DocumentModel[] { doc1, doc2, doc1 }) {
+            DocumentEventContext ctx = new DocumentEventContext(coreSession,
+                    coreSession.getPrincipal(), oneDoc);
+            bundle.push(ctx.newEvent(PictureViewsGenerationWork.PICTURE_VIEWS_GENERATION_DONE_EVENT));
+        }
+
+        long coalesced = StoredPictureRenditionCoalescer.getCoalescedCount();
+        Collection<DocumentModel> docs = StoredPictureRenditionCoalescer.coalesce(
+                bundle,
+                PictureViewsGenerationWork.PICTURE_VIEWS_GENERATION_DONE_EVENT);
+        assertEquals(2, docs.size());
+        // The order is the order of the last events
+        assertEquals(doc2.getId(), docs.iterator().next().getId());
+        assertEquals(coalesced + 1,
+                StoredPictureRenditionCoalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testBulkImportLane() throws Exception {
+
+        long interactive = StoredPictureRenditionLanes.getInteractiveCount();
+        long bulk = StoredPictureRenditionLanes.getBulkCount();
+
+        DocumentModel uploaded = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        assertEquals(interactive + 1,
+                StoredPictureRenditionLanes.getInteractiveCount());
+        assertEquals(StoredPictureRenditionLanes.INTERACTIVE,
+                StoredPictureRenditionLanes.takeLane(uploaded));
+
+        DocumentModel imported = createPictureDocumentModel(IMAGE_OK);
+        imported.putContextData(StoredPictureRenditionLanes.BULK_IMPORT_FLAG,
+                Boolean.TRUE);
+        imported = coreSession.createDocument(imported);
+        assertEquals(bulk + 1, StoredPictureRenditionLanes.getBulkCount());
+        assertEquals(StoredPictureRenditionLanes.BULK,
+                StoredPictureRenditionLanes.takeLane(imported));
+
+        assertEquals(StoredPictureRenditionWork.BULK_CATEGORY,
+                StoredPictureRenditionWork.getCategory(StoredPictureRenditionLanes.BULK));
+    }
+
+    /*
+     * Fails inFailures times with inError, then succeeds. Nothing is built,
+     * and the retries are recorded instead of being scheduled.
+     */
+    protected static class FailingWork extends StoredPictureRenditionWork {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final int failures;
+
+        protected final RuntimeException error;
+
+        // Shared by the work and its retries
+        protected final AtomicInteger attempts;
+
+        protected StoredPictureRenditionWork next;
+
+        protected long nextDelay;
+
+        public FailingWork(String inDocId, int inFailures,
+                RuntimeException inError) {
+            this(inDocId, inFailures, inError, new AtomicInteger(), 0, 0);
+        }
+
+        protected FailingWork(String inDocId, int inFailures,
+                RuntimeException inError, AtomicInteger inAttempts,
+                int inAttempt, int inDeferrals) {
+            super("test", inDocId, StoredPictureRenditionLanes.INTERACTIVE,
+                    inAttempt, inDeferrals);
+            failures = inFailures;
+            error = inError;
+            attempts = inAttempts;
+        }
+
+        @Override
+        protected void buildInTransaction() {
+            // The lease is held during the build
+            assertNull(StoredPictureRenditionLeases.acquire(repositoryName,
+                    docId));
+            if (attempts.incrementAndGet() <= failures) {
+                throw error;
+            }
+        }
+
+        @Override
+        protected StoredPictureRenditionWork createNext(int inAttempt,
+                int inDeferrals) {
+            return new FailingWork(docId, failures, error, attempts,
+                    inAttempt, inDeferrals);
+        }
+
+        @Override
+        protected void scheduleLater(StoredPictureRenditionWork inWork,
+                long inDelay) {
+            // The lease is not held until the retry
+            String lease = StoredPictureRenditionLeases.acquire(
+                    repositoryName, docId);
+            assertNotNull(lease);
+            StoredPictureRenditionLeases.release(repositoryName, docId, lease);
+            next = inWork;
+            nextDelay = inDelay;
+        }
+
+        /*
+         * Runs this work and its retries, returns the delays of the retries
+         */
+        protected List<Long> workAndRetries(List<Long> inDelays)
+                throws Exception {
+            FailingWork current = this;
+            current.work();
+            while (current.next != null) {
+                inDelays.add(Long.valueOf(current.nextDelay));
+                current = (FailingWork) current.next;
+                current.work();
+            }
+            return inDelays;
+        }
+    }
+
+    @Test
+    public void testStoredPictureRenditionWorkRetries() throws Exception {
+
+        Framework.getProperties().setProperty(
+                StoredPictureRenditionWork.RETRY_DELAY_MS_PROPERTY, "1");
+        StoredPictureRenditionLeaseStore previousStore = StoredPictureRenditionLeases.getStore();
+        StoredPictureRenditionLeases.setStore(new StoredPictureRenditionMemoryLeaseStore());
+        try {
+            ClientException commandFailure = new ClientException(
+                    new CommandException("convert failed"));
+
+            // Two failures of the command line, then a success
+            long retries = StoredPictureRenditionWork.getRetryCount();
+            FailingWork work = new FailingWork("retried", 2, commandFailure);
+            assertEquals(Arrays.asList(1L, 2L),
+                    work.workAndRetries(new ArrayList<Long>()));
+            assertEquals(3, work.attempts.get());
+            assertEquals(retries + 2,
+                    StoredPictureRenditionWork.getRetryCount());
+
+            // Always failing: the first attempt and 3 retries (default)
+            long failures = StoredPictureRenditionWork.getFailureCount();
+            work = new FailingWork("failed", 100, commandFailure);
+            List<Long> delays = new ArrayList<Long>();
+            try {
+                work.workAndRetries(delays);
+                fail("The error should be thrown after the last retry");
+            } catch (ClientException e) {
+                assertSame(commandFailure, e);
+            }
+            assertEquals(Arrays.asList(1L, 2L, 4L), delays);
+            assertEquals(4, work.attempts.get());
+            assertEquals(failures + 1,
+                    StoredPictureRenditionWork.getFailureCount());
+
+            // Not a failure of the command line: Not retried
+            work = new FailingWork("bug", 100, new ClientException("bug"));
+            try {
+                work.work();
+                fail("The error should be thrown");
+            } catch (ClientException e) {
+                assertEquals("bug", e.getMessage());
+            }
+            assertEquals(1, work.attempts.get());
+            assertNull(work.next);
+
+            // Lease held by another node: Deferred, not built
+            String lease = StoredPictureRenditionLeases.acquire("test",
+                    "busy");
+            work = new FailingWork("busy", 0, commandFailure);
+            work.work();
+            assertEquals(0, work.attempts.get());
+            assertNotNull(work.next);
+            StoredPictureRenditionLeases.release("test", "busy", lease);
+        } finally {
+            StoredPictureRenditionLeases.setStore(previousStore);
+            Framework.getProperties().remove(
+                    StoredPictureRenditionWork.RETRY_DELAY_MS_PROPERTY);
+        }
+    }
+
+    /*
+     * Schedules a work later, as a retry does
+     */
+    protected static class DelayingWork extends StoredPictureRenditionWork {
+
+        private static final long serialVersionUID = 1L;
+
+        public DelayingWork(String inRepositoryName) {
+            super(inRepositoryName, "delaying");
+        }
+
+        public void delay(StoredPictureRenditionWork inWork, long inDelay) {
+            scheduleLater(inWork, inDelay);
+        }
+    }
+
+    protected static class DelayedWork extends StoredPictureRenditionWork {
+
+        private static final long serialVersionUID = 1L;
+
+        protected static final CountDownLatch done = new CountDownLatch(1);
+
+        public DelayedWork(String inRepositoryName) {
+            super(inRepositoryName, "delayed");
+        }
+
+        @Override
+        public void work() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testDelayedWorkScheduledAtShutdown() throws Exception {
+
+        String repositoryName = coreSession.getRepositoryName();
+        new DelayingWork(repositoryName).delay(
+                new DelayedWork(repositoryName), 3600000);
+        assertFalse(DelayedWork.done.await(200, TimeUnit.MILLISECONDS));
+
+        // Deactivation of the component: Not lost
+        StoredPictureRenditionWork.shutdownRescheduler();
+        assertTrue(DelayedWork.done.await(30, TimeUnit.SECONDS));
+    }
+
+    /*
+     * The leases are committed in their own transaction: visible to the
+     * other transactions (other nodes) while the caller's is still open, and
+     * a conflict does not roll back the caller
+     */
+    @Test
+    public void testLeaseInItsOwnTransaction() throws Exception {
+
+        assumeTrue(StoredPictureRenditionDirectoryLeaseStore.isAvailable());
+        StoredPictureRenditionDirectoryLeaseStore store = new StoredPictureRenditionDirectoryLeaseStore();
+        assertTrue(TransactionHelper.isTransactionActive());
+        assertTrue(store.acquire("test:own-tx", "owner1", 60000));
+
+        Transaction suspended = StoredPictureRenditionTransactions.suspend();
+        try {
+            assertNotNull(suspended);
+            assertFalse(store.acquire("test:own-tx", "owner2", 60000));
+        } finally {
+            StoredPictureRenditionTransactions.resume(suspended);
+        }
+
+        assertFalse(store.acquire("test:own-tx", "owner2", 60000));
+        assertFalse(TransactionHelper.isTransactionMarkedRollback());
+
+        store.release("test:own-tx", "owner1");
+        assertTrue(store.acquire("test:own-tx", "owner2", 60000));
+        store.release("test:own-tx", "owner2");
+    }
+
+    @Test
+    public void testStoredPictureRenditionWorkDeduplication() throws Exception {
+
+        // Same document, same lane => same work: Not queued twice
+        assertEquals(new StoredPictureRenditionWork("test", "doc1").getId(),
+                new StoredPictureRenditionWork("test", "doc1").getId());
+        assertFalse(new StoredPictureRenditionWork("test", "doc1").getId().equals(
+                new StoredPictureRenditionWork("test", "doc2").getId()));
+        // The bulk lane has its own queue
+        StoredPictureRenditionWork bulk = new StoredPictureRenditionWork(
+                "test", "doc1", StoredPictureRenditionLanes.BULK);
+        assertFalse(bulk.getId().equals(
+                new StoredPictureRenditionWork("test", "doc1").getId()));
+        assertEquals(StoredPictureRenditionWork.BULK_CATEGORY,
+                bulk.getCategory());
+    }
+
+    @Test
+    public void testMigrateToSchemaStorage() throws Exception {
+
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+
+        // Stored in picture:views (default storage)
+        PictureViewImpl view = new PictureViewImpl();
+        view.setTitle("jpeg200x200");
+        view.setContent(new StringBlob("rendition"));
+        view.setTag("fingerprint");
+        StoredPictureRenditionStorage.putRendition(doc, view);
+        doc = coreSession.saveDocument(doc);
+
+        Framework.getProperties().setProperty(
+                StoredPictureRenditionStorage.STORAGE_PROPERTY,
+                StoredPictureRenditionStorage.STORAGE_SCHEMA);
+        try {
+            // Not migrated yet: still returned
+            assertNotNull(StoredPictureRenditionStorage.getRendition(doc,
+                    "jpeg200x200"));
+
+            assertEquals(1, StoredPictureRenditionStorage.migrate(doc));
+            doc = coreSession.saveDocument(doc);
+            doc = coreSession.getDocument(doc.getRef());
+
+            assertTrue(doc.hasFacet(StoredPictureRenditionStorage.FACET));
+            assertNull(doc.getAdapter(MultiviewPicture.class).getView(
+                    "jpeg200x200"));
+            PictureView migrated = StoredPictureRenditionStorage.getRendition(
+                    doc, "jpeg200x200");
+            assertEquals("fingerprint", migrated.getTag());
+            assertEquals("rendition", migrated.getBlob().getString());
+            // Nothing left to migrate
+            assertEquals(0, StoredPictureRenditionStorage.migrate(doc));
+        } finally {
+            Framework.getProperties().remove(
+                    StoredPictureRenditionStorage.STORAGE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testRenditionIndex() throws Exception {
+
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        PictureViewImpl view = new PictureViewImpl();
+        view.setTitle("jpeg200x200");
+        view.setContent(new StringBlob("rendition"));
+        StoredPictureRenditionStorage.putRendition(doc, view);
+        doc = coreSession.saveDocument(doc);
+        doc = coreSession.getDocument(doc.getRef());
+
+        StoredPictureRenditionIndex index = new StoredPictureRenditionIndex(
+                100, 0);
+        assertTrue(index.getRenditions(doc).containsKey("jpeg200x200"));
+        assertFalse(index.getRenditions(doc).containsKey("imageAsPDF"));
+        assertEquals(1, index.getMisses());
+        assertEquals(1, index.getHits());
+
+        index.invalidate(doc.getRepositoryName(), doc.getId());
+        assertEquals(1, index.getInvalidations());
+        assertEquals(0, index.getSize());
+
+        // A modification of the document invalidates the shared index, once
+        // committed
+        StoredPictureRenditionIndex shared = StoredPictureRenditionIndex.getInstance();
+        shared.getRenditions(doc);
+        long invalidations = shared.getInvalidations();
+        doc.setPropertyValue("dc:description", "modified");
+        coreSession.saveDocument(doc);
+        coreSession.save();
+        assertEquals(invalidations, shared.getInvalidations());
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        assertEquals(invalidations + 1, shared.getInvalidations());
+    }
+
+    @Test
+    public void testRenditionIndexAfterRenditionsOnlySave() throws Exception {
+
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        PictureViewImpl view = new PictureViewImpl();
+        view.setTitle("jpeg200x200");
+        view.setContent(new StringBlob("first"));
+        view.setTag("fingerprint-1");
+        StoredPictureRenditionStorage.putRendition(doc, view);
+        doc = coreSession.saveDocument(doc);
+        coreSession.save();
+        doc = coreSession.getDocument(doc.getRef());
+        Serializable modified = doc.getPropertyValue("dc:modified");
+
+        // Index of another node: not invalidated by the listener
+        StoredPictureRenditionIndex otherNode = new StoredPictureRenditionIndex(
+                100, 0);
+        assertEquals("first",
+                otherNode.getRenditions(doc).get("jpeg200x200").getString());
+        assertEquals("first",
+                renditionService.getRendition(doc, "jpeg200x200").getBlob().getString());
+
+        // Rebuilt and saved without changing the modification date
+        view = new PictureViewImpl();
+        view.setTitle("jpeg200x200");
+        view.setContent(new StringBlob("second"));
+        view.setTag("fingerprint-2");
+        StoredPictureRenditionStorage.putRendition(doc, view);
+        StoredPictureRenditionPersister.save(doc);
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        doc = coreSession.getDocument(doc.getRef());
+        assertEquals(modified, doc.getPropertyValue("dc:modified"));
+        assertEquals("second",
+                otherNode.getRenditions(doc).get("jpeg200x200").getString());
+        assertEquals(0, otherNode.getInvalidations());
+        assertEquals(2, otherNode.getMisses());
+
+        StoredPictureRenditionProvider provider = new StoredPictureRenditionProvider();
+        RenditionDefinition definition = null;
+        for (RenditionDefinition oneDefinition : renditionService.getDeclaredRenditionDefinitions()) {
+            if ("jpeg200x200".equals(oneDefinition.getName())) {
+                definition = oneDefinition;
+            }
+        }
+        assertNotNull(definition);
+        assertTrue(provider.isAvailable(doc, definition));
+        assertEquals("second",
+                provider.render(doc, definition).get(0).getString());
+        assertEquals("second",
+                renditionService.getRendition(doc, "jpeg200x200").getBlob().getString());
+    }
+
+    @Test
+    public void testRenditionsOnlySaveKeepsModificationData() throws Exception {
+
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        doc = coreSession.getDocument(doc.getRef());
+        Serializable modified = doc.getPropertyValue("dc:modified");
+        String versionLabel = doc.getVersionLabel();
+
+        Thread.sleep(50);
+        doc.setPropertyValue("dc:description", "changed by a rendition");
+        DocumentModel saved = StoredPictureRenditionPersister.save(doc);
+        assertFalse(StoredPictureRenditionPersister.isRenditionsOnlySave(doc));
+        assertFalse(StoredPictureRenditionPersister.isRenditionsOnlySave(saved));
+
+        DocumentModel stored = coreSession.getDocument(doc.getRef());
+        assertEquals("changed by a rendition",
+                stored.getPropertyValue("dc:description"));
+        assertEquals(modified, stored.getPropertyValue("dc:modified"));
+        assertEquals(versionLabel, stored.getVersionLabel());
+
+        // The flags do not apply to a later save of the same model
+        Thread.sleep(50);
+        doc.setPropertyValue("dc:description", "changed by a user");
+        coreSession.saveDocument(doc);
+        stored = coreSession.getDocument(doc.getRef());
+        assertFalse(modified.equals(stored.getPropertyValue("dc:modified")));
+    }
+
+    @Test
+    public void testRenditionPlans() throws Exception {
+
+        StoredPictureRenditionService service = StoredPictureRenditionComponent.getInstance();
+        List<RenditionPlan> plans = service.getRenditionPlans();
+        List<String> names = new ArrayList<String>();
+        for (RenditionPlan onePlan : plans) {
+            names.add(onePlan.getName());
+        }
+        // Same order as the rendition definitions
+        assertEquals(Arrays.asList("jpeg200x200", "jpegWatermarked",
+                "imageAsPDF"), names);
+        try {
+            plans.clear();
+            fail("The plans should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        assertNull(service.getRenditionPlan("unknown"));
+
+        RenditionPlan thumbnail = service.getRenditionPlan("jpeg200x200");
+        assertEquals(".jpeg", thumbnail.getExtension());
+        assertEquals("image/jpeg", thumbnail.getContentType());
+        assertEquals("-resize 200x200", thumbnail.getOperations());
+        assertEquals("1", thumbnail.getVersion());
+        assertFalse(thumbnail.isLazy());
+
+        RenditionPlan pdf = service.getRenditionPlan("imageAsPDF");
+        assertEquals(".pdf", pdf.getExtension());
+        assertEquals("application/pdf", pdf.getContentType());
+        assertEquals("", pdf.getOperations());
+
+        // Static and dynamic parameters
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_OK));
+        Map<String, String> params = service.getRenditionPlan(
+                "jpegWatermarked").createParameters(doc).getParameters();
+        assertEquals("SouthWest", params.get("gravity"));
+        assertEquals("24", params.get("textSize"));
+        Calendar created = (Calendar) doc.getPropertyValue("dc:created");
+        assertEquals(
+                new SimpleDateFormat("'Created 'yyyy-MM-dd").format(created.getTime()),
+                params.get("textValue"));
+    }
+
+    /*
+     * Records the renditions to build instead of running the command lines:
+     * The results are fake blobs
+     */
+    protected static class RecordingBuilder extends
+            StoredPictureRenditionBuilder {
+
+        protected List<String> built = new ArrayList<String>();
+
+        public RecordingBuilder(DocumentModel inDoc) {
+            super(inDoc);
+        }
+
+        @Override
+        protected List<Blob> runJobs(List<StoredPictureRenditionJob> inJobs) {
+            List<Blob> blobs = new ArrayList<Blob>();
+            for (StoredPictureRenditionJob oneJob : inJobs) {
+                built.add(oneJob.getRenditionName());
+                blobs.add(new StringBlob(oneJob.getRenditionName()));
+            }
+            return blobs;
+        }
+    }
+
+    protected List<String> buildRenditions(DocumentModel inDoc,
+            boolean inForce) throws Exception {
+        try (RecordingBuilder builder = new RecordingBuilder(inDoc)) {
+            builder.buildAvailableRenditions(inForce);
+            coreSession.saveDocument(inDoc);
+            return builder.built;
+        }
+    }
+
+    @Test
+    public void testIncrementalRebuild() throws Exception {
+
+        StoredPictureRenditionService service = StoredPictureRenditionComponent.getInstance();
+        List<String> eager = new ArrayList<String>();
+        for (RenditionPlan onePlan : service.getRenditionPlans()) {
+            if (!onePlan.isLazy()
+                    && service.isCommandLineAvailable(onePlan.getName())) {
+                eager.add(onePlan.getName());
+            }
+        }
+        // The command lines are checked before building (ImageMagick)
+        assumeTrue(eager.size() > 1);
+        String staleName = eager.get(0);
+
+        DocumentModel doc = coreSession.createDocument(createPictureDocumentModel(IMAGE_FOR_RENDITION));
+        assertEquals(eager, buildRenditions(doc, false));
+
+        // Nothing changed: nothing to build
+        doc = coreSession.getDocument(doc.getRef());
+        assertTrue(buildRenditions(doc, false).isEmpty());
+
+        // Stale fingerprint: only this one is rebuilt
+        PictureViewImpl stale = new PictureViewImpl();
+        stale.setTitle(staleName);
+        stale.setContent(new StringBlob("previous definition"));
+        stale.setTag("stale");
+        StoredPictureRenditionStorage.putRendition(doc, stale);
+        doc = coreSession.saveDocument(doc);
+        assertEquals(1, buildRenditions(doc, false).size());
+        doc = coreSession.getDocument(doc.getRef());
+        assertEquals(staleName, StoredPictureRenditionStorage.getRendition(
+                doc, staleName).getBlob().getString());
+
+        // Missing: only this one is built
+        StoredPictureRenditionStorage.removeRendition(doc, staleName);
+        doc = coreSession.saveDocument(doc);
+        List<String> built = buildRenditions(doc, false);
+        assertEquals(1, built.size());
+        assertEquals(staleName, built.get(0));
+
+        // Forced: everything is built again
+        doc = coreSession.getDocument(doc.getRef());
+        assertEquals(eager, buildRenditions(doc, true));
+    }
+
     @Test
     public void testValidatePictureMetadataOperation() throws Exception {
 
@@ -295,4 +966,43 @@ public class NuxeoFujiXeroxTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testValidatePictureMetadataBatchOperation() throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        BlobList blobs = new BlobList();
+        blobs.add(new FileBlob(FileUtils.getResourceFileFromContext(IMAGE_OK)));
+        blobs.add(new FileBlob(
+                FileUtils.getResourceFileFromContext(IMAGE_NOT_OK)));
+        ctx.setInput(blobs);
+
+        System.out.println("Check " + ValidatePictureMetadataBatchOp.ID
+                + " operation on a list of pictures...");
+        OperationChain chain = new OperationChain("testBatchChain");
+        chain.add(ValidatePictureMetadataBatchOp.ID).set("varResult",
+                "results").set("throwException", false);
+        automationService.run(ctx, chain);
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> results = (Map<String, String>) ctx.get("results");
+        assertEquals(2, results.size());
+        assertEquals("", results.get("image-ok.jpg"));
+        assertTrue(results.get("image-not-ok.jpg").indexOf("X-Resolution") > -1);
+
+        // Default is to throw an exception if one blob is invalid
+        chain = new OperationChain("testBatchChain2");
+        chain.add(ValidatePictureMetadataBatchOp.ID);
+        ctx.setInput(blobs);
+        try {
+            automationService.run(ctx, chain);
+            assertTrue(
+                    "One document is *not* ok => should have raised an exception",
+                    false);
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            e.printStackTrace(new PrintWriter(sw));
+            assertTrue(sw.toString().indexOf("image-not-ok.jpg") > -1);
+        }
+    }
+}
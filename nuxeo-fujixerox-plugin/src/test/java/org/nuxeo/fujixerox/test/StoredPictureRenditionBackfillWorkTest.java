@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionBackfillWork;
+
+public class StoredPictureRenditionBackfillWorkTest {
+
+    protected static final String QUERY = "SELECT * FROM Picture WHERE ecm:isProxy = 0";
+
+    protected TestBackfillWork work;
+
+    /*
+     * No repository: The documents are just ids. The document "fail" fails,
+     * and the document "stop" interrupts its thread once processed.
+     */
+    protected static class TestBackfillWork extends
+            StoredPictureRenditionBackfillWork {
+
+        private static final long serialVersionUID = 1L;
+
+        public TestBackfillWork(String inBackfillId, String inQuery) {
+            super("test", inBackfillId, inQuery, 10, 2, 0, false);
+        }
+
+        public static String pageQuery(String inQuery, String inLastId) {
+            return buildPageQuery(inQuery, inLastId);
+        }
+
+        @Override
+        protected boolean processDocument(String inId) {
+            if ("stop".equals(inId)) {
+                Thread.currentThread().interrupt();
+            }
+            return !"fail".equals(inId);
+        }
+
+        public int runBatch(List<String> inIds, ExecutorService inPool)
+                throws Exception {
+            return processBatch(inIds, inPool, new Throttle(0) {
+            });
+        }
+
+        public String getLastId() {
+            return lastId;
+        }
+
+        public void setLastId(String inLastId) {
+            lastId = inLastId;
+        }
+
+        public void save() throws Exception {
+            saveCheckpoint();
+        }
+
+        public void load() throws Exception {
+            loadCheckpoint();
+        }
+
+        public void delete() {
+            deleteCheckpoint();
+        }
+    }
+
+    @After
+    public void cleanup() {
+        if (work != null) {
+            work.delete();
+        }
+    }
+
+    @Test
+    public void testPageQuery() {
+
+        assertEquals(
+                "SELECT ecm:uuid FROM Picture WHERE (ecm:isProxy = 0) ORDER BY ecm:uuid",
+                TestBackfillWork.pageQuery(QUERY, null));
+        assertEquals(
+                "SELECT ecm:uuid FROM Picture WHERE (ecm:isProxy = 0) AND ecm:uuid > 'abc' ORDER BY ecm:uuid",
+                TestBackfillWork.pageQuery(QUERY, "abc"));
+        // The order of the query is replaced, the case of the keywords does
+        // not matter
+        assertEquals(
+                "SELECT ecm:uuid FROM Picture, File WHERE ecm:uuid > 'abc' ORDER BY ecm:uuid",
+                TestBackfillWork.pageQuery(
+                        "select ecm:uuid, dc:title from Picture, File order by dc:title DESC",
+                        "abc"));
+        // The id is escaped
+        assertTrue(TestBackfillWork.pageQuery(QUERY, "a'b").contains(
+                "ecm:uuid > 'a\\'b'"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testNotASelect() {
+        TestBackfillWork.pageQuery("DELETE FROM Picture", null);
+    }
+
+    @Test
+    public void testCheckpointAndResume() throws Exception {
+
+        work = new TestBackfillWork("checkpoint-test", QUERY);
+        assertEquals(3, work.runBatch(Arrays.asList("a", "b", "fail"), null));
+        work.setLastId("fail");
+        work.save();
+        assertEquals(2, work.getProcessed());
+        assertEquals(1, work.getErrors());
+
+        // Same backfill started again: resumes after the checkpoint
+        TestBackfillWork resumed = new TestBackfillWork("checkpoint-test",
+                QUERY);
+        resumed.load();
+        assertEquals("fail", resumed.getLastId());
+        assertEquals(2, resumed.getProcessed());
+        assertEquals(1, resumed.getErrors());
+
+        // Same id, another query: starts from the beginning
+        TestBackfillWork other = new TestBackfillWork("checkpoint-test",
+                "SELECT * FROM File");
+        other.load();
+        assertNull(other.getLastId());
+        assertEquals(0, other.getProcessed());
+    }
+
+    @Test
+    public void testInterruptedBatch() throws Exception {
+
+        work = new TestBackfillWork("interrupted-test", QUERY);
+        try {
+            // Stopped after "stop": "d" is processed again on resume
+            assertEquals(3, work.runBatch(Arrays.asList("a", "b", "stop",
+                    "d"), null));
+        } finally {
+            // Clear the interrupted flag of the test thread
+            Thread.interrupted();
+        }
+
+        // Two chunks, [stop, b] and [c, d]: The second chunk is done, but
+        // the checkpoint can't move past "b"
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            assertEquals(1, work.runBatch(Arrays.asList("stop", "b", "c",
+                    "d"), pool));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.fujixerox.storedpicturerendition.CommandLineRenditionEngine;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionParameterProvider;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionPlan;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionCache;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionJob;
+
+public class StoredPictureRenditionCacheTest {
+
+    protected File cacheDir;
+
+    protected File workDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("fx-cache-test").toFile();
+        workDir = Files.createTempDirectory("fx-cache-work").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        FileUtils.deleteTree(cacheDir);
+        FileUtils.deleteTree(workDir);
+    }
+
+    protected File createFile(String inName, int inSize) throws IOException {
+        File f = new File(workDir, inName);
+        try (FileWriter w = new FileWriter(f)) {
+            for (int i = 0; i < inSize; i++) {
+                w.write('x');
+            }
+        }
+        return f;
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+
+        StoredPictureRenditionCache cache = new StoredPictureRenditionCache(
+                cacheDir, 1000, 0);
+        File target = new File(workDir, "target");
+
+        assertFalse(cache.get("digest/jpeg200x200/fp", target));
+        assertEquals(1, cache.getMisses());
+
+        cache.put("digest/jpeg200x200/fp", createFile("rendition", 10));
+        assertTrue(cache.get("digest/jpeg200x200/fp", target));
+        assertEquals(10, target.length());
+        assertEquals(1, cache.getHits());
+
+        // Another parameter fingerprint is another entry
+        assertFalse(cache.get("digest/jpeg200x200/other", target));
+        assertEquals(2, cache.getMisses());
+    }
+
+    protected StoredPictureRenditionJob createJob(String inVersion) {
+        CmdParameters params = new CmdParameters();
+        params.addNamedParameter("size", "200x200");
+        return new StoredPictureRenditionJob(new RenditionPlan("jpeg200x200",
+                ".jpeg", "image/jpeg", CommandLineRenditionEngine.NAME,
+                inVersion, null, null, Collections.<String, String> emptyMap(),
+                Collections.<String, RenditionParameterProvider> emptyMap()),
+                params, null, "jpeg200x200.jpeg");
+    }
+
+    /*
+     * Incrementing the version of a definition forces a rebuild: Same
+     * source, command line and parameters, but not the same entry
+     */
+    @Test
+    public void testVersionChange() throws Exception {
+
+        StoredPictureRenditionCache cache = new StoredPictureRenditionCache(
+                cacheDir, 1000, 0);
+        File target = new File(workDir, "target");
+
+        String key = StoredPictureRenditionCache.buildKey("digest",
+                createJob("1"));
+        assertEquals(key, StoredPictureRenditionCache.buildKey("digest",
+                createJob("1")));
+        cache.put(key, createFile("rendition", 10));
+        assertTrue(cache.get(key, target));
+
+        String bumped = StoredPictureRenditionCache.buildKey("digest",
+                createJob("2"));
+        assertFalse(key.equals(bumped));
+        assertFalse(cache.get(bumped, target));
+        assertEquals(1, cache.getMisses());
+        assertNull(StoredPictureRenditionCache.buildKey(null, createJob("2")));
+    }
+
+    @Test
+    public void testEvictionBySize() throws Exception {
+
+        StoredPictureRenditionCache cache = new StoredPictureRenditionCache(
+                cacheDir, 25, 0);
+        File target = new File(workDir, "target");
+
+        cache.put("a", createFile("a", 10));
+        cache.put("b", createFile("b", 10));
+        // "a" becomes the most recently used
+        assertTrue(cache.get("a", target));
+        cache.put("c", createFile("c", 10));
+
+        assertEquals(2, cache.getSize());
+        assertEquals(20, cache.getTotalSize());
+        assertTrue(cache.get("a", target));
+        assertFalse(cache.get("b", target));
+        assertTrue(cache.get("c", target));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testEvictionByAge() throws Exception {
+
+        StoredPictureRenditionCache cache = new StoredPictureRenditionCache(
+                cacheDir, 1000, 50);
+        File target = new File(workDir, "target");
+
+        cache.put("a", createFile("a", 10));
+        assertTrue(cache.get("a", target));
+        Thread.sleep(100);
+        assertFalse(cache.get("a", target));
+        assertEquals(0, cache.getSize());
+    }
+
+    /*
+     * A get() blocked in the middle of its copy: The lock is not held, and
+     * its entry is not evicted while it is copied.
+     */
+    @Test
+    public void testCopyOutsideTheLock() throws Exception {
+
+        final CountDownLatch copying = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StoredPictureRenditionCache cache = new StoredPictureRenditionCache(
+                cacheDir, 25, 0) {
+            @Override
+            protected void copyFile(File inSource, File inTarget)
+                    throws IOException {
+                if (inTarget.getName().equals("slow")) {
+                    copying.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                super.copyFile(inSource, inTarget);
+            }
+        };
+        cache.put("a", createFile("a", 10));
+
+        final File slowTarget = new File(workDir, "slow");
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> slowGet = es.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return cache.get("a", slowTarget);
+                }
+            });
+            assertTrue(copying.await(10, TimeUnit.SECONDS));
+
+            // Not blocked by the copy. "a" is the least recently used entry
+            // but it is pinned: "b" is evicted instead
+            File target = new File(workDir, "target");
+            cache.put("b", createFile("b", 10));
+            cache.put("c", createFile("c", 10));
+            assertTrue(cache.get("c", target));
+            assertFalse(cache.get("b", target));
+
+            release.countDown();
+            assertTrue(slowGet.get(10, TimeUnit.SECONDS).booleanValue());
+            assertEquals(10, slowTarget.length());
+            assertTrue(cache.get("a", target));
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReplacedWhileCopied() throws Exception {
+
+        final CountDownLatch copying = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StoredPictureRenditionCache cache = new StoredPictureRenditionCache(
+                cacheDir, 1000, 0) {
+            @Override
+            protected void copyFile(File inSource, File inTarget)
+                    throws IOException {
+                if (inTarget.getName().equals("slow")) {
+                    copying.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                super.copyFile(inSource, inTarget);
+            }
+        };
+        cache.put("a", createFile("a", 10));
+
+        final File slowTarget = new File(workDir, "slow");
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> slowGet = es.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return cache.get("a", slowTarget);
+                }
+            });
+            assertTrue(copying.await(10, TimeUnit.SECONDS));
+
+            cache.put("a", createFile("a2", 20));
+            release.countDown();
+
+            // The reader gets the previous file, complete
+            assertTrue(slowGet.get(10, TimeUnit.SECONDS).booleanValue());
+            assertEquals(10, slowTarget.length());
+            assertEquals(20, cache.getTotalSize());
+            // Once read, the previous file is deleted
+            assertEquals(1, cacheDir.listFiles().length);
+        } finally {
+            es.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionCommandLimiter;
+
+public class StoredPictureRenditionCommandLimiterTest {
+
+    @Test
+    public void testGlobalLimit() throws Exception {
+
+        StoredPictureRenditionCommandLimiter limiter = new StoredPictureRenditionCommandLimiter(
+                2, 0, null, 50);
+
+        StoredPictureRenditionCommandLimiter.Permit p1 = limiter.acquire("a");
+        StoredPictureRenditionCommandLimiter.Permit p2 = limiter.acquire("b");
+        assertEquals(2, limiter.getRunning());
+
+        try {
+            limiter.acquire("c");
+            fail("The third execution should be rejected");
+        } catch (CommandException e) {
+            // Expected
+        }
+        assertEquals(1, limiter.getRejections());
+
+        p1.close();
+        // Closing twice releases only once
+        p1.close();
+        assertEquals(1, limiter.getRunning());
+        limiter.acquire("c").close();
+        p2.close();
+
+        assertEquals(0, limiter.getRunning());
+        assertEquals(3, limiter.getExecutions());
+    }
+
+    @Test
+    public void testCommandLimit() throws Exception {
+
+        Map<String, Integer> commandMax = new HashMap<String, Integer>();
+        commandMax.put("imageAsPDF", 1);
+        StoredPictureRenditionCommandLimiter limiter = new StoredPictureRenditionCommandLimiter(
+                4, 0, commandMax, 50);
+
+        StoredPictureRenditionCommandLimiter.Permit pdf = limiter.acquire("imageAsPDF");
+        try {
+            limiter.acquire("imageAsPDF");
+            fail("The second imageAsPDF should be rejected");
+        } catch (CommandException e) {
+            // Expected
+        }
+        // Other commands still run
+        limiter.acquire("jpeg200x200").close();
+        pdf.close();
+        limiter.acquire("imageAsPDF").close();
+
+        assertEquals(1, limiter.getRejections());
+        assertEquals(0, limiter.getRunning());
+    }
+
+    @Test
+    public void testWaitForPermit() throws Exception {
+
+        final StoredPictureRenditionCommandLimiter limiter = new StoredPictureRenditionCommandLimiter(
+                1, 0, null, 5000);
+
+        final StoredPictureRenditionCommandLimiter.Permit p1 = limiter.acquire("a");
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                p1.close();
+            }
+        };
+        t.start();
+
+        limiter.acquire("b").close();
+        t.join();
+
+        assertEquals(1, limiter.getWaits());
+        assertEquals(0, limiter.getRejections());
+        assertTrue(limiter.getMaxWaitMillis() > 0);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandException;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionParameterProvider;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionPlan;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionExecutor;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionJob;
+
+public class StoredPictureRenditionExecutorTest {
+
+    protected ExecutorService executor;
+
+    /*
+     * A job which does not call any engine: it waits for inStart (if any),
+     * then returns a blob holding its name, or fails if inError is set.
+     */
+    protected static class TestJob extends StoredPictureRenditionJob {
+
+        protected CountDownLatch start;
+
+        protected Exception error;
+
+        protected volatile boolean interrupted = false;
+
+        protected CountDownLatch ended = new CountDownLatch(1);
+
+        public TestJob(String inName, CountDownLatch inStart,
+                Exception inError) {
+            super(new RenditionPlan(inName, "jpg", "image/jpeg", null, "1",
+                    null, null, Collections.<String, String> emptyMap(),
+                    Collections.<String, RenditionParameterProvider> emptyMap()),
+                    null, null, inName + ".jpg");
+            start = inStart;
+            error = inError;
+        }
+
+        @Override
+        public Blob call() throws Exception {
+            try {
+                if (start != null) {
+                    start.await(10, TimeUnit.SECONDS);
+                }
+                if (error != null) {
+                    throw error;
+                }
+                return new StringBlob(getRenditionName());
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw e;
+            } finally {
+                ended.countDown();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testResultsInJobOrder() throws Exception {
+
+        // The first job ends last
+        final CountDownLatch lastEnded = new CountDownLatch(1);
+        TestJob first = new TestJob("first", lastEnded, null);
+        TestJob second = new TestJob("second", null, null);
+        TestJob last = new TestJob("last", null, null) {
+            @Override
+            public Blob call() throws Exception {
+                try {
+                    return super.call();
+                } finally {
+                    lastEnded.countDown();
+                }
+            }
+        };
+        List<StoredPictureRenditionJob> jobs = new ArrayList<StoredPictureRenditionJob>();
+        jobs.add(first);
+        jobs.add(second);
+        jobs.add(last);
+
+        List<Blob> blobs = StoredPictureRenditionExecutor.runAll(jobs,
+                executor);
+
+        assertEquals(3, blobs.size());
+        assertEquals("first", blobs.get(0).getString());
+        assertEquals("second", blobs.get(1).getString());
+        assertEquals("last", blobs.get(2).getString());
+    }
+
+    @Test
+    public void testFirstFailureCancelsTheOthers() throws Exception {
+
+        // Never released: the first job only ends when cancelled
+        CountDownLatch never = new CountDownLatch(1);
+        TestJob blocked = new TestJob("blocked", never, null);
+        TestJob failing = new TestJob("failing", null, new CommandException(
+                "Test failure"));
+        List<StoredPictureRenditionJob> jobs = new ArrayList<StoredPictureRenditionJob>();
+        jobs.add(blocked);
+        jobs.add(failing);
+
+        long start = System.currentTimeMillis();
+        try {
+            StoredPictureRenditionExecutor.runAll(jobs, executor);
+            fail("The CommandException should be rethrown");
+        } catch (CommandException e) {
+            assertEquals("Test failure", e.getMessage());
+        }
+        // Did not wait for the blocked job
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        assertTrue(blocked.ended.await(5, TimeUnit.SECONDS));
+        assertTrue(blocked.interrupted);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionLazyGenerator;
+
+public class StoredPictureRenditionLazyGeneratorTest {
+
+    protected ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Calls share() in another thread
+     */
+    protected Future<Blob> share(final String inKey,
+            final Callable<Blob> inComputation) {
+        return executor.submit(new Callable<Blob>() {
+            @Override
+            public Blob call() throws Exception {
+                return StoredPictureRenditionLazyGenerator.share(inKey,
+                        inComputation);
+            }
+        });
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Blob blob = new StringBlob("rendition");
+        Callable<Blob> computation = new Callable<Blob>() {
+            @Override
+            public Blob call() throws Exception {
+                runs.incrementAndGet();
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return blob;
+            }
+        };
+
+        long sharedCount = StoredPictureRenditionLazyGenerator.getSharedCount();
+        Future<Blob> first = share("default/doc1/jpeg200x200", computation);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<Blob> second = share("default/doc1/jpeg200x200", computation);
+        // Another key is not blocked by the first computation
+        assertEquals("other", StoredPictureRenditionLazyGenerator.share(
+                "default/doc2/jpeg200x200", new Callable<Blob>() {
+                    @Override
+                    public Blob call() {
+                        return new StringBlob("other");
+                    }
+                }).getString());
+
+        // Wait for the second call to join the first one
+        long deadline = System.currentTimeMillis() + 10000;
+        while (StoredPictureRenditionLazyGenerator.getSharedCount() == sharedCount
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertSame(blob, first.get(10, TimeUnit.SECONDS));
+        assertSame(blob, second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+        assertEquals(sharedCount + 1,
+                StoredPictureRenditionLazyGenerator.getSharedCount());
+
+        // Done: the next request runs again
+        StoredPictureRenditionLazyGenerator.share("default/doc1/jpeg200x200",
+                computation);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Blob> computation = new Callable<Blob>() {
+            @Override
+            public Blob call() throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                throw new IllegalStateException("Test failure");
+            }
+        };
+
+        long sharedCount = StoredPictureRenditionLazyGenerator.getSharedCount();
+        Future<Blob> first = share("default/doc3/imageAsPDF", computation);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<Blob> second = share("default/doc3/imageAsPDF", computation);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (StoredPictureRenditionLazyGenerator.getSharedCount() == sharedCount
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        List<Future<Blob>> futures = new ArrayList<Future<Blob>>();
+        futures.add(first);
+        futures.add(second);
+        for (Future<Blob> oneFuture : futures) {
+            try {
+                oneFuture.get(10, TimeUnit.SECONDS);
+                fail("The failure should be returned to every caller");
+            } catch (ExecutionException e) {
+                // share() throws an ExecutionException, wrapped by the
+                // executor
+                Throwable cause = e.getCause().getCause();
+                assertTrue(cause instanceof IllegalStateException);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionMemoryLeaseStore;
+
+public class StoredPictureRenditionLeaseStoreTest {
+
+    @Test
+    public void testExclusive() throws Exception {
+
+        StoredPictureRenditionMemoryLeaseStore store = new StoredPictureRenditionMemoryLeaseStore();
+
+        assertTrue(store.acquire("default:doc1", "node1", 10000));
+        assertFalse(store.acquire("default:doc1", "node2", 10000));
+        // Another document
+        assertTrue(store.acquire("default:doc2", "node2", 10000));
+        // Same owner: extended
+        assertTrue(store.acquire("default:doc1", "node1", 10000));
+
+        // Only the owner can release
+        store.release("default:doc1", "node2");
+        assertFalse(store.acquire("default:doc1", "node2", 10000));
+        store.release("default:doc1", "node1");
+        assertTrue(store.acquire("default:doc1", "node2", 10000));
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+
+        StoredPictureRenditionMemoryLeaseStore store = new StoredPictureRenditionMemoryLeaseStore();
+
+        assertTrue(store.acquire("default:doc1", "node1", 50));
+        assertFalse(store.acquire("default:doc1", "node2", 50));
+        Thread.sleep(100);
+        // node1 stopped during the build: node2 takes over
+        assertTrue(store.acquire("default:doc1", "node2", 10000));
+
+        // The release of the expired owner does not remove the new lease
+        store.release("default:doc1", "node1");
+        assertFalse(store.acquire("default:doc1", "node1", 10000));
+        assertEquals(1, store.getSize());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.fujixerox.storedpicturerendition.CommandLineRenditionEngine;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionParameterProvider;
+import org.nuxeo.fujixerox.storedpicturerendition.RenditionPlan;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionJob;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionPipeline;
+
+public class StoredPictureRenditionPipelineTest {
+
+    /*
+     * Gives access to the command line building
+     */
+    protected static class TestPipeline extends
+            StoredPictureRenditionPipeline {
+
+        public String arguments(String inSourceFilePath,
+                List<StoredPictureRenditionJob> inJobs) {
+            return buildArguments(inSourceFilePath, inJobs);
+        }
+
+        public String replace(String inOperations, CmdParameters inParams) {
+            return replaceParams(inOperations, inParams);
+        }
+    }
+
+    /*
+     * The operations are the ones extracted from a command line contribution
+     * (see RenditionPlan#getOperations())
+     */
+    protected static class TestJob extends StoredPictureRenditionJob {
+
+        protected String operations;
+
+        public TestJob(String inName, String inOperations,
+                CmdParameters inParams) {
+            super(new RenditionPlan(inName, "jpg", "image/jpeg",
+                    CommandLineRenditionEngine.NAME, "1", null, null, Collections.<String, String> emptyMap(),
+                    Collections.<String, RenditionParameterProvider> emptyMap()),
+                    inParams, new File("/tmp/" + inName + ".jpg"), inName
+                            + ".jpg");
+            operations = inOperations;
+        }
+
+        @Override
+        public String getOperations() {
+            return operations;
+        }
+    }
+
+    protected static CmdParameters params(String... inNamesAndValues) {
+        CmdParameters params = new CmdParameters();
+        for (int i = 0; i < inNamesAndValues.length; i += 2) {
+            params.addNamedParameter(inNamesAndValues[i],
+                    inNamesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    protected static String target(String inName) {
+        return "\"" + new File("/tmp/" + inName + ".jpg").getAbsolutePath()
+                + "\"";
+    }
+
+    @Test
+    public void testReplaceParams() throws Exception {
+
+        TestPipeline pipeline = new TestPipeline();
+        assertEquals("-resize 200x100",
+                pipeline.replace("-resize #{width}x#{height}",
+                        params("width", "200", "height", "100")));
+        // $ and \ in the values are kept as is
+        assertEquals("-label a$1\\b", pipeline.replace("-label #{label}",
+                params("label", "a$1\\b")));
+    }
+
+    @Test
+    public void testMissingParameter() throws Exception {
+
+        TestPipeline pipeline = new TestPipeline();
+        try {
+            pipeline.replace("-resize #{width}x#{height}",
+                    params("width", "200"));
+            fail("A missing parameter should fail");
+        } catch (ClientException e) {
+            assertTrue(e.getMessage().contains("<height>"));
+        }
+    }
+
+    @Test
+    public void testBuildArguments() throws Exception {
+
+        List<StoredPictureRenditionJob> jobs = new ArrayList<StoredPictureRenditionJob>();
+        jobs.add(new TestJob("small", "-resize #{size}", params("size",
+                "200x200")));
+        jobs.add(new TestJob("medium", "-resize #{size}", params("size",
+                "800x800")));
+        jobs.add(new TestJob("large", "-quality 90", params()));
+
+        String args = new TestPipeline().arguments("/tmp/source.tif", jobs);
+
+        // Source decoded once, parenthesis quoted, the last job is the output
+        // of the command (no -write, no parenthesis)
+        assertEquals("\"/tmp/source.tif[0]\""
+                + " -respect-parentheses -write mpr:fxsource +delete"
+                + " \"(\" mpr:fxsource -resize 200x200 -write "
+                + target("small") + " +delete \")\""
+                + " \"(\" mpr:fxsource -resize 800x800 -write "
+                + target("medium") + " +delete \")\""
+                + " mpr:fxsource -quality 90 " + target("large"), args);
+    }
+
+    @Test
+    public void testEmptyOperations() throws Exception {
+
+        List<StoredPictureRenditionJob> jobs = new ArrayList<StoredPictureRenditionJob>();
+        jobs.add(new TestJob("copy", "", params()));
+        jobs.add(new TestJob("original", "", params()));
+
+        String args = new TestPipeline().arguments("/tmp/source.tif", jobs);
+
+        // No double spaces when there is no operation
+        assertFalse(args.contains("  "));
+        assertTrue(args.contains(" \"(\" mpr:fxsource -write "
+                + target("copy") + " +delete \")\""));
+        assertTrue(args.endsWith(" mpr:fxsource " + target("original")));
+    }
+
+    @Test
+    public void testAccepts() throws Exception {
+
+        StoredPictureRenditionPipeline pipeline = new StoredPictureRenditionPipeline();
+        assertTrue(pipeline.accepts(new TestJob("small", "-resize 200x200",
+                params())));
+        // No operations: the command line could not be parsed
+        assertFalse(pipeline.accepts(new TestJob("pdf", null, params())));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionRange;
+
+public class StoredPictureRenditionRangeTest {
+
+    @Test
+    public void testFull() {
+        StoredPictureRenditionRange r = StoredPictureRenditionRange.parse(
+                null, 1000);
+        assertTrue(r.isFull());
+        assertEquals(1000, r.getLength());
+
+        // Several ranges, other units: The whole file
+        assertTrue(StoredPictureRenditionRange.parse("bytes=0-10,20-30",
+                1000).isFull());
+        assertTrue(StoredPictureRenditionRange.parse("items=0-10",
+                1000).isFull());
+        // Last before first: invalid, ignored
+        assertTrue(StoredPictureRenditionRange.parse("bytes=200-100",
+                1000).isFull());
+        assertTrue(StoredPictureRenditionRange.parse("bytes=2000-1500",
+                1000).isFull());
+        assertTrue(StoredPictureRenditionRange.parse("bytes=a-b",
+                1000).isFull());
+    }
+
+    @Test
+    public void testRanges() {
+        StoredPictureRenditionRange r = StoredPictureRenditionRange.parse(
+                "bytes=100-199", 1000);
+        assertFalse(r.isFull());
+        assertEquals(100, r.getStart());
+        assertEquals(100, r.getLength());
+        assertEquals("bytes 100-199/1000", r.getContentRange());
+
+        r = StoredPictureRenditionRange.parse("bytes=900-", 1000);
+        assertEquals(900, r.getStart());
+        assertEquals(999, r.getEnd());
+
+        r = StoredPictureRenditionRange.parse("bytes=-100", 1000);
+        assertEquals(900, r.getStart());
+        assertEquals(999, r.getEnd());
+
+        // The end is truncated to the length
+        r = StoredPictureRenditionRange.parse("bytes=500-5000", 1000);
+        assertEquals(999, r.getEnd());
+    }
+
+    @Test
+    public void testNotSatisfiable() {
+        assertNull(StoredPictureRenditionRange.parse("bytes=1000-", 1000));
+        assertNull(StoredPictureRenditionRange.parse("bytes=1000-1500", 1000));
+        assertNull(StoredPictureRenditionRange.parse("bytes=-0", 1000));
+    }
+}
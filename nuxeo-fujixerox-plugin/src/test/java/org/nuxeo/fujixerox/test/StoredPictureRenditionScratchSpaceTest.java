@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.fujixerox.storedpicturerendition.StoredPictureRenditionScratchSpace;
+
+public class StoredPictureRenditionScratchSpaceTest {
+
+    protected File scratchDir;
+
+    @Before
+    public void setUp() throws IOException {
+        scratchDir = Files.createTempDirectory("fx-scratch-test").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        FileUtils.deleteTree(scratchDir);
+    }
+
+    @Test
+    public void testCloseDeletesFiles() throws Exception {
+
+        StoredPictureRenditionScratchSpace space = new StoredPictureRenditionScratchSpace(
+                scratchDir, 10 * 1024, 0);
+        StoredPictureRenditionScratchSpace.Build build = space.open(1024);
+        File f = build.createFile("test-", ".jpeg");
+        assertTrue(f.exists());
+        assertEquals(build.getDirectory(), f.getParentFile());
+        assertEquals(1, space.getOpenBuilds());
+        assertEquals(9 * 1024, space.getAvailableSize());
+
+        build.close();
+        assertFalse(f.exists());
+        assertFalse(build.getDirectory().exists());
+        assertEquals(0, space.getOpenBuilds());
+        assertEquals(10 * 1024, space.getAvailableSize());
+
+        // Closing twice is harmless
+        build.close();
+        assertEquals(10 * 1024, space.getAvailableSize());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+
+        StoredPictureRenditionScratchSpace space = new StoredPictureRenditionScratchSpace(
+                scratchDir, 10 * 1024, 50);
+        StoredPictureRenditionScratchSpace.Build first = space.open(8 * 1024);
+        try {
+            space.open(8 * 1024);
+            fail("Should wait, then fail");
+        } catch (ClientException e) {
+            // Expected
+        }
+        assertEquals(1, space.getWaits());
+
+        // Larger than the cap: Runs alone
+        first.close();
+        StoredPictureRenditionScratchSpace.Build big = space.open(100 * 1024);
+        assertEquals(0, space.getAvailableSize());
+        big.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.fujixerox.validation.ColorspaceRule;
+import org.nuxeo.fujixerox.validation.IccProfileRule;
+import org.nuxeo.fujixerox.validation.MaxPixelCountRule;
+import org.nuxeo.fujixerox.validation.PictureMetadata;
+import org.nuxeo.fujixerox.validation.ValidationPlan;
+import org.nuxeo.fujixerox.validation.ValidationResult;
+import org.nuxeo.fujixerox.validation.ValidationRule;
+
+public class ValidationPlanTest {
+
+    protected static ValidationPlan buildPlan() {
+
+        Map<String, ValidationRule> rules = new LinkedHashMap<String, ValidationRule>();
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("allowed", "sRGB, Gray");
+        ValidationRule colorspace = new ColorspaceRule();
+        colorspace.init("colorspace", options);
+        rules.put("colorspace", colorspace);
+
+        options = new HashMap<String, String>();
+        options.put("max", "100");
+        ValidationRule maxPixels = new MaxPixelCountRule();
+        maxPixels.init("maxPixels", options);
+        rules.put("maxPixels", maxPixels);
+
+        ValidationRule icc = new IccProfileRule();
+        icc.init("icc", new HashMap<String, String>());
+        rules.put("icc", icc);
+
+        return new ValidationPlan(rules, "test");
+    }
+
+    @Test
+    public void testRequiredKeysAreMerged() {
+
+        ValidationPlan plan = buildPlan();
+        assertEquals(3, plan.getRequiredKeys().size());
+        assertTrue(plan.getRequiredKeys().contains(PictureMetadata.COLORSPACE));
+        assertTrue(plan.getRequiredKeys().contains(PictureMetadata.GEOMETRY));
+        assertTrue(plan.getRequiredKeys().contains(PictureMetadata.ICC_PROFILE));
+    }
+
+    @Test
+    public void testAllRulesAreEvaluated() {
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(PictureMetadata.COLORSPACE, "CMYK");
+        values.put(PictureMetadata.GEOMETRY, "20x10+0+0");
+        ValidationResult result = buildPlan().evaluate(
+                PictureMetadata.fromValues(values));
+
+        assertFalse(result.isValid());
+        assertEquals(3, result.getErrors().size());
+        assertEquals("colorspace", result.getErrors().get(0).getRule());
+        assertFalse(result.getErrors().get(0).isMissing());
+        assertTrue(result.getErrors().get(2).isMissing());
+        assertEquals(
+                "This image has 3 invalid values in its metadata: Colorspace (CMYK), Geometry (20x10, max. 100 pixels), ICC profile",
+                result.getMessage());
+
+        values.put(PictureMetadata.COLORSPACE, "srgb");
+        values.put(PictureMetadata.GEOMETRY, "10x10+0+0");
+        values.put(PictureMetadata.ICC_PROFILE, "sRGB IEC61966-2.1");
+        result = buildPlan().evaluate(PictureMetadata.fromValues(values));
+        assertTrue(result.isValid());
+        assertEquals("", result.getMessage());
+    }
+}
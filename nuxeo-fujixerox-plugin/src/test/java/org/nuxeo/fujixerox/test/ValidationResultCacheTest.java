@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     thibaud
+ */
+
+package org.nuxeo.fujixerox.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.nuxeo.fujixerox.validation.ValidationResult;
+import org.nuxeo.fujixerox.validation.ValidationResultCache;
+
+public class ValidationResultCacheTest {
+
+    protected static ValidationResult missingColorspace() {
+        ValidationResult result = new ValidationResult();
+        result.addError("colorspace", "Colorspace", null, true);
+        return result;
+    }
+
+    @Test
+    public void testHitMissAndEviction() {
+
+        ValidationResultCache cache = new ValidationResultCache(2);
+        assertNull(cache.get("a", "1"));
+        cache.put("a", "1", new ValidationResult());
+        cache.put("b", "1", missingColorspace());
+        assertTrue(cache.get("a", "1").isValid());
+        assertEquals(
+                "This image has a missing value in its metadata: Colorspace",
+                cache.get("b", "1").getMessage());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // "a" is the least recently used
+        cache.get("b", "1");
+        cache.put("c", "1", new ValidationResult());
+        assertEquals(2, cache.getSize());
+        assertNull(cache.get("a", "1"));
+        assertEquals(0.6, cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testRulesVersionChange() {
+
+        ValidationResultCache cache = new ValidationResultCache(10);
+        cache.put("a", "1", new ValidationResult());
+        assertTrue(cache.get("a", "1").isValid());
+        assertNull(cache.get("a", "2"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testFailedResultIsNotCached() {
+
+        ValidationResultCache cache = new ValidationResultCache(10);
+        cache.put("a", "1", ValidationResult.failed("Cannot read the file"));
+        assertNull(cache.get("a", "1"));
+    }
+}